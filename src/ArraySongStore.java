@@ -0,0 +1,38 @@
+/*
+  Default storage engine, songs are kept in an array on the heap
+ */
+public class ArraySongStore implements SongStore {
+  private final ResizableArray<Song> songs;
+
+  public ArraySongStore() {
+    songs = new ResizableArray<Song>();
+  }
+
+  public int size() {
+    return songs.size();
+  }
+
+  public Song get(int index) {
+    return songs.get(index);
+  }
+
+  public int getDuration(int index) {
+    return songs.get(index).getDuration();
+  }
+
+  public void add(Song song) {
+    songs.add(song);
+  }
+
+  public void insert(int index, Song song) {
+    songs.insert(index, song);
+  }
+
+  public void set(int index, Song song) {
+    songs.set(index, song);
+  }
+
+  public void remove(int index) {
+    songs.remove(index);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,145 @@
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/*
+  Crash safe file writes
+  New content is written and synced to a temp file next to the target,
+  which is then renamed over the target, so readers only ever see the old or new file
+  The new file keeps the old one's permissions, and a symlinked target stays a symlink:
+  the file it points at is the one replaced
+ */
+public class AtomicFile {
+  public static final int BUFFER_SIZE = 1 << 20;
+
+  //temp names are random, so a clash with a file left behind by a crash is tried again
+  private static final int TEMP_ATTEMPTS = 100;
+  private static final Random RANDOM = new Random();
+
+  /*
+    Anything that can write itself to a stream
+   */
+  public interface Content {
+    void writeTo(OutputStream out) throws IOException;
+  }
+
+  /*
+    Replaces the target file with the given content
+    Returns the number of bytes written
+   */
+  public static long replace(File target, Content content) throws IOException {
+    Path path = target.toPath();
+    boolean exists = Files.exists(path);
+    if (exists) {
+      path = path.toRealPath();
+    }
+    File dir = path.toAbsolutePath().getParent().toFile();
+
+    //created like any new file rather than with createTempFile's owner only permissions
+    Path temp = null;
+    FileChannel channel = null;
+    for (int attempt = 0; channel == null; attempt++) {
+      temp = new File(dir, path.getFileName() + "." + RANDOM.nextInt(Integer.MAX_VALUE) + ".tmp").toPath();
+      try {
+        channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+      } catch (FileAlreadyExistsException e) {
+        if (attempt == TEMP_ATTEMPTS) throw e;
+      }
+    }
+
+    boolean moved = false;
+    try {
+      try {
+        if (exists) {
+          copyPermissions(path, temp);
+        }
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        content.writeTo(out);
+        out.flush();
+
+        //make sure the data is on disk before the rename can be
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+
+      try {
+        Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+      }
+      moved = true;
+      syncDirectory(dir);
+    } finally {
+      if (!moved) {
+        Files.deleteIfExists(temp);
+      }
+    }
+
+    return target.length();
+  }
+
+  /*
+    Appends the given content to the end of the target file and syncs it
+    If writing fails the file is cut back to its original length
+    Returns the number of bytes written
+   */
+  public static long append(File target, Content content) throws IOException {
+    FileChannel channel = FileChannel.open(target.toPath(), StandardOpenOption.WRITE);
+    try {
+      long origLength = channel.size();
+      channel.position(origLength);
+      try {
+        OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE);
+        content.writeTo(out);
+        out.flush();
+        channel.force(true);
+      } catch (IOException e) {
+        channel.truncate(origLength);
+        throw e;
+      }
+      return channel.size() - origLength;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /*
+    Gives the temp file the permissions of the file it replaces
+    Does nothing on file systems without POSIX permissions
+   */
+  private static void copyPermissions(Path from, Path to) throws IOException {
+    try {
+      Files.setPosixFilePermissions(to, Files.getPosixFilePermissions(from));
+    } catch (UnsupportedOperationException e) {
+      //not a POSIX file system, the new file gets the usual permissions
+    }
+  }
+
+  /*
+    Syncs the directory entry so the rename itself survives a crash
+    Not every platform allows opening a directory, in which case this does nothing
+   */
+  private static void syncDirectory(File dir) {
+    try {
+      FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      //do nothing
+    }
+  }
+}
\ No newline at end of file
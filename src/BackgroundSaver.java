@@ -0,0 +1,79 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/*
+  Double buffered saving on a background thread
+  The caller encodes a save into one buffer while the writer thread
+  flushes the other one to disk, so the caller never waits on the disk
+ */
+public class BackgroundSaver {
+  /*
+    Called on the writer thread to put the encoded save on disk, usually with AtomicFile.replace
+   */
+  public interface Write {
+    SaveReport write(AtomicFile.Content content) throws IOException;
+  }
+
+  private final ExecutorService writer;
+  private final SaveBuffer[] buffers;
+  private final Future<?>[] writes;
+  private int current;
+
+  public BackgroundSaver() {
+    writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "SongDatabase saver");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    buffers = new SaveBuffer[] { new SaveBuffer(), new SaveBuffer() };
+    writes = new Future<?>[2];
+    current = 0;
+  }
+
+  /*
+    Encodes the content on the calling thread, then hands it to the given write in the background
+    Saves are written one at a time, in the order they were made
+   */
+  public synchronized Future<SaveReport> save(AtomicFile.Content content, final Write write) throws IOException {
+    //swap to the other buffer
+    current = 1 - current;
+
+    //the writer is still busy with this buffer, use a spare one rather than wait
+    SaveBuffer buffer = buffers[current];
+    if (writes[current] != null && !writes[current].isDone()) {
+      buffer = new SaveBuffer();
+    } else {
+      buffer.reset();
+    }
+
+    content.writeTo(buffer);
+
+    final SaveBuffer filled = buffer;
+    Future<SaveReport> written = writer.submit(new Callable<SaveReport>() {
+      public SaveReport call() throws IOException {
+        return write.write(filled);
+      }
+    });
+
+    if (filled == buffers[current]) {
+      writes[current] = written;
+    }
+    return written;
+  }
+
+  /*
+    Byte buffer that writes its contents straight out without copying
+   */
+  private static class SaveBuffer extends ByteArrayOutputStream implements AtomicFile.Content {
+    SaveBuffer() {
+      super(AtomicFile.BUFFER_SIZE);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,599 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+/*
+  Runs commands against a database without the menus, for scripted and nightly jobs
+  Each command line argument is one command, and --script runs every line of a file
+  Results go to standard output as tab separated lines, messages go to standard error
+
+  Commands:
+    load <file>                                 loads songs and any playlists saved next to them
+    open <snapshot>                             maps a snapshot, only before any songs are loaded
+    import <directory>                          loads every database file under the directory at once
+    watch <directory>                           adds songs written to the directory for the rest of the run, eg. while serving
+    add <name> <artist> <duration> <size>
+    remove <number>                             removes the song at that position, from 1
+    remove <name> <artist>
+    query <duration> [name|artist|size|duration] [limit]
+    list
+    stats                                       prints figures about the songs as name, value lines
+    playlist build <duration> [name|artist|size|duration] [maxTime maxSize]
+    playlist show <number>
+    duplicates [merge]                          lists groups of likely duplicates, merge keeps the first of each
+    save <file>                                 saves songs and playlists, .gz compresses
+    snapshot <file>                             saves songs as a snapshot for fast startup
+    serve [port]                                starts the HTTP service, see SongServer, and runs until stopped
+    lead <port>                                 ships every change to followers on the local port for the rest of the run
+    follow <port>                               copies the songs from the leader on the local port and keeps them in step,
+                                                only before any songs are loaded; serve is then read only
+
+  Arguments with spaces go in double quotes, lines in scripts starting with # are ignored
+ */
+public class BatchMode {
+  public static final String SCRIPT_OPTION = "--script";
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  //how long follow waits for the leader's first snapshot
+  private static final long FOLLOW_TIMEOUT_MILLIS = 30000;
+
+  private SongDatabase database;
+  private final List<Playlist> playlists;
+  private final PrintWriter out;
+  private final PrintWriter messages;
+
+  //set once following a leader, the songs then only change through it
+  private ReplicationFollower follower;
+
+  public BatchMode(SongDatabase database, PrintWriter out, PrintWriter messages) {
+    this.database = database;
+    this.playlists = new ArrayList<Playlist>();
+    this.out = out;
+    this.messages = messages;
+  }
+
+  /*
+    Runs the commands given on the command line against a new database
+    Returns the exit status, 0 if every command succeeded
+   */
+  public static int run(String[] args) {
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), BUFFER_SIZE));
+    PrintWriter messages = new PrintWriter(System.err, true);
+    BatchMode batch = new BatchMode(new SongDatabase(), out, messages);
+    try {
+      for (int i = 0; i < args.length; i++) {
+        if (args[i].equals(SCRIPT_OPTION)) {
+          if (i + 1 == args.length) {
+            throw new IllegalArgumentException(SCRIPT_OPTION + " needs a file");
+          }
+          batch.runScript(new File(args[++i]));
+        } else {
+          batch.execute(args[i]);
+        }
+      }
+      return 0;
+    } catch (IOException e) {
+      messages.println("Error: " + e.getMessage());
+      return 1;
+    } catch (ClassNotFoundException e) {
+      messages.println("Error: " + e.getMessage());
+      return 1;
+    } catch (IllegalArgumentException e) {
+      messages.println("Error: " + e.getMessage());
+      return 1;
+    } finally {
+      out.flush();
+      batch.close();
+    }
+  }
+
+  /*
+    Closes the database, whose store may be holding a file open
+   */
+  public void close() {
+    try {
+      database.close();
+    } catch (IOException e) {
+      messages.println("Error: " + e.getMessage());
+    }
+  }
+
+  /*
+    Runs every command in a script file, stopping at the first one that fails
+   */
+  public void runScript(File script) throws IOException, ClassNotFoundException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(script), Charset.defaultCharset()), BUFFER_SIZE);
+    try {
+      int lineNumber = 0;
+      String line;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        try {
+          execute(line);
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException(String.format("%s line %d: %s", script, lineNumber, e.getMessage()));
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /*
+    Runs a single command
+    Throws IllegalArgumentException if the command can't be understood
+   */
+  public void execute(String command) throws IOException, ClassNotFoundException {
+    String trimmed = command.trim();
+    if (trimmed.length() == 0 || trimmed.startsWith("#")) return;
+
+    List<String> words = split(trimmed);
+    String name = words.get(0).toLowerCase();
+    if (name.equals("load")) {
+      expectArguments(words, 2, 2);
+      checkWritable();
+      load(words.get(1));
+    } else if (name.equals("import")) {
+      expectArguments(words, 2, 2);
+      checkWritable();
+      importDirectory(words.get(1));
+    } else if (name.equals("watch")) {
+      expectArguments(words, 2, 2);
+      checkWritable();
+      watch(words.get(1));
+    } else if (name.equals("open")) {
+      expectArguments(words, 2, 2);
+      checkWritable();
+      open(words.get(1));
+    } else if (name.equals("snapshot")) {
+      expectArguments(words, 2, 2);
+      long bytes = database.saveSnapshot(new File(words.get(1)));
+      messages.println(String.format("Saved %d songs (%d bytes) to %s", database.getTotalSongs(), bytes, words.get(1)));
+    } else if (name.equals("add")) {
+      expectArguments(words, 5, 5);
+      checkWritable();
+      add(words.get(1), words.get(2), parsePositive(words.get(3)), parsePositive(words.get(4)));
+    } else if (name.equals("remove")) {
+      expectArguments(words, 2, 3);
+      checkWritable();
+      if (words.size() == 2) {
+        remove(parsePositive(words.get(1)) - 1);
+      } else {
+        remove(indexOf(words.get(1), words.get(2)));
+      }
+    } else if (name.equals("query")) {
+      expectArguments(words, 2, 4);
+      String order = words.size() > 2 ? words.get(2) : "name";
+      int limit = words.size() > 3 ? parsePositive(words.get(3)) : 0;
+      printSongs(query(parsePositive(words.get(1)), order, limit));
+    } else if (name.equals("list")) {
+      expectArguments(words, 1, 1);
+      list();
+    } else if (name.equals("stats")) {
+      expectArguments(words, 1, 1);
+      stats();
+    } else if (name.equals("playlist")) {
+      playlist(words);
+    } else if (name.equals("duplicates")) {
+      expectArguments(words, 1, 2);
+      if (words.size() == 2 && !words.get(1).equalsIgnoreCase("merge")) {
+        throw new IllegalArgumentException("Usage: duplicates [merge]");
+      }
+      if (words.size() == 2) {
+        checkWritable();
+      }
+      duplicates(words.size() == 2);
+    } else if (name.equals("save")) {
+      expectArguments(words, 2, 2);
+      save(words.get(1));
+    } else if (name.equals("serve")) {
+      expectArguments(words, 1, 2);
+      serve(words.size() > 1 ? parsePositive(words.get(1)) : SongServer.DEFAULT_PORT);
+    } else if (name.equals("lead")) {
+      expectArguments(words, 2, 2);
+      lead(parsePositive(words.get(1)));
+    } else if (name.equals("follow")) {
+      expectArguments(words, 2, 2);
+      follow(parsePositive(words.get(1)));
+    } else {
+      throw new IllegalArgumentException("Unknown command: " + words.get(0));
+    }
+  }
+
+  private void load(String path) throws IOException, ClassNotFoundException {
+    File file = new File(path);
+    int loaded = database.loadSongs(file);
+    messages.println(String.format("Loaded %d new songs from %s", loaded, file));
+
+    PlaylistFile playlistFile = PlaylistFile.forDatabase(path);
+    if (playlistFile.getFile().exists()) {
+      List<Playlist> loadedPlaylists = playlistFile.load(database);
+      playlists.addAll(loadedPlaylists);
+      messages.println(String.format("Loaded %d playlists from %s", loadedPlaylists.size(), playlistFile.getFile()));
+      if (playlistFile.getMissingSongs() > 0 || playlistFile.getRefusedSongs() > 0) {
+        messages.println(String.format("Left out %d playlist songs no longer in the database and %d over their playlist's limits",
+            playlistFile.getMissingSongs(), playlistFile.getRefusedSongs()));
+      }
+    }
+  }
+
+  /*
+    Reports each file on standard error as it is added, then the totals
+    A file that can't be read is skipped, but makes the command fail once the rest are in
+   */
+  private void importDirectory(String path) throws IOException {
+    File directory = new File(path);
+    if (!directory.isDirectory()) {
+      throw new IllegalArgumentException("No such directory: " + path);
+    }
+
+    long start = System.nanoTime();
+    List<DirectoryImport.FileResult> results = new DirectoryImport().importInto(database, directory, new DirectoryImport.Progress() {
+      public void fileImported(DirectoryImport.FileResult result, int filesDone, int totalFiles) {
+        if (result.getError() != null) {
+          messages.println(String.format("[%d/%d] %s: %s", filesDone, totalFiles, result.getFile(), result.getError()));
+        } else {
+          messages.println(String.format("[%d/%d] %s: %d new of %d songs in %d ms", filesDone, totalFiles,
+              result.getFile(), result.getSongsAdded(), result.getSongsRead(), result.getMillis()));
+        }
+      }
+    });
+
+    int added = 0;
+    int failed = 0;
+    for (DirectoryImport.FileResult result : results) {
+      added += result.getSongsAdded();
+      if (result.getError() != null) {
+        failed++;
+      }
+    }
+    messages.println(String.format("Imported %d new songs from %d files in %d ms", added, results.size(), (System.nanoTime() - start) / 1000000));
+    if (failed > 0) {
+      throw new IOException(failed + " files couldn't be imported");
+    }
+  }
+
+  /*
+    Starts watching the directory in the background, reporting new songs on standard error
+   */
+  private void watch(String path) throws IOException {
+    File directory = new File(path);
+    if (!directory.isDirectory()) {
+      throw new IllegalArgumentException("No such directory: " + path);
+    }
+
+    new DirectoryWatcher(database, directory, new DirectoryWatcher.Listener() {
+      public void songsAdded(File file, int added) {
+        messages.println(String.format("Added %d new songs from %s", added, file));
+      }
+
+      public void failed(File file, IOException e) {
+        messages.println(String.format("Couldn't read %s: %s", file, e.getMessage()));
+      }
+    }).start();
+    messages.println(String.format("Watching %s", directory));
+  }
+
+  /*
+    A follower's songs only change through its leader
+   */
+  private void checkWritable() {
+    if (follower != null) {
+      throw new IllegalArgumentException("This database follows a leader, change the songs there instead");
+    }
+  }
+
+  /*
+    Starts shipping changes to followers in the background
+   */
+  private void lead(int port) throws IOException {
+    new ReplicationLeader(database, port).start();
+    messages.println(String.format("Leading %d songs on port %d", database.getTotalSongs(), port));
+  }
+
+  /*
+    Starts following the leader and waits for its snapshot
+   */
+  private void follow(int port) throws IOException {
+    if (follower != null || database.getTotalSongs() > 0 || !playlists.isEmpty()) {
+      throw new IllegalArgumentException("follow must come before any songs are loaded");
+    }
+
+    long start = System.nanoTime();
+    ReplicationFollower started = new ReplicationFollower(database, port);
+    started.start();
+    try {
+      if (!started.awaitCaughtUp(FOLLOW_TIMEOUT_MILLIS)) {
+        started.stop();
+        throw new IOException("No leader answered on port " + port);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for the leader", e);
+    }
+    follower = started;
+    messages.println(String.format("Following port %d, %d songs copied in %d ms", port, database.getTotalSongs(), (System.nanoTime() - start) / 1000000));
+  }
+
+  /*
+    Swaps the empty database for one mapped from a snapshot
+   */
+  private void open(String path) throws IOException {
+    if (database.getTotalSongs() > 0 || !playlists.isEmpty()) {
+      throw new IllegalArgumentException("open must come before any songs are loaded");
+    }
+
+    long start = System.nanoTime();
+    SongDatabase opened = SongDatabase.openSnapshot(new File(path));
+    database.close();
+    database = opened;
+    messages.println(String.format("Opened %d songs from %s in %d ms", database.getTotalSongs(), path, (System.nanoTime() - start) / 1000000));
+  }
+
+  private void add(String name, String artist, int duration, int fileSize) {
+    if (database.contains(name, artist)) {
+      messages.println(String.format("Skipped %s - %s, it is already in the database", artist, name));
+      return;
+    }
+    database.addSong(new Song(name, artist, fileSize, duration, database.getStringPool()));
+  }
+
+  private void remove(int index) {
+    if (index < 0 || index >= database.getTotalSongs()) {
+      throw new IllegalArgumentException("No such song");
+    }
+
+    Song song = database.getSong(index);
+    database.removeSong(index);
+    for (Playlist playlist : playlists) {
+      int position;
+      while ((position = playlist.indexOf(song)) >= 0) {
+        playlist.removeSong(position);
+      }
+    }
+  }
+
+  /*
+    Position of the song with exactly this name and artist, or -1
+   */
+  private int indexOf(String name, String artist) {
+    if (!database.contains(name, artist)) return -1;
+
+    for (int i = 0; i < database.getTotalSongs(); i++) {
+      Song song = database.getSong(i);
+      if (song.getName().equals(name) && song.getArtist().equals(artist)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  private Song[] query(int duration, String order, int limit) {
+    String key = order.toLowerCase();
+    if (key.equals("name")) {
+      return limit > 0 ? database.songsLessThanDurationByName(duration, limit) : database.songsLessThanDurationByName(duration);
+    } else if (key.equals("artist")) {
+      return limit > 0 ? database.songsLessThanDurationByArtist(duration, limit) : database.songsLessThanDurationByArtist(duration);
+    } else if (key.equals("size")) {
+      return limit > 0 ? database.songsLessThanDurationByFileSize(duration, limit) : database.songsLessThanDurationByFileSize(duration);
+    } else if (key.equals("duration")) {
+      return limit > 0 ? database.songsLessThanDurationByDuration(duration, limit) : database.songsLessThanDurationByDuration(duration);
+    }
+    throw new IllegalArgumentException("Unknown order: " + order);
+  }
+
+  private void list() {
+    for (int i = 0; i < database.getTotalSongs(); i++) {
+      printSong(i + 1, database.getSong(i));
+    }
+  }
+
+  /*
+    Prints each group of likely duplicates as its group number followed by the songs
+    Merging points playlists at each group's first song and removes the rest
+   */
+  private void duplicates(boolean merge) {
+    List<DuplicateFinder.Cluster> clusters = new DuplicateFinder().find(database);
+    for (int c = 0; c < clusters.size(); c++) {
+      DuplicateFinder.Cluster cluster = clusters.get(c);
+      for (int member = 0; member < cluster.size(); member++) {
+        out.print(c + 1);
+        out.print('\t');
+        printSong(cluster.getIndex(member) + 1, cluster.getSong(member));
+      }
+    }
+    messages.println(String.format("Found %d groups of duplicates", clusters.size()));
+
+    if (merge) {
+      int removed = DuplicateFinder.merge(database, playlists, clusters);
+      messages.println(String.format("Merged away %d duplicates", removed));
+    }
+  }
+
+  private void stats() {
+    CatalogueStats stats = database.getStats();
+    printStat("songs", stats.getSongCount());
+    printStat("artists", stats.getArtistCount());
+    printStat("totalDuration", stats.getTotalDuration());
+    printStat("totalFileSize", stats.getTotalFileSize());
+    printStat("minDuration", stats.getMinDuration());
+    printStat("medianDuration", stats.durationQuantile(0.5));
+    printStat("p90Duration", stats.durationQuantile(0.9));
+    printStat("p99Duration", stats.durationQuantile(0.99));
+    printStat("maxDuration", stats.getMaxDuration());
+    printStat("minFileSize", stats.getMinFileSize());
+    printStat("medianFileSize", stats.fileSizeQuantile(0.5));
+    printStat("p90FileSize", stats.fileSizeQuantile(0.9));
+    printStat("p99FileSize", stats.fileSizeQuantile(0.99));
+    printStat("maxFileSize", stats.getMaxFileSize());
+  }
+
+  private void printStat(String name, long value) {
+    out.print(name);
+    out.print('\t');
+    out.println(value);
+  }
+
+  /*
+    playlist build fills a new playlist with query results in order, for as long as they fit
+    playlist show prints the songs in a playlist
+   */
+  private void playlist(List<String> words) {
+    if (words.size() < 2) {
+      throw new IllegalArgumentException("playlist needs build or show");
+    }
+
+    String action = words.get(1).toLowerCase();
+    if (action.equals("build")) {
+      if (words.size() != 3 && words.size() != 4 && words.size() != 6) {
+        throw new IllegalArgumentException("Usage: playlist build <duration> [order] [maxTime maxSize]");
+      }
+      String order = words.size() > 3 ? words.get(3) : "name";
+      Playlist playlist = words.size() == 6
+          ? new Playlist(parsePositive(words.get(4)), parsePositive(words.get(5)))
+          : new Playlist();
+
+      for (Song song : query(parsePositive(words.get(2)), order, 0)) {
+        playlist.addSong(song);
+      }
+      playlists.add(playlist);
+      messages.println(String.format("Built playlist %d with %d songs; Duration (seconds): %d; Size: %dKb",
+          playlists.size(), playlist.getTotalSongs(), playlist.getTotalTime(), playlist.getTotalSize()));
+    } else if (action.equals("show")) {
+      expectArguments(words, 3, 3);
+      int number = parsePositive(words.get(2));
+      if (number > playlists.size()) {
+        throw new IllegalArgumentException("No such playlist: " + number);
+      }
+      Playlist playlist = playlists.get(number - 1);
+      for (int i = 0; i < playlist.getTotalSongs(); i++) {
+        printSong(i + 1, playlist.getSong(i));
+      }
+    } else {
+      throw new IllegalArgumentException("Unknown playlist action: " + words.get(1));
+    }
+  }
+
+  private void save(String path) throws IOException {
+    SaveReport report = database.saveToFile(path);
+    messages.println(String.format("%s %d songs to %s", report.getMode(), report.getSongsWritten(), report.getFilePath()));
+
+    PlaylistFile playlistFile = PlaylistFile.forDatabase(report.getFilePath());
+    playlistFile.save(playlists);
+    messages.println(String.format("Saved %d playlists to %s", playlists.size(), playlistFile.getFile()));
+  }
+
+  /*
+    Serves the database and playlists over HTTP until the process is stopped
+   */
+  private void serve(int port) throws IOException {
+    SongServer server = new SongServer(database, playlists, port);
+    server.setReadOnly(follower != null);
+    server.start();
+    messages.println(String.format("Serving %d songs on http://127.0.0.1:%d/", database.getTotalSongs(), server.getPort()));
+    out.flush();
+
+    try {
+      new CountDownLatch(1).await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      server.stop();
+    }
+  }
+
+  private void printSongs(Song[] songs) {
+    for (int i = 0; i < songs.length; i++) {
+      printSong(i + 1, songs[i]);
+    }
+  }
+
+  /*
+    One tab separated line: position, name, artist, duration, file size
+   */
+  private void printSong(int number, Song song) {
+    out.print(number);
+    out.print('\t');
+    out.print(song.getName());
+    out.print('\t');
+    out.print(song.getArtist());
+    out.print('\t');
+    out.print(song.getDuration());
+    out.print('\t');
+    out.print(song.getFileSize());
+    out.print('\n');
+  }
+
+  private static void expectArguments(List<String> words, int min, int max) {
+    if (words.size() < min || words.size() > max) {
+      throw new IllegalArgumentException("Wrong number of arguments for " + words.get(0));
+    }
+  }
+
+  private static int parsePositive(String word) {
+    int value;
+    try {
+      value = Integer.parseInt(word);
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Not a number: " + word);
+    }
+    if (value <= 0) {
+      throw new IllegalArgumentException("Must be greater than zero: " + word);
+    }
+    return value;
+  }
+
+  /*
+    Splits a command into words on spaces, keeping anything in double quotes together
+    A backslash inside quotes escapes the next character
+   */
+  static List<String> split(String command) {
+    List<String> words = new ArrayList<String>();
+    StringBuilder word = new StringBuilder();
+    boolean inWord = false;
+    boolean quoted = false;
+
+    for (int i = 0; i < command.length(); i++) {
+      char c = command.charAt(i);
+      if (quoted) {
+        if (c == '\\' && i + 1 < command.length()) {
+          word.append(command.charAt(++i));
+        } else if (c == '"') {
+          quoted = false;
+        } else {
+          word.append(c);
+        }
+      } else if (c == '"') {
+        quoted = true;
+        inWord = true;
+      } else if (Character.isWhitespace(c)) {
+        if (inWord) {
+          words.add(word.toString());
+          word.setLength(0);
+          inWord = false;
+        }
+      } else {
+        word.append(c);
+        inWord = true;
+      }
+    }
+
+    if (quoted) {
+      throw new IllegalArgumentException("Missing closing quote");
+    }
+    if (inWord) {
+      words.add(word.toString());
+    }
+    return words;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,347 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.zip.GZIPOutputStream;
+
+/*
+  Merges catalogue files of any size into one database file, sorted by artist then
+  name and without duplicates, using a bounded amount of memory
+
+  Songs are read in runs of at most runSize, each run is sorted and spilled to a temp
+  file, then the runs are merged fanIn at a time until one sorted stream is left.
+  Only one run and one buffer per merged file are ever in memory. Songs are duplicates
+  when their names and artists match exactly, like SongDatabase.contains, so the merged
+  file keeps the same songs loadSongs would. The first one read wins, so earlier files
+  take priority
+
+  Usage: java CatalogueMerge <output file> <input file>...
+ */
+public class CatalogueMerge {
+  public static final int DEFAULT_RUN_SIZE = 200000;
+  public static final int DEFAULT_FAN_IN = 64;
+
+  private static final int BUFFER_SIZE = 1 << 16;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  /*
+    A song and where it was read, so ties between duplicates go to the first one read
+   */
+  private static class Entry {
+    final Song song;
+    final long order;
+
+    Entry(Song song, long order) {
+      this.song = song;
+      this.order = order;
+    }
+  }
+
+  private static final Comparator<Entry> ENTRY_ORDER = new Comparator<Entry>() {
+    public int compare(Entry e1, Entry e2) {
+      int compare = e1.song.getArtistKey().compareTo(e2.song.getArtistKey());
+      if (compare == 0) {
+        compare = e1.song.getNameKey().compareTo(e2.song.getNameKey());
+      }
+      //songs differing only in case are kept apart, so exact duplicates end up side by side
+      if (compare == 0) {
+        compare = e1.song.getArtist().compareTo(e2.song.getArtist());
+      }
+      if (compare == 0) {
+        compare = e1.song.getName().compareTo(e2.song.getName());
+      }
+      if (compare == 0) {
+        compare = e1.order < e2.order ? -1 : (e1.order == e2.order ? 0 : 1);
+      }
+      return compare;
+    }
+  };
+
+  /*
+    Reads a spilled run back one entry at a time
+   */
+  private static class RunReader {
+    private final DataInputStream in;
+    private Entry head;
+
+    RunReader(File run) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(run), BUFFER_SIZE));
+      advance();
+    }
+
+    Entry head() {
+      return head;
+    }
+
+    void advance() throws IOException {
+      try {
+        String name = readString(in);
+        String artist = readString(in);
+        int fileSize = in.readInt();
+        int duration = in.readInt();
+        head = new Entry(new Song(name, artist, fileSize, duration), in.readLong());
+      } catch (EOFException e) {
+        head = null;
+        in.close();
+      }
+    }
+
+    void close() throws IOException {
+      in.close();
+    }
+  }
+
+  private final int runSize;
+  private final int fanIn;
+
+  private int songsRead;
+  private int songsWritten;
+
+  public CatalogueMerge() {
+    this(DEFAULT_RUN_SIZE, DEFAULT_FAN_IN);
+  }
+
+  /*
+    runSize songs are sorted in memory at a time, and fanIn runs are merged at once
+   */
+  public CatalogueMerge(int runSize, int fanIn) {
+    if (runSize < 1 || fanIn < 2) {
+      throw new IllegalArgumentException("Runs need at least one song and merges at least two runs");
+    }
+    this.runSize = runSize;
+    this.fanIn = fanIn;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 2) {
+      System.err.println("Usage: java CatalogueMerge <output file> <input file>...");
+      System.exit(1);
+    }
+
+    File[] inputs = new File[args.length - 1];
+    for (int i = 1; i < args.length; i++) {
+      inputs[i - 1] = new File(args[i]);
+    }
+
+    long start = System.nanoTime();
+    CatalogueMerge merge = new CatalogueMerge();
+    long bytes = merge.merge(inputs, args[0]);
+    System.out.println(String.format("Merged %d songs into %d (%d bytes) in %d ms",
+        merge.getSongsRead(), merge.getSongsWritten(), bytes, (System.nanoTime() - start) / 1000000));
+  }
+
+  /*
+    Merges the input files into the output, replacing it atomically
+    The output path gets the same extension saveToFile would give it, .gz compresses
+    Returns the number of bytes written
+   */
+  public long merge(File[] inputs, String outputPath) throws IOException {
+    final boolean compressed = SongDatabase.isCompressedPath(outputPath);
+    File output = new File(SongDatabase.withExtension(outputPath));
+    File tempDir = Files.createTempDirectory("catalogue-merge").toFile();
+    songsRead = 0;
+    songsWritten = 0;
+
+    try {
+      List<File> runs = spillRuns(inputs, tempDir);
+      //merge down until one pass can do the rest straight into the output
+      while (runs.size() > fanIn) {
+        List<File> merged = new ArrayList<File>();
+        for (int from = 0; from < runs.size(); from += fanIn) {
+          List<File> group = runs.subList(from, Math.min(runs.size(), from + fanIn));
+          File run = File.createTempFile("run", ".bin", tempDir);
+          DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(run), BUFFER_SIZE));
+          try {
+            mergeRuns(group, out, null);
+          } finally {
+            out.close();
+          }
+          for (File done : group) {
+            done.delete();
+          }
+          merged.add(run);
+        }
+        runs = merged;
+      }
+
+      final List<File> last = runs;
+      return AtomicFile.replace(output, new AtomicFile.Content() {
+        public void writeTo(OutputStream out) throws IOException {
+          GZIPOutputStream gzip = null;
+          if (compressed) {
+            gzip = new GZIPOutputStream(out, BUFFER_SIZE);
+            out = gzip;
+          }
+
+          //same charset and layout as SongDatabase.saveToFile
+          Writer writer = new OutputStreamWriter(out, Charset.defaultCharset());
+          writer.write(SongFileReader.HEADER + System.lineSeparator());
+          mergeRuns(last, null, writer);
+          writer.flush();
+
+          if (gzip != null) {
+            gzip.finish();
+          }
+        }
+      });
+    } finally {
+      File[] left = tempDir.listFiles();
+      if (left != null) {
+        for (File file : left) {
+          file.delete();
+        }
+      }
+      tempDir.delete();
+    }
+  }
+
+  public int getSongsRead() {
+    return songsRead;
+  }
+
+  public int getSongsWritten() {
+    return songsWritten;
+  }
+
+  /*
+    Reads every input in runs, writing each run out sorted and without duplicates
+   */
+  private List<File> spillRuns(File[] inputs, File tempDir) throws IOException {
+    List<File> runs = new ArrayList<File>();
+    Entry[] run = new Entry[runSize];
+    int size = 0;
+    long order = 0;
+
+    for (File input : inputs) {
+      SongFileReader reader = new SongFileReader(input);
+      try {
+        while (reader.nextRecord()) {
+          run[size++] = new Entry(new Song(reader.getName(), reader.getArtist(), reader.getFileSize(), reader.getDuration()), order++);
+          songsRead++;
+          if (size == runSize) {
+            runs.add(spill(run, size, tempDir));
+            size = 0;
+          }
+        }
+      } finally {
+        reader.close();
+      }
+    }
+
+    if (size > 0 || runs.isEmpty()) {
+      runs.add(spill(run, size, tempDir));
+    }
+    return runs;
+  }
+
+  /*
+    Same name and artist exactly, the test SongDatabase.contains makes
+   */
+  private static boolean isDuplicate(Song song, Song previous) {
+    return previous != null && song.getName().equals(previous.getName()) && song.getArtist().equals(previous.getArtist());
+  }
+
+  private File spill(Entry[] run, int size, File tempDir) throws IOException {
+    Arrays.sort(run, 0, size, ENTRY_ORDER);
+    File file = File.createTempFile("run", ".bin", tempDir);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), BUFFER_SIZE));
+    try {
+      Song previous = null;
+      for (int i = 0; i < size; i++) {
+        //sorted, so duplicates are side by side and the first one read comes first
+        if (!isDuplicate(run[i].song, previous)) {
+          writeEntry(out, run[i]);
+          previous = run[i].song;
+        }
+        run[i] = null;
+      }
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  /*
+    K-way merge of sorted runs, dropping duplicates
+    Writes entries to a run when out is given, otherwise songs to the database file writer
+   */
+  private void mergeRuns(List<File> runs, DataOutputStream out, Writer songs) throws IOException {
+    PriorityQueue<RunReader> heads = new PriorityQueue<RunReader>(runs.size(), new Comparator<RunReader>() {
+      public int compare(RunReader r1, RunReader r2) {
+        return ENTRY_ORDER.compare(r1.head(), r2.head());
+      }
+    });
+
+    try {
+      for (File run : runs) {
+        RunReader reader = new RunReader(run);
+        if (reader.head() != null) {
+          heads.add(reader);
+        }
+      }
+
+      Song previous = null;
+      while (!heads.isEmpty()) {
+        RunReader reader = heads.poll();
+        Entry entry = reader.head();
+        if (!isDuplicate(entry.song, previous)) {
+          if (out != null) {
+            writeEntry(out, entry);
+          } else {
+            Song song = entry.song;
+            songsWritten++;
+            songs.write(String.format("Song %d\n%s\n%s\n%skB\n%d\n", songsWritten, song.getName(), song.getArtist(), song.getFileSize(), song.getDuration()));
+          }
+          previous = entry.song;
+        }
+
+        reader.advance();
+        if (reader.head() != null) {
+          heads.add(reader);
+        }
+      }
+    } finally {
+      for (RunReader reader : heads) {
+        reader.close();
+      }
+    }
+  }
+
+  private static void writeEntry(DataOutputStream out, Entry entry) throws IOException {
+    writeString(out, entry.song.getName());
+    writeString(out, entry.song.getArtist());
+    out.writeInt(entry.song.getFileSize());
+    out.writeInt(entry.song.getDuration());
+    out.writeLong(entry.order);
+  }
+
+  /*
+    Length prefixed UTF-8, unlike writeUTF it has no 64k limit
+   */
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,208 @@
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/*
+  Statistics about a whole database kept up to date as songs change, so asking for
+  them never scans the songs: duration and file size distributions, and how many
+  songs each artist has. Built with one pass over the database, then maintained
+  through its listener
+ */
+public class CatalogueStats implements SongDatabaseListener {
+  /*
+    An artist and their number of songs
+   */
+  public static class ArtistCount {
+    private final String artist;
+    private final int songs;
+
+    ArtistCount(String artist, int songs) {
+      this.artist = artist;
+      this.songs = songs;
+    }
+
+    public String getArtist() {
+      return artist;
+    }
+
+    public int getSongs() {
+      return songs;
+    }
+  }
+
+  /*
+    Songs by one artist, under the name the first of them was added with
+   */
+  private static class Artist {
+    final String name;
+    int songs;
+
+    Artist(String name) {
+      this.name = name;
+    }
+  }
+
+  private final Distribution durations;
+  private final Distribution fileSizes;
+
+  //by case folded name, the same way the database matches artists
+  private final Map<String, Artist> artists;
+
+  CatalogueStats() {
+    durations = new Distribution();
+    fileSizes = new Distribution();
+    artists = new HashMap<String, Artist>();
+  }
+
+  /*
+    Statistics for the songs in the database, kept up to date from now on
+   */
+  static CatalogueStats attach(SongDatabase database) {
+    CatalogueStats stats = new CatalogueStats();
+    database.writeLock().lock();
+    try {
+      for (int i = 0; i < database.getTotalSongs(); i++) {
+        stats.songAdded(i, database.getSong(i));
+      }
+      database.addListener(stats);
+    } finally {
+      database.writeLock().unlock();
+    }
+    return stats;
+  }
+
+  public synchronized void songAdded(int index, Song song) {
+    durations.add(song.getDuration());
+    fileSizes.add(song.getFileSize());
+    Artist artist = artists.get(song.getArtistKey());
+    if (artist == null) {
+      artist = new Artist(song.getArtist());
+      artists.put(song.getArtistKey(), artist);
+    }
+    artist.songs++;
+  }
+
+  public synchronized void songRemoved(int index, Song song) {
+    durations.remove(song.getDuration());
+    fileSizes.remove(song.getFileSize());
+    Artist artist = artists.get(song.getArtistKey());
+    if (--artist.songs == 0) {
+      artists.remove(song.getArtistKey());
+    }
+  }
+
+  public synchronized void songReplaced(int index, Song old, Song replacement) {
+    songRemoved(index, old);
+    songAdded(index, replacement);
+  }
+
+  public synchronized long getSongCount() {
+    return durations.getCount();
+  }
+
+  /*
+    Total playing time in seconds
+   */
+  public synchronized long getTotalDuration() {
+    return durations.getSum();
+  }
+
+  /*
+    Total size in kB
+   */
+  public synchronized long getTotalFileSize() {
+    return fileSizes.getSum();
+  }
+
+  /*
+    Duration figures in seconds, the fractions given as eg. 0.5 for the median
+   */
+  public synchronized int getMinDuration() {
+    return durations.getMin();
+  }
+
+  public synchronized int getMaxDuration() {
+    return durations.getMax();
+  }
+
+  public synchronized double getMeanDuration() {
+    return durations.getMean();
+  }
+
+  public synchronized int durationQuantile(double fraction) {
+    return durations.quantile(fraction);
+  }
+
+  /*
+    Songs with a duration in the given Distribution range
+   */
+  public synchronized long getDurationRangeCount(int range) {
+    return durations.getRangeCount(range);
+  }
+
+  /*
+    File size figures in kB
+   */
+  public synchronized int getMinFileSize() {
+    return fileSizes.getMin();
+  }
+
+  public synchronized int getMaxFileSize() {
+    return fileSizes.getMax();
+  }
+
+  public synchronized double getMeanFileSize() {
+    return fileSizes.getMean();
+  }
+
+  public synchronized int fileSizeQuantile(double fraction) {
+    return fileSizes.quantile(fraction);
+  }
+
+  /*
+    Songs with a file size in the given Distribution range
+   */
+  public synchronized long getFileSizeRangeCount(int range) {
+    return fileSizes.getRangeCount(range);
+  }
+
+  public synchronized int getArtistCount() {
+    return artists.size();
+  }
+
+  /*
+    Songs by the given artist, ignoring case
+   */
+  public synchronized int getSongsByArtist(String artist) {
+    Artist found = artists.get(StringPool.fold(artist));
+    return found == null ? 0 : found.songs;
+  }
+
+  /*
+    The artists with the most songs, most first
+    Goes through the artists once, keeping only the best so far
+   */
+  public synchronized List<ArtistCount> getTopArtists(int limit) {
+    PriorityQueue<Artist> best = new PriorityQueue<Artist>(Math.max(1, limit), new Comparator<Artist>() {
+      public int compare(Artist a1, Artist a2) {
+        return a1.songs != a2.songs ? (a1.songs < a2.songs ? -1 : 1) : a2.name.compareToIgnoreCase(a1.name);
+      }
+    });
+    for (Artist artist : artists.values()) {
+      best.add(artist);
+      if (best.size() > limit) {
+        best.poll();
+      }
+    }
+
+    List<ArtistCount> top = new ArrayList<ArtistCount>(best.size());
+    while (!best.isEmpty()) {
+      Artist artist = best.poll();
+      top.add(0, new ArtistCount(artist.name, artist.songs));
+    }
+    return top;
+  }
+}
\ No newline at end of file
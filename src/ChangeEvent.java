@@ -0,0 +1,134 @@
+/*
+  One change to a database or playlist, as delivered by a ChangeStream
+  Events are slots in a ring that get reused, so they are only valid during the
+  ChangeSubscriber call they are passed to. Copy out anything kept for later
+ */
+public final class ChangeEvent {
+  public enum Type {
+    //index and song, what was added or removed
+    SONG_ADDED("songAdded"),
+    SONG_REMOVED("songRemoved"),
+    //index, the song that was there and its replacement
+    SONG_REPLACED("songReplaced"),
+    //playlist and its songs in order
+    PLAYLIST_ADDED("playlistAdded"),
+    //playlist only
+    PLAYLIST_REMOVED("playlistRemoved"),
+    //playlist, index and song
+    PLAYLIST_SONG_INSERTED("playlistSongInserted"),
+    PLAYLIST_SONG_REMOVED("playlistSongRemoved"),
+    //playlist, index moved from and index moved to
+    PLAYLIST_SONG_MOVED("playlistSongMoved"),
+    //playlist, index, the song that was there and its replacement
+    PLAYLIST_SONG_REPLACED("playlistSongReplaced"),
+    //playlist and its songs in their new order
+    PLAYLIST_REORDERED("playlistReordered");
+
+    private final String label;
+
+    Type(String label) {
+      this.label = label;
+    }
+
+    /*
+      Name used when writing events out, eg. songAdded
+     */
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  private long sequence;
+  private Type type;
+  private int playlistId;
+  private Playlist playlist;
+  private int index;
+  private int toIndex;
+  private Song song;
+  private Song replacement;
+  private Song[] songs;
+
+  ChangeEvent() {
+  }
+
+  void set(long sequence, Type type, int playlistId, Playlist playlist, int index, int toIndex, Song song,
+      Song replacement, Song[] songs) {
+    this.sequence = sequence;
+    this.type = type;
+    this.playlistId = playlistId;
+    this.playlist = playlist;
+    this.index = index;
+    this.toIndex = toIndex;
+    this.song = song;
+    this.replacement = replacement;
+    this.songs = songs;
+  }
+
+  /*
+    Drops the references, so songs that are gone aren't kept alive by the ring
+   */
+  void clear() {
+    type = null;
+    playlist = null;
+    song = null;
+    replacement = null;
+    songs = null;
+  }
+
+  /*
+    Position of the event in its subscription, counting from 0 with no gaps
+   */
+  public long getSequence() {
+    return sequence;
+  }
+
+  public Type getType() {
+    return type;
+  }
+
+  /*
+    Number given to the playlist by ChangeStream.watch, or -1 for database changes
+   */
+  public int getPlaylistId() {
+    return playlistId;
+  }
+
+  public Playlist getPlaylist() {
+    return playlist;
+  }
+
+  /*
+    Where the change happened, for moves where the song moved from
+   */
+  public int getIndex() {
+    return index;
+  }
+
+  /*
+    Where a moved song moved to
+   */
+  public int getToIndex() {
+    return toIndex;
+  }
+
+  /*
+    The song added, removed or replaced
+   */
+  public Song getSong() {
+    return song;
+  }
+
+  /*
+    The song that took the place of getSong for replacements
+   */
+  public Song getReplacement() {
+    return replacement;
+  }
+
+  /*
+    Every song in the playlist, in order, for added and reordered playlists
+   */
+  public Song[] getSongs() {
+    return songs;
+  }
+}
\ No newline at end of file
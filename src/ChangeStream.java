@@ -0,0 +1,420 @@
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+  Publishes every change to a database, and to the playlists it is told to watch, as
+  typed events for other code to mirror
+
+  Each subscription has a bounded ring of preallocated events and its own thread.
+  Writers claim a slot with a compare and swap, fill it in and publish it with an
+  ordered store, the same scheme as the LMAX Disruptor, so a change never takes a
+  lock or creates an object to be published. The subscription thread hands out
+  every event published so far in one batch, up to its batch size. Once idle for a
+  while it parks until the next writer wakes it, so a quiet subscription costs nothing
+
+  Writers never wait for subscribers. A subscriber that falls behind by a whole ring
+  has events dropped rather than holding the database up; once it has caught up
+  with what was published it is told how many it missed and reads the state again,
+  see ChangeSubscriber.overrun. Other subscriptions aren't affected
+ */
+public class ChangeStream implements SongDatabaseListener {
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+  public static final int DEFAULT_BATCH_SIZE = 1024;
+
+  //how long an idle subscription spins, then yields, before it parks
+  private static final int SPIN_TRIES = 100;
+  private static final int YIELD_TRIES = 100;
+
+  /*
+    A subscriber, its ring, and the thread handing the ring's events to it
+   */
+  public final class Subscription {
+    private final ChangeSubscriber subscriber;
+    private final ChangeEvent[] slots;
+    private final int mask;
+    private final int batchSize;
+
+    //sequence each slot was last published with, -1 before its first use
+    private final AtomicLongArray published;
+
+    //next sequence to claim, and the first one the subscriber hasn't finished with
+    private final AtomicLong claimed;
+    private final AtomicLong consumed;
+
+    //set by the writer that found the ring full, cleared once the subscriber has read the state again
+    private volatile boolean overrun;
+    private final AtomicLong dropped;
+
+    //set while the subscription thread is parked, or about to be, so writers know to wake it
+    private volatile boolean sleeping;
+
+    private volatile boolean running;
+    private volatile Throwable failure;
+    private volatile long overruns;
+    private final Thread thread;
+
+    Subscription(ChangeSubscriber subscriber, int capacity, int batchSize, String name) {
+      int size = Integer.highestOneBit(Math.max(2, capacity) - 1) << 1;
+      this.subscriber = subscriber;
+      this.slots = new ChangeEvent[size];
+      for (int i = 0; i < size; i++) {
+        slots[i] = new ChangeEvent();
+      }
+      this.mask = size - 1;
+      this.batchSize = Math.min(batchSize, size);
+      this.published = new AtomicLongArray(size);
+      for (int i = 0; i < size; i++) {
+        published.set(i, -1);
+      }
+      this.claimed = new AtomicLong();
+      this.consumed = new AtomicLong();
+      this.dropped = new AtomicLong();
+      this.running = true;
+      this.thread = new Thread(new Runnable() {
+        public void run() {
+          consume();
+        }
+      }, name);
+      thread.setDaemon(true);
+    }
+
+    /*
+      Puts an event in the ring, or drops it if the ring is full
+     */
+    void offer(ChangeEvent.Type type, int playlistId, Playlist playlist, int index, int toIndex, Song song,
+        Song replacement, Song[] songs) {
+      if (overrun) {
+        dropped.incrementAndGet();
+        return;
+      }
+
+      long sequence;
+      do {
+        sequence = claimed.get();
+        if (sequence - consumed.get() >= slots.length) {
+          overrun = true;
+          dropped.incrementAndGet();
+          wake();
+          return;
+        }
+      } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+      int slot = (int) sequence & mask;
+      slots[slot].set(sequence, type, playlistId, playlist, index, toIndex, song, replacement, songs);
+      published.lazySet(slot, sequence);
+      wake();
+    }
+
+    /*
+      Unparks the subscription thread if it is asleep
+      Only a volatile read when it isn't: the claim or overrun flag was written before this read,
+      and the thread sets sleeping before checking them, so one side always sees the other
+     */
+    private void wake() {
+      if (sleeping) {
+        LockSupport.unpark(thread);
+      }
+    }
+
+    private void consume() {
+      ChangeEvent[] batch = new ChangeEvent[batchSize];
+      long next = 0;
+      int idle = 0;
+      try {
+        while (running) {
+          //everything published in a row from next, up to a batch
+          int count = 0;
+          while (count < batchSize && published.get((int) (next + count) & mask) == next + count) {
+            batch[count] = slots[(int) (next + count) & mask];
+            count++;
+          }
+
+          if (count > 0) {
+            subscriber.changes(batch, count);
+            for (int i = 0; i < count; i++) {
+              batch[i].clear();
+              batch[i] = null;
+            }
+            next += count;
+            //frees the slots for writers
+            consumed.lazySet(next);
+            idle = 0;
+          } else if (overrun && next == claimed.get()) {
+            resync();
+            idle = 0;
+          } else {
+            idle(idle++, next);
+          }
+        }
+      } catch (IOException e) {
+        failure = e;
+      } catch (RuntimeException e) {
+        failure = e;
+      } finally {
+        running = false;
+        remove(this);
+      }
+    }
+
+    /*
+      Everything from before the overrun has been handed out, so the subscriber can read the state again
+      Database writers can't run while the read lock is held, so the next event is the next change after it
+     */
+    private void resync() throws IOException {
+      database.readLock().lock();
+      try {
+        long missed = dropped.getAndSet(0);
+        overruns++;
+        subscriber.overrun(missed);
+        overrun = false;
+      } finally {
+        database.readLock().unlock();
+      }
+    }
+
+    /*
+      Waits a little for the next event, spinning then yielding, and then parks until a writer or close wakes it
+     */
+    private void idle(int tries, long next) {
+      if (tries < SPIN_TRIES) {
+        return;
+      } else if (tries < SPIN_TRIES + YIELD_TRIES) {
+        Thread.yield();
+      } else {
+        sleeping = true;
+        //a slot claimed but not yet published is only moments away, so that isn't waited for here
+        if (running && !overrun && claimed.get() == next) {
+          LockSupport.park(this);
+        }
+        sleeping = false;
+      }
+    }
+
+    /*
+      Stops handing out events and waits for the subscriber's current batch to finish
+     */
+    public void close() throws InterruptedException {
+      running = false;
+      LockSupport.unpark(thread);
+      if (Thread.currentThread() != thread) {
+        thread.join();
+      }
+    }
+
+    /*
+      Waits until the subscription ends, by close or because the subscriber threw
+     */
+    public void awaitClose() throws InterruptedException {
+      thread.join();
+    }
+
+    /*
+      Waits up to the given time for the subscription to end, returning whether it has
+     */
+    public boolean awaitClose(long millis) throws InterruptedException {
+      thread.join(millis);
+      return !thread.isAlive();
+    }
+
+    public boolean isRunning() {
+      return running;
+    }
+
+    /*
+      What the subscriber threw to end the subscription, or null
+     */
+    public Throwable getFailure() {
+      return failure;
+    }
+
+    /*
+      Events published but not yet handed to the subscriber
+     */
+    public long getLag() {
+      return claimed.get() - consumed.get();
+    }
+
+    /*
+      Events handed to the subscriber so far
+     */
+    public long getDelivered() {
+      return consumed.get();
+    }
+
+    /*
+      Times the subscriber fell behind and had to read the state again
+     */
+    public long getOverruns() {
+      return overruns;
+    }
+  }
+
+  /*
+    Turns a playlist's changes into events, under the number it was given
+   */
+  private class WatchedPlaylist implements PlaylistListener {
+    final int id;
+
+    WatchedPlaylist(int id) {
+      this.id = id;
+    }
+
+    public void songInserted(Playlist playlist, int index, Song song) {
+      publish(ChangeEvent.Type.PLAYLIST_SONG_INSERTED, id, playlist, index, -1, song, null, null);
+    }
+
+    public void songRemoved(Playlist playlist, int index, Song song) {
+      publish(ChangeEvent.Type.PLAYLIST_SONG_REMOVED, id, playlist, index, -1, song, null, null);
+    }
+
+    public void songMoved(Playlist playlist, int from, int to) {
+      publish(ChangeEvent.Type.PLAYLIST_SONG_MOVED, id, playlist, from, to, null, null, null);
+    }
+
+    public void songReplaced(Playlist playlist, int index, Song song, Song replacement) {
+      publish(ChangeEvent.Type.PLAYLIST_SONG_REPLACED, id, playlist, index, -1, song, replacement, null);
+    }
+
+    public void reordered(Playlist playlist, Song[] before) {
+      //the one event that has to copy, the new order is as long as the playlist
+      if (subscriptions.length > 0) {
+        publish(ChangeEvent.Type.PLAYLIST_REORDERED, id, playlist, -1, -1, null, null, playlist.toArray());
+      }
+    }
+  }
+
+  private final SongDatabase database;
+
+  //copied on every change, so writers go through it without a lock
+  private volatile Subscription[] subscriptions;
+
+  private final Map<Playlist, WatchedPlaylist> watched;
+  private int nextPlaylistId;
+  private int nextSubscription;
+
+  public ChangeStream(SongDatabase database) {
+    this.database = database;
+    this.subscriptions = new Subscription[0];
+    this.watched = new IdentityHashMap<Playlist, WatchedPlaylist>();
+    database.writeLock().lock();
+    try {
+      database.addListener(this);
+    } finally {
+      database.writeLock().unlock();
+    }
+  }
+
+  /*
+    Starts handing changes to the subscriber on a thread of its own, in batches of up to batchSize
+    capacity events can be waiting before the subscriber overruns, it is rounded up to a power of two
+    Only changes made after this returns are seen
+   */
+  public Subscription subscribe(ChangeSubscriber subscriber, int capacity, int batchSize) {
+    if (capacity < 1 || batchSize < 1) {
+      throw new IllegalArgumentException("Capacity and batch size must be positive");
+    }
+
+    Subscription subscription;
+    synchronized (this) {
+      subscription = new Subscription(subscriber, capacity, batchSize, "change-subscriber-" + nextSubscription++);
+      Subscription[] added = Arrays.copyOf(subscriptions, subscriptions.length + 1);
+      added[added.length - 1] = subscription;
+      subscriptions = added;
+    }
+    subscription.thread.start();
+    return subscription;
+  }
+
+  public Subscription subscribe(ChangeSubscriber subscriber) {
+    return subscribe(subscriber, DEFAULT_CAPACITY, DEFAULT_BATCH_SIZE);
+  }
+
+  /*
+    Ends every subscription and stops listening to the database and playlists
+   */
+  public void close() throws InterruptedException {
+    database.writeLock().lock();
+    try {
+      database.removeListener(this);
+    } finally {
+      database.writeLock().unlock();
+    }
+    synchronized (this) {
+      for (Map.Entry<Playlist, WatchedPlaylist> playlist : watched.entrySet()) {
+        playlist.getKey().removeListener(playlist.getValue());
+      }
+      watched.clear();
+    }
+
+    for (Subscription subscription : subscriptions) {
+      subscription.close();
+    }
+  }
+
+  /*
+    Publishes the playlist with its songs, then every change to it, and returns the number its events carry
+    Watching a playlist again gives the number it already has
+   */
+  public int watch(Playlist playlist) {
+    WatchedPlaylist listener;
+    synchronized (this) {
+      listener = watched.get(playlist);
+      if (listener != null) {
+        return listener.id;
+      }
+      listener = new WatchedPlaylist(nextPlaylistId++);
+      watched.put(playlist, listener);
+    }
+    publish(ChangeEvent.Type.PLAYLIST_ADDED, listener.id, playlist, -1, -1, null, null, playlist.toArray());
+    playlist.addListener(listener);
+    return listener.id;
+  }
+
+  /*
+    Publishes that the playlist is gone, and stops watching it
+   */
+  public void unwatch(Playlist playlist) {
+    WatchedPlaylist listener;
+    synchronized (this) {
+      listener = watched.remove(playlist);
+    }
+    if (listener == null) return;
+
+    playlist.removeListener(listener);
+    publish(ChangeEvent.Type.PLAYLIST_REMOVED, listener.id, playlist, -1, -1, null, null, null);
+  }
+
+  public void songAdded(int index, Song song) {
+    publish(ChangeEvent.Type.SONG_ADDED, -1, null, index, -1, song, null, null);
+  }
+
+  public void songRemoved(int index, Song song) {
+    publish(ChangeEvent.Type.SONG_REMOVED, -1, null, index, -1, song, null, null);
+  }
+
+  public void songReplaced(int index, Song song, Song replacement) {
+    publish(ChangeEvent.Type.SONG_REPLACED, -1, null, index, -1, song, replacement, null);
+  }
+
+  private void publish(ChangeEvent.Type type, int playlistId, Playlist playlist, int index, int toIndex, Song song,
+      Song replacement, Song[] songs) {
+    for (Subscription subscription : subscriptions) {
+      subscription.offer(type, playlistId, playlist, index, toIndex, song, replacement, songs);
+    }
+  }
+
+  private synchronized void remove(Subscription subscription) {
+    int at = Arrays.asList(subscriptions).indexOf(subscription);
+    if (at < 0) return;
+
+    Subscription[] left = new Subscription[subscriptions.length - 1];
+    System.arraycopy(subscriptions, 0, left, 0, at);
+    System.arraycopy(subscriptions, at + 1, left, at, left.length - at);
+    subscriptions = left;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,21 @@
+import java.io.IOException;
+
+/*
+  Receives the changes from a ChangeStream, on the subscription's own thread
+  Throwing ends the subscription
+ */
+public interface ChangeSubscriber {
+  /*
+    The next events in order, events[0] to events[count - 1]
+    They are only valid until this returns
+   */
+  void changes(ChangeEvent[] events, int count) throws IOException;
+
+  /*
+    The subscriber fell so far behind that its buffer filled up, and the given number of
+    events were lost. Anything mirrored has to be read again from the database and
+    playlists, which is done here: the database's read lock is held, so no database
+    change can be missed or seen twice. Events carry on from the next change
+   */
+  void overrun(long missed) throws IOException;
+}
\ No newline at end of file
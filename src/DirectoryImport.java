@@ -0,0 +1,212 @@
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+  Imports every database file in a directory tree at once
+  Files are read and parsed on a pool of threads, a few files ahead of the one being
+  added, while a single thread adds them to the database in path order. So duplicates
+  between files always resolve the same way, the first file in path order wins, and
+  memory only holds the files in flight
+ */
+public class DirectoryImport {
+  //database files, compressed or not
+  public static final FilenameFilter DATABASE_FILES = new FilenameFilter() {
+    @Override
+    public boolean accept(File dir, String name) {
+      String lowerName = name.toLowerCase();
+      return lowerName.endsWith(".txt") || lowerName.endsWith(".txt.gz");
+    }
+  };
+
+  //files parsed ahead of the one being added, for each thread
+  private static final int FILES_AHEAD_PER_THREAD = 2;
+
+  /*
+    Told about each file as soon as it has been added
+   */
+  public interface Progress {
+    void fileImported(FileResult result, int filesDone, int totalFiles);
+  }
+
+  /*
+    What importing one file did
+   */
+  public static class FileResult {
+    private final File file;
+    private final int songsRead;
+    private final int songsAdded;
+    private final long millis;
+    private final String error;
+
+    FileResult(File file, int songsRead, int songsAdded, long millis, String error) {
+      this.file = file;
+      this.songsRead = songsRead;
+      this.songsAdded = songsAdded;
+      this.millis = millis;
+      this.error = error;
+    }
+
+    public File getFile() {
+      return file;
+    }
+
+    public int getSongsRead() {
+      return songsRead;
+    }
+
+    public int getSongsAdded() {
+      return songsAdded;
+    }
+
+    /*
+      Time from starting to read the file until its songs were added
+     */
+    public long getMillis() {
+      return millis;
+    }
+
+    /*
+      Why the file couldn't be read, or null if it was
+     */
+    public String getError() {
+      return error;
+    }
+  }
+
+  /*
+    A parsed file, or why it couldn't be parsed
+   */
+  private static class Parsed {
+    final List<Song> songs;
+    final long started;
+    final String error;
+
+    Parsed(List<Song> songs, long started, String error) {
+      this.songs = songs;
+      this.started = started;
+      this.error = error;
+    }
+  }
+
+  private final int threads;
+
+  public DirectoryImport() {
+    this(Runtime.getRuntime().availableProcessors());
+  }
+
+  public DirectoryImport(int threads) {
+    if (threads < 1) {
+      throw new IllegalArgumentException("Need at least one thread");
+    }
+    this.threads = threads;
+  }
+
+  /*
+    Every database file under the directory, sorted by path
+   */
+  public static List<File> findFiles(File directory) throws IOException {
+    final List<File> files = new ArrayList<File>();
+    Files.walkFileTree(directory.toPath(), new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+        File found = file.toFile();
+        if (attributes.isRegularFile() && DATABASE_FILES.accept(found.getParentFile(), found.getName())) {
+          files.add(found);
+        }
+        return FileVisitResult.CONTINUE;
+      }
+
+      @Override
+      public FileVisitResult visitFileFailed(Path file, IOException e) {
+        //unreadable corners of the tree are skipped rather than ending the walk
+        return FileVisitResult.CONTINUE;
+      }
+    });
+    Collections.sort(files);
+    return files;
+  }
+
+  /*
+    Adds the songs from every database file under the directory that aren't in the database yet
+    Files that can't be read are reported and skipped
+    Returns what happened to each file, in the order they were added
+   */
+  public List<FileResult> importInto(final SongDatabase database, File directory, Progress progress) throws IOException {
+    List<File> files = findFiles(directory);
+    List<FileResult> results = new ArrayList<FileResult>(files.size());
+    ExecutorService pool = Executors.newFixedThreadPool(threads);
+    try {
+      LinkedList<Future<Parsed>> inFlight = new LinkedList<Future<Parsed>>();
+      int submitted = 0;
+      for (int done = 0; done < files.size(); done++) {
+        //keep the pool busy while this thread adds songs
+        while (submitted < files.size() && inFlight.size() < threads * FILES_AHEAD_PER_THREAD) {
+          inFlight.add(pool.submit(parser(files.get(submitted++), database.getStringPool())));
+        }
+
+        Parsed parsed = await(inFlight.removeFirst());
+        int added = parsed.error == null ? database.addSongsIfAbsent(parsed.songs) : 0;
+        FileResult result = new FileResult(files.get(done), parsed.error == null ? parsed.songs.size() : 0, added,
+            (System.nanoTime() - parsed.started) / 1000000, parsed.error);
+        results.add(result);
+        if (progress != null) {
+          progress.fileImported(result, done + 1, files.size());
+        }
+      }
+    } finally {
+      pool.shutdownNow();
+    }
+    return results;
+  }
+
+  private static Callable<Parsed> parser(final File file, final StringPool pool) {
+    return new Callable<Parsed>() {
+      public Parsed call() {
+        long started = System.nanoTime();
+        try {
+          List<Song> songs = new ArrayList<Song>();
+          SongFileReader reader = new SongFileReader(file);
+          try {
+            while (reader.nextRecord()) {
+              songs.add(new Song(reader.getName(), reader.getArtist(), reader.getFileSize(), reader.getDuration(), pool));
+            }
+          } finally {
+            reader.close();
+          }
+          return new Parsed(songs, started, null);
+        } catch (IOException e) {
+          return new Parsed(null, started, e.getMessage());
+        } catch (RuntimeException e) {
+          //a damaged record, like a size that isn't a number
+          return new Parsed(null, started, e.toString());
+        }
+      }
+    };
+  }
+
+  private static Parsed await(Future<Parsed> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Import was interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Couldn't read a file", e.getCause());
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,223 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+  Feeds database files dropped into a directory into a SongDatabase as they are written
+  The directory is watched with a WatchService, so nothing is polled, and each file is
+  tailed from the end of the last complete record read from it. Appending to a file
+  only reads the new records, which go through the same dedup as loadSongs
+
+  Compressed files can't be read from the middle, so they are read again from the start
+  each time they change, duplicates of the songs already taken being skipped as usual.
+  A file with a damaged record is reported to the listener, and left alone until it
+  changes again. Files in subdirectories aren't watched
+ */
+public class DirectoryWatcher {
+  /*
+    Told what happened each time a file is read
+    Called on the watching thread
+   */
+  public interface Listener {
+    void songsAdded(File file, int added);
+
+    void failed(File file, IOException e);
+  }
+
+  /*
+    How far each file has been read, how big it was then, and which file that was,
+    so a file replaced under the same name is read again from the start
+   */
+  private static class Progress {
+    final Object fileKey;
+    final long offset;
+    final long size;
+
+    Progress(Object fileKey, long offset, long size) {
+      this.fileKey = fileKey;
+      this.offset = offset;
+      this.size = size;
+    }
+  }
+
+  private final SongDatabase database;
+  private final Path directory;
+  private final Listener listener;
+  private final Map<Path, Progress> progress;
+
+  private WatchService watcher;
+  private Thread thread;
+
+  public DirectoryWatcher(SongDatabase database, File directory, Listener listener) {
+    this.database = database;
+    this.directory = directory.toPath();
+    this.listener = listener;
+    this.progress = new HashMap<Path, Progress>();
+  }
+
+  /*
+    Reads the files already in the directory, then watches for changes on a background thread
+   */
+  public synchronized void start() throws IOException {
+    if (thread != null) {
+      throw new IllegalStateException("Already watching " + directory);
+    }
+
+    watcher = FileSystems.getDefault().newWatchService();
+    //registered before the first scan, so nothing written in between is missed
+    directory.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY,
+        StandardWatchEventKinds.ENTRY_DELETE);
+    scan();
+
+    thread = new Thread(new Runnable() {
+      public void run() {
+        watch();
+      }
+    }, "directory-watcher");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  /*
+    Stops watching and waits for any read in progress to finish
+   */
+  public void stop() throws InterruptedException {
+    Thread running;
+    synchronized (this) {
+      running = thread;
+      if (running == null) return;
+      try {
+        watcher.close();
+      } catch (IOException e) {
+        //closing only fails if it is already closed
+      }
+    }
+    running.join();
+  }
+
+  public File getDirectory() {
+    return directory.toFile();
+  }
+
+  private void watch() {
+    try {
+      while (true) {
+        WatchKey key = watcher.take();
+        for (WatchEvent<?> event : key.pollEvents()) {
+          if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+            //some events were dropped, so check everything
+            scan();
+          } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+            forget(directory.resolve((Path) event.context()));
+          } else {
+            read(directory.resolve((Path) event.context()));
+          }
+        }
+        if (!key.reset()) {
+          //the directory itself is gone
+          return;
+        }
+      }
+    } catch (ClosedWatchServiceException e) {
+      //stopped
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      synchronized (this) {
+        thread = null;
+      }
+    }
+  }
+
+  private void scan() {
+    File[] files = directory.toFile().listFiles(DirectoryImport.DATABASE_FILES);
+    if (files == null) return;
+    for (File file : files) {
+      read(file.toPath());
+    }
+  }
+
+  private synchronized void forget(Path file) {
+    progress.remove(file);
+  }
+
+  /*
+    Adds the records written to the file since it was last read
+   */
+  private void read(Path file) {
+    File dataFile = file.toFile();
+    if (!DirectoryImport.DATABASE_FILES.accept(dataFile.getParentFile(), dataFile.getName())) return;
+
+    try {
+      BasicFileAttributes attributes;
+      try {
+        attributes = Files.readAttributes(file, BasicFileAttributes.class);
+      } catch (NoSuchFileException e) {
+        //gone again before we got to it
+        forget(file);
+        return;
+      }
+      if (!attributes.isRegularFile()) return;
+
+      Progress last;
+      synchronized (this) {
+        last = progress.get(file);
+      }
+      long offset = 0;
+      if (last != null && last.fileKey != null && last.fileKey.equals(attributes.fileKey()) && last.offset <= attributes.size()) {
+        //nothing new since it was last read
+        if (last.size == attributes.size()) return;
+        offset = last.offset;
+      }
+      //nothing new, or not even a whole header yet
+      if (offset == attributes.size() || offset == 0 && attributes.size() <= SongFileReader.HEADER.length()) return;
+
+      SongFileReader reader = SongFileReader.tail(dataFile, offset);
+      int added;
+      RuntimeException damaged = null;
+      //held across the load, so the songs added before a damaged record can be counted
+      database.writeLock().lock();
+      try {
+        int before = database.getTotalSongs();
+        try {
+          added = database.loadSongs(reader);
+        } catch (RuntimeException e) {
+          //a damaged record, like a duration that isn't a number
+          //the records before it stay in the database
+          damaged = e;
+          added = database.getTotalSongs() - before;
+        }
+      } finally {
+        database.writeLock().unlock();
+        reader.close();
+      }
+
+      //after a damaged record the rest of the file as it is now is skipped, so it isn't read again on every change
+      long end = reader.isCompressed() ? 0 : damaged != null ? attributes.size() : reader.getRecordEnd();
+      synchronized (this) {
+        progress.put(file, new Progress(attributes.fileKey(), end, attributes.size()));
+      }
+      if (listener != null && added > 0) {
+        listener.songsAdded(dataFile, added);
+      }
+      if (damaged != null) {
+        throw new IOException(String.format("Damaged song record after %d songs were imported: %s", added, damaged), damaged);
+      }
+    } catch (IOException e) {
+      if (listener != null) {
+        listener.failed(dataFile, e);
+      }
+    }
+  }
+}
\ No newline at end of file
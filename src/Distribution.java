@@ -0,0 +1,150 @@
+import java.util.TreeMap;
+
+/*
+  Running summary of a set of non-negative values that can be added and removed
+  Count, sum, min and max are exact. Quantiles come from a log-linear histogram, the
+  same layout HdrHistogram uses: values under 64 have a bucket each, and every
+  power of two above that is split into 32 buckets, so an estimate is never more
+  than about 3% off. Unlike t-digest or KLL sketches it copes with removals, which
+  a catalogue needs for deletes and edits, and every answer costs the same however
+  many values there are
+ */
+public class Distribution {
+  private static final int SUB_BUCKET_BITS = 5;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (32 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  //coarse ranges for display: 0, then [2^(k-1), 2^k) for k from 1
+  public static final int RANGES = 32;
+
+  private final long[] buckets;
+  private final long[] ranges;
+
+  //how many of each value, only to keep min and max exact through removals
+  private final TreeMap<Integer, Integer> values;
+
+  private long count;
+  private long sum;
+
+  public Distribution() {
+    buckets = new long[BUCKETS];
+    ranges = new long[RANGES];
+    values = new TreeMap<Integer, Integer>();
+  }
+
+  public void add(int value) {
+    value = Math.max(0, value);
+    buckets[bucketOf(value)]++;
+    ranges[rangeOf(value)]++;
+    Integer copies = values.get(value);
+    values.put(value, copies == null ? 1 : copies + 1);
+    count++;
+    sum += value;
+  }
+
+  /*
+    Removes one copy of a value that was added before
+   */
+  public void remove(int value) {
+    value = Math.max(0, value);
+    Integer copies = values.get(value);
+    if (copies == null) {
+      throw new IllegalArgumentException("Value was never added: " + value);
+    }
+    if (copies == 1) {
+      values.remove(value);
+    } else {
+      values.put(value, copies - 1);
+    }
+    buckets[bucketOf(value)]--;
+    ranges[rangeOf(value)]--;
+    count--;
+    sum -= value;
+  }
+
+  public long getCount() {
+    return count;
+  }
+
+  public long getSum() {
+    return sum;
+  }
+
+  /*
+    Smallest value, or 0 when empty
+   */
+  public int getMin() {
+    return values.isEmpty() ? 0 : values.firstKey();
+  }
+
+  /*
+    Largest value, or 0 when empty
+   */
+  public int getMax() {
+    return values.isEmpty() ? 0 : values.lastKey();
+  }
+
+  public double getMean() {
+    return count == 0 ? 0 : (double) sum / count;
+  }
+
+  /*
+    Estimated value below which the given fraction of values fall, eg. 0.5 for the median
+    Returns 0 when empty
+   */
+  public int quantile(double fraction) {
+    if (fraction < 0 || fraction > 1) {
+      throw new IllegalArgumentException("Fraction must be between 0 and 1: " + fraction);
+    }
+    if (count == 0) return 0;
+
+    long rank = Math.max(1, (long) Math.ceil(fraction * count));
+    long seen = 0;
+    for (int bucket = 0; bucket < BUCKETS; bucket++) {
+      seen += buckets[bucket];
+      if (seen >= rank) {
+        //middle of the bucket, kept inside the values actually seen
+        long middle = (lowest(bucket) + highest(bucket)) / 2;
+        return (int) Math.max(getMin(), Math.min(getMax(), middle));
+      }
+    }
+    return getMax();
+  }
+
+  /*
+    Number of values in one of the coarse ranges, see getRangeLow and getRangeHigh
+   */
+  public long getRangeCount(int range) {
+    return ranges[range];
+  }
+
+  public static long getRangeLow(int range) {
+    return range == 0 ? 0 : 1L << (range - 1);
+  }
+
+  public static long getRangeHigh(int range) {
+    return range == 0 ? 0 : (1L << range) - 1;
+  }
+
+  private static int rangeOf(int value) {
+    return 32 - Integer.numberOfLeadingZeros(value);
+  }
+
+  private static int bucketOf(int value) {
+    if (value < 2 * SUB_BUCKETS) {
+      return value;
+    }
+    int shift = 31 - Integer.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    return shift * SUB_BUCKETS + (value >>> shift);
+  }
+
+  private static long lowest(int bucket) {
+    int shift = Math.max(0, bucket / SUB_BUCKETS - 1);
+    return (long) (bucket - shift * SUB_BUCKETS) << shift;
+  }
+
+  private static long highest(int bucket) {
+    int shift = Math.max(0, bucket / SUB_BUCKETS - 1);
+    return ((long) (bucket - shift * SUB_BUCKETS + 1) << shift) - 1;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,414 @@
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/*
+  Finds songs that are probably the same song entered differently, like
+  "Aguas de Marco" with and without its accents, or "Elis & Tom" and "Elis and Tom"
+
+  Names and artists are normalized (accents, case, punctuation and "&" dropped), cut
+  into overlapping three letter shingles and summarised by a MinHash signature.
+  Locality sensitive hashing groups signatures by bands, so only songs sharing a band
+  are ever compared and the pass stays close to linear on big catalogues. A pair is a
+  duplicate when both its names and its artists share enough shingles and the numbers
+  in the names match, so "Track 1" and "Track 2" stay apart. Duplicates are joined into
+  clusters with a union find
+ */
+public class DuplicateFinder {
+  public static final double DEFAULT_THRESHOLD = 0.7;
+
+  //16 bands of 4 rows catch pairs from about 0.5 similarity upwards
+  private static final int BANDS = 16;
+  private static final int ROWS = 4;
+  private static final int SIGNATURE_SIZE = BANDS * ROWS;
+  private static final int SHINGLE_SIZE = 3;
+
+  //songs in one bucket are only compared with this many before them, so a huge
+  //bucket of identical songs can't make the pass quadratic
+  private static final int MAX_BUCKET_COMPARISONS = 8;
+
+  private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+  /*
+    Songs believed to be one song, in database order
+    The first is the one merging keeps
+   */
+  public static class Cluster {
+    private final int[] indexes;
+    private final Song[] songs;
+
+    Cluster(int[] indexes, Song[] songs) {
+      this.indexes = indexes;
+      this.songs = songs;
+    }
+
+    public int size() {
+      return indexes.length;
+    }
+
+    public int getIndex(int member) {
+      return indexes[member];
+    }
+
+    public Song getSong(int member) {
+      return songs[member];
+    }
+
+    public Song getKeeper() {
+      return songs[0];
+    }
+  }
+
+  private final double threshold;
+
+  public DuplicateFinder() {
+    this(DEFAULT_THRESHOLD);
+  }
+
+  /*
+    Songs are clustered when their estimated similarity, between 0 and 1, reaches the threshold
+   */
+  public DuplicateFinder(double threshold) {
+    if (threshold <= 0 || threshold > 1) {
+      throw new IllegalArgumentException("Threshold must be above 0 and at most 1: " + threshold);
+    }
+    this.threshold = threshold;
+  }
+
+  /*
+    Folds a name or artist to the form duplicates are compared in
+    Accents and case are dropped, "&" reads as "and", punctuation becomes single spaces
+   */
+  public static String normalize(String value) {
+    String plain = value;
+    if (!isAscii(value)) {
+      plain = MARKS.matcher(Normalizer.normalize(value, Normalizer.Form.NFD)).replaceAll("");
+    }
+
+    StringBuilder normalized = new StringBuilder(plain.length());
+    boolean separate = false;
+    for (int i = 0; i < plain.length(); i = plain.offsetByCodePoints(i, 1)) {
+      int c = plain.codePointAt(i);
+      boolean and = c == '&' || c == '+';
+      if (!and && !Character.isLetterOrDigit(c)) {
+        separate = true;
+        continue;
+      }
+      if (separate && normalized.length() > 0) {
+        normalized.append(' ');
+      }
+      if (and) {
+        normalized.append("and");
+        separate = true;
+      } else {
+        normalized.appendCodePoint(Character.toLowerCase(c));
+        separate = false;
+      }
+    }
+    return normalized.toString();
+  }
+
+  /*
+    Finds every cluster of two or more likely duplicates
+    The database is read under its read lock, so the indexes hold until it is next changed
+   */
+  public List<Cluster> find(SongDatabase database) {
+    database.readLock().lock();
+    try {
+      int count = database.getTotalSongs();
+      Song[] songs = new Song[count];
+      String[] names = new String[count];
+      String[] artists = new String[count];
+      int[] numberHashes = new int[count];
+      //only the band hashes of each signature are kept, which saves most of the memory
+      int[] bandHashes = new int[count * BANDS];
+      int[] signature = new int[SIGNATURE_SIZE];
+      for (int i = 0; i < count; i++) {
+        songs[i] = database.getSong(i);
+        names[i] = normalize(songs[i].getName());
+        artists[i] = normalize(songs[i].getArtist());
+        numberHashes[i] = numbers(names[i]).hashCode();
+        sign(artists[i] + " / " + names[i], signature);
+        for (int band = 0; band < BANDS; band++) {
+          int hash = band;
+          for (int r = 0; r < ROWS; r++) {
+            hash = mix(hash * 31 + signature[band * ROWS + r]);
+          }
+          bandHashes[band * count + i] = hash;
+        }
+      }
+
+      int[] parents = new int[count];
+      for (int i = 0; i < count; i++) {
+        parents[i] = i;
+      }
+      for (int band = 0; band < BANDS; band++) {
+        joinBand(band, names, artists, numberHashes, bandHashes, parents);
+      }
+      return clusters(songs, parents);
+    } finally {
+      database.readLock().unlock();
+    }
+  }
+
+  /*
+    Merges each cluster into its keeper: playlists are pointed at the keeper and
+    the other songs are removed from the database
+    Clusters must come from find on this database with no changes since
+    Returns the number of songs removed
+   */
+  public static int merge(SongDatabase database, Collection<Playlist> playlists, List<Cluster> clusters) {
+    List<Integer> removals = new ArrayList<Integer>();
+    database.writeLock().lock();
+    try {
+      for (Cluster cluster : clusters) {
+        for (int member = 0; member < cluster.size(); member++) {
+          //by value, a store may read a new copy of an unchanged song
+          if (!database.getSong(cluster.getIndex(member)).isSameAs(cluster.getSong(member))) {
+            throw new IllegalStateException("The database has changed since duplicates were found");
+          }
+        }
+      }
+
+      for (Cluster cluster : clusters) {
+        for (int member = 1; member < cluster.size(); member++) {
+          for (Playlist playlist : playlists) {
+            playlist.replaceSong(cluster.getSong(member), cluster.getKeeper());
+          }
+          removals.add(cluster.getIndex(member));
+        }
+      }
+
+      //from the back, so earlier indexes stay put
+      Integer[] ordered = removals.toArray(new Integer[removals.size()]);
+      Arrays.sort(ordered);
+      for (int i = ordered.length - 1; i >= 0; i--) {
+        database.removeSong(ordered[i]);
+      }
+      return ordered.length;
+    } finally {
+      database.writeLock().unlock();
+    }
+  }
+
+  /*
+    MinHash of the text's shingles
+    Each of the hash functions is h1 + i * h2 of the shingle's two base hashes,
+    which behaves as well as independent functions for this and is much cheaper
+   */
+  private static void sign(String text, int[] signature) {
+    Arrays.fill(signature, Integer.MAX_VALUE);
+    //repeated shingles don't change the minimums, so there is no need to sort them out
+    for (int shingle : shingles(text, false)) {
+      int h1 = mix(shingle);
+      int h2 = mix(h1 ^ 0x5bd1e995) | 1;
+      for (int i = 0; i < SIGNATURE_SIZE; i++) {
+        int h = h1 + i * h2;
+        if (h < signature[i]) {
+          signature[i] = h;
+        }
+      }
+    }
+  }
+
+  /*
+    Sorts songs by the hash of one band and compares the songs whose hashes match
+   */
+  private void joinBand(int band, String[] names, String[] artists, int[] numberHashes, int[] bandHashes, int[] parents) {
+    int count = parents.length;
+    //band hash in the top half, song in the bottom, so one sort groups the buckets
+    long[] keys = new long[count];
+    for (int i = 0; i < count; i++) {
+      keys[i] = ((long) bandHashes[band * count + i] << 32) | i;
+    }
+    Arrays.sort(keys);
+
+    int bucketStart = 0;
+    for (int i = 1; i <= count; i++) {
+      if (i < count && (keys[i] >>> 32) == (keys[bucketStart] >>> 32)) {
+        continue;
+      }
+      for (int a = bucketStart + 1; a < i; a++) {
+        for (int b = Math.max(bucketStart, a - MAX_BUCKET_COMPARISONS); b < a; b++) {
+          int first = (int) keys[b];
+          int second = (int) keys[a];
+          //cheap checks first, they rule most pairs out
+          if (numberHashes[first] == numberHashes[second]
+              && couldBeSimilar(names[first], names[second])
+              && couldBeSimilar(artists[first], artists[second])
+              && find(parents, first) != find(parents, second)
+              && numbers(names[first]).equals(numbers(names[second]))
+              && similarity(artists[first], artists[second]) >= threshold
+              && similarity(names[first], names[second]) >= threshold) {
+            union(parents, first, second);
+          }
+        }
+      }
+      bucketStart = i;
+    }
+  }
+
+  /*
+    Whether the texts' lengths are close enough to be worth comparing
+    Texts n letters long have n - 2 shingles unless some repeat, and the similarity
+    can't be more than the ratio of the two counts
+   */
+  private boolean couldBeSimilar(String first, String second) {
+    int shorter = Math.max(1, Math.min(first.length(), second.length()) - SHINGLE_SIZE + 1);
+    int longer = Math.max(1, Math.max(first.length(), second.length()) - SHINGLE_SIZE + 1);
+    return shorter >= threshold * longer;
+  }
+
+  /*
+    Share of the two texts' shingles that they have in common
+   */
+  private static double similarity(String first, String second) {
+    if (first.equals(second)) {
+      return 1;
+    }
+    int[] a = shingles(first, true);
+    int[] b = shingles(second, true);
+    int same = 0;
+    int i = 0;
+    int j = 0;
+    while (i < a.length && j < b.length) {
+      if (a[i] == b[j]) {
+        same++;
+        i++;
+        j++;
+      } else if (a[i] < b[j]) {
+        i++;
+      } else {
+        j++;
+      }
+    }
+    return (double) same / (a.length + b.length - same);
+  }
+
+  /*
+    Hashes of the text's overlapping three letter pieces, optionally sorted without repeats
+    Text shorter than that is one piece
+   */
+  private static int[] shingles(String text, boolean sorted) {
+    int[] shingles = new int[Math.max(1, text.length() - SHINGLE_SIZE + 1)];
+    for (int s = 0; s < shingles.length; s++) {
+      int shingle = 0;
+      for (int c = s; c < Math.min(text.length(), s + SHINGLE_SIZE); c++) {
+        shingle = 31 * shingle + text.charAt(c);
+      }
+      shingles[s] = shingle;
+    }
+    if (!sorted) {
+      return shingles;
+    }
+    Arrays.sort(shingles);
+
+    int unique = 0;
+    for (int s = 0; s < shingles.length; s++) {
+      if (s == 0 || shingles[s] != shingles[s - 1]) {
+        shingles[unique++] = shingles[s];
+      }
+    }
+    return Arrays.copyOf(shingles, unique);
+  }
+
+  /*
+    The runs of digits in a normalized text, space separated
+   */
+  private static String numbers(String text) {
+    StringBuilder numbers = new StringBuilder();
+    boolean inNumber = false;
+    for (int i = 0; i < text.length(); i++) {
+      char c = text.charAt(i);
+      if (c >= '0' && c <= '9') {
+        if (!inNumber && numbers.length() > 0) {
+          numbers.append(' ');
+        }
+        numbers.append(c);
+        inNumber = true;
+      } else {
+        inNumber = false;
+      }
+    }
+    return numbers.toString();
+  }
+
+  private static boolean isAscii(String value) {
+    for (int i = 0; i < value.length(); i++) {
+      if (value.charAt(i) >= 0x80) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int find(int[] parents, int song) {
+    while (parents[song] != song) {
+      //path halving keeps the trees flat
+      parents[song] = parents[parents[song]];
+      song = parents[song];
+    }
+    return song;
+  }
+
+  /*
+    The lower root wins, so every cluster's root is its first song
+   */
+  private static void union(int[] parents, int first, int second) {
+    int a = find(parents, first);
+    int b = find(parents, second);
+    if (a < b) {
+      parents[b] = a;
+    } else {
+      parents[a] = b;
+    }
+  }
+
+  /*
+    Gathers the songs under each root, keeping only the roots with company
+    Clusters come out in the order of their first song
+   */
+  private static List<Cluster> clusters(Song[] songs, int[] parents) {
+    int[] sizes = new int[parents.length];
+    for (int i = 0; i < parents.length; i++) {
+      sizes[find(parents, i)]++;
+    }
+
+    int[][] members = new int[parents.length][];
+    int[] filled = new int[parents.length];
+    for (int i = 0; i < parents.length; i++) {
+      int root = find(parents, i);
+      if (sizes[root] > 1) {
+        if (members[root] == null) {
+          members[root] = new int[sizes[root]];
+        }
+        members[root][filled[root]++] = i;
+      }
+    }
+
+    List<Cluster> clusters = new ArrayList<Cluster>();
+    for (int root = 0; root < parents.length; root++) {
+      if (members[root] != null) {
+        Song[] clustered = new Song[members[root].length];
+        for (int m = 0; m < clustered.length; m++) {
+          clustered[m] = songs[members[root][m]];
+        }
+        clusters.add(new Cluster(members[root], clustered));
+      }
+    }
+    return clusters;
+  }
+
+  private static int mix(int h) {
+    //murmur3 finalizer
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
\ No newline at end of file
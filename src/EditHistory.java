@@ -0,0 +1,455 @@
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Multi-level undo and redo for a database and its playlists, with named versions
+  Rather than copying the catalogue, the history keeps how to reverse each change it
+  is told about, so a change costs a few references however big the catalogue is, and
+  going back or forward goes through the same methods as the original edit. Everything
+  kept in step by listeners, like the duplicate index, smart playlists and statistics,
+  follows along. Songs added one after another in one change, like a file being
+  loaded, are kept as one range
+
+  Changes are grouped between begin and end, so removing a song from the database and
+  from every playlist undoes as one. Anything changed outside a group is a change of
+  its own. A named version is a point in the history; going back to one undoes or
+  redoes the changes in between. Making a change after undoing drops the changes that
+  could have been redone, and any versions among them
+ */
+public class EditHistory implements SongDatabaseListener, PlaylistListener {
+  public static final int DEFAULT_MAX_CHANGES = 1000;
+
+  /*
+    Something that can be done again after being undone
+    Used for changes the history can't see, like adding or removing a whole playlist
+   */
+  public interface Edit {
+    void undo();
+
+    void redo();
+  }
+
+  /*
+    Edits that undo and redo together
+   */
+  private static class Change {
+    final String label;
+    final List<Edit> edits;
+
+    Change(String label) {
+      this.label = label;
+      this.edits = new ArrayList<Edit>(1);
+    }
+
+    void undo() {
+      for (int i = edits.size() - 1; i >= 0; i--) {
+        edits.get(i).undo();
+      }
+    }
+
+    void redo() {
+      for (Edit edit : edits) {
+        edit.redo();
+      }
+    }
+  }
+
+  private final SongDatabase database;
+  private final int maxChanges;
+
+  //every change kept, oldest first, the first applied of them are done
+  private final List<Change> changes;
+  private int applied;
+
+  //version number before the oldest change kept, each change done adds one
+  private long firstVersion;
+
+  //named versions, in the order they were named
+  private final Map<String, Long> versions;
+
+  //the group being built between begin and end
+  private Change open;
+  private int depth;
+
+  //set while undoing or redoing, so the changes that makes aren't recorded
+  private boolean replaying;
+
+  public EditHistory(SongDatabase database) {
+    this(database, DEFAULT_MAX_CHANGES);
+  }
+
+  /*
+    Keeps at most maxChanges changes, forgetting the oldest ones
+   */
+  public EditHistory(SongDatabase database, int maxChanges) {
+    if (maxChanges < 1) {
+      throw new IllegalArgumentException("History must keep at least one change");
+    }
+    this.database = database;
+    this.maxChanges = maxChanges;
+    this.changes = new ArrayList<Change>();
+    this.versions = new LinkedHashMap<String, Long>();
+    database.addListener(this);
+  }
+
+  /*
+    Records changes to the playlist from now on
+   */
+  public void watch(Playlist playlist) {
+    playlist.addListener(this);
+  }
+
+  /*
+    Starts a group, everything changed until the matching end undoes as one
+    Groups can be nested, only the outermost one counts
+   */
+  public synchronized void begin(String label) {
+    if (depth++ == 0) {
+      open = new Change(label);
+    }
+  }
+
+  public synchronized void end() {
+    if (depth == 0) {
+      throw new IllegalStateException("end without begin");
+    }
+    if (--depth == 0) {
+      if (!open.edits.isEmpty()) {
+        push(open);
+      }
+      open = null;
+    }
+  }
+
+  /*
+    Adds an edit made outside the database and playlists to the history
+   */
+  public synchronized void record(Edit edit) {
+    if (replaying) return;
+
+    if (open != null) {
+      open.edits.add(edit);
+    } else {
+      Change change = new Change(null);
+      change.edits.add(edit);
+      push(change);
+    }
+  }
+
+  public synchronized boolean canUndo() {
+    return applied > 0;
+  }
+
+  public synchronized boolean canRedo() {
+    return applied < changes.size();
+  }
+
+  /*
+    Label given to begin for the change undo would undo, or null if it had none
+   */
+  public synchronized String getUndoLabel() {
+    return canUndo() ? changes.get(applied - 1).label : null;
+  }
+
+  public synchronized String getRedoLabel() {
+    return canRedo() ? changes.get(applied).label : null;
+  }
+
+  /*
+    Undoes the last change done
+    Returns false if there was nothing to undo
+   */
+  public boolean undo() {
+    database.writeLock().lock();
+    try {
+      synchronized (this) {
+        if (!canUndo()) return false;
+        checkNotOpen();
+        replay(changes.get(applied - 1), true);
+        applied--;
+        return true;
+      }
+    } finally {
+      database.writeLock().unlock();
+    }
+  }
+
+  /*
+    Does the last change undone again
+    Returns false if there was nothing to redo
+   */
+  public boolean redo() {
+    database.writeLock().lock();
+    try {
+      synchronized (this) {
+        if (!canRedo()) return false;
+        checkNotOpen();
+        replay(changes.get(applied), false);
+        applied++;
+        return true;
+      }
+    } finally {
+      database.writeLock().unlock();
+    }
+  }
+
+  /*
+    Names the current version so it can be gone back to, replacing any version with the same name
+   */
+  public synchronized void tag(String name) {
+    versions.remove(name);
+    versions.put(name, currentVersion());
+  }
+
+  /*
+    Named versions that can still be reached, in the order they were named
+   */
+  public synchronized List<String> getVersions() {
+    return new ArrayList<String>(versions.keySet());
+  }
+
+  /*
+    Undoes or redoes changes until the database and playlists are as they were at the named version
+    Returns how many changes that took
+   */
+  public int checkout(String name) {
+    database.writeLock().lock();
+    try {
+      synchronized (this) {
+        Long version = versions.get(name);
+        if (version == null) {
+          throw new IllegalArgumentException("No version named " + name);
+        }
+
+        int steps = 0;
+        while (currentVersion() > version) {
+          undo();
+          steps++;
+        }
+        while (currentVersion() < version) {
+          redo();
+          steps++;
+        }
+        return steps;
+      }
+    } finally {
+      database.writeLock().unlock();
+    }
+  }
+
+  /*
+    Forgets every change and named version
+   */
+  public synchronized void clear() {
+    changes.clear();
+    versions.clear();
+    applied = 0;
+    firstVersion = 0;
+  }
+
+  public synchronized void songAdded(int index, Song song) {
+    if (replaying) return;
+
+    //songs added one after another in a group only need where they start and how many
+    if (open != null && !open.edits.isEmpty()) {
+      Edit last = open.edits.get(open.edits.size() - 1);
+      if (last instanceof SongsAdded && ((SongsAdded) last).extend(index)) {
+        return;
+      }
+    }
+    record(new SongsAdded(index));
+  }
+
+  public synchronized void songRemoved(final int index, final Song song) {
+    record(new Edit() {
+      public void undo() {
+        database.insertSong(index, song);
+      }
+
+      public void redo() {
+        database.removeSong(index);
+      }
+    });
+  }
+
+  public synchronized void songReplaced(final int index, final Song song, final Song replacement) {
+    record(new Edit() {
+      public void undo() {
+        database.setSong(index, song);
+      }
+
+      public void redo() {
+        database.setSong(index, replacement);
+      }
+    });
+  }
+
+  public synchronized void songInserted(final Playlist playlist, final int index, final Song song) {
+    record(new Edit() {
+      public void undo() {
+        playlist.removeSong(index);
+      }
+
+      public void redo() {
+        playlist.insertSong(index, song);
+      }
+    });
+  }
+
+  public synchronized void songRemoved(final Playlist playlist, final int index, final Song song) {
+    record(new Edit() {
+      public void undo() {
+        playlist.insertSong(index, song);
+      }
+
+      public void redo() {
+        playlist.removeSong(index);
+      }
+    });
+  }
+
+  public synchronized void songMoved(final Playlist playlist, final int from, final int to) {
+    record(new Edit() {
+      public void undo() {
+        playlist.moveSong(to, from);
+      }
+
+      public void redo() {
+        playlist.moveSong(from, to);
+      }
+    });
+  }
+
+  public synchronized void songReplaced(final Playlist playlist, final int index, final Song song, final Song replacement) {
+    record(new Edit() {
+      public void undo() {
+        playlist.setSong(index, song);
+      }
+
+      public void redo() {
+        playlist.setSong(index, replacement);
+      }
+    });
+  }
+
+  public synchronized void reordered(final Playlist playlist, final Song[] before) {
+    record(new Edit() {
+      //only known once undone
+      private Song[] after;
+
+      public void undo() {
+        after = playlist.toArray();
+        playlist.restoreOrder(before);
+      }
+
+      public void redo() {
+        playlist.restoreOrder(after);
+        after = null;
+      }
+    });
+  }
+
+  /*
+    A run of songs added at consecutive indexes
+    The songs themselves are only kept while undone, until then the database has them
+   */
+  private class SongsAdded implements Edit {
+    private final int from;
+    private int count;
+    private Song[] songs;
+
+    SongsAdded(int from) {
+      this.from = from;
+      this.count = 1;
+    }
+
+    /*
+      Takes in the song added at the given index if it carries on the run
+     */
+    boolean extend(int index) {
+      if (index != from + count) return false;
+      count++;
+      return true;
+    }
+
+    public void undo() {
+      songs = new Song[count];
+      for (int i = count - 1; i >= 0; i--) {
+        songs[i] = database.getSong(from + i);
+        database.removeSong(from + i);
+      }
+    }
+
+    public void redo() {
+      for (int i = 0; i < count; i++) {
+        database.insertSong(from + i, songs[i]);
+      }
+      songs = null;
+    }
+  }
+
+  private long currentVersion() {
+    return firstVersion + applied;
+  }
+
+  private void checkNotOpen() {
+    if (open != null) {
+      throw new IllegalStateException("Can't undo or redo in the middle of a change");
+    }
+  }
+
+  /*
+    Undoes or redoes a change without recording what that does
+    If it fails, the history no longer matches and is cleared
+   */
+  private void replay(Change change, boolean undo) {
+    replaying = true;
+    try {
+      if (undo) {
+        change.undo();
+      } else {
+        change.redo();
+      }
+    } catch (RuntimeException e) {
+      clear();
+      throw new IllegalStateException("Couldn't " + (undo ? "undo" : "redo") + " a change, the history has been cleared", e);
+    } finally {
+      replaying = false;
+    }
+  }
+
+  /*
+    Adds a done change, dropping whatever could have been redone, and the oldest change if there are too many
+   */
+  private void push(Change change) {
+    while (changes.size() > applied) {
+      changes.remove(changes.size() - 1);
+    }
+    dropVersions(firstVersion, currentVersion());
+
+    changes.add(change);
+    applied++;
+    if (changes.size() > maxChanges) {
+      changes.remove(0);
+      applied--;
+      firstVersion++;
+      dropVersions(firstVersion, currentVersion());
+    }
+  }
+
+  /*
+    Forgets named versions outside the given range
+   */
+  private void dropVersions(long lowest, long highest) {
+    Iterator<Long> named = versions.values().iterator();
+    while (named.hasNext()) {
+      long version = named.next();
+      if (version < lowest || version > highest) {
+        named.remove();
+      }
+    }
+  }
+}
\ No newline at end of file
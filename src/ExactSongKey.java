@@ -0,0 +1,31 @@
+/*
+  Map key that only matches an exact copy of a song
+  Song.equals ignores case, file size and duration, but the database can hold songs
+  that differ only in those, so indexes that must tell them apart use this instead
+ */
+final class ExactSongKey {
+  private final Song song;
+  private final int hash;
+
+  ExactSongKey(Song song) {
+    this.song = song;
+    int h = song.getName().hashCode();
+    h = 31 * h + song.getArtist().hashCode();
+    h = 31 * h + song.getFileSize();
+    this.hash = 31 * h + song.getDuration();
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof ExactSongKey)) return false;
+
+    ExactSongKey k = (ExactSongKey) o;
+    return k.hash == hash && k.song.isSameAs(song);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+}
\ No newline at end of file
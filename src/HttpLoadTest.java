@@ -0,0 +1,133 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+  Load test for SongServer, reporting latency percentiles and throughput
+  Starts a server on a free local port over the given database file, then many clients
+  send a read heavy mix: duration queries, single songs, searches and the odd add
+
+  Usage: java HttpLoadTest <database file> [clients] [requests per client]
+ */
+public class HttpLoadTest {
+  private static final int DEFAULT_CLIENTS = 64;
+  private static final int DEFAULT_REQUESTS = 500;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("Usage: java HttpLoadTest <database file> [clients] [requests per client]");
+      System.exit(1);
+    }
+
+    int clients = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_CLIENTS;
+    int requests = args.length > 2 ? Integer.parseInt(args[2]) : DEFAULT_REQUESTS;
+
+    SongDatabase database = new SongDatabase();
+    database.loadSongs(new File(args[0]));
+    SongServer server = new SongServer(database, new ArrayList<Playlist>(), 0);
+    server.start();
+
+    String base = "http://127.0.0.1:" + server.getPort();
+    System.out.println(String.format("%d songs, %d clients, %d requests each", database.getTotalSongs(), clients, requests));
+
+    //one round to warm up, then the measured one
+    run(base, database.getTotalSongs(), clients, Math.max(1, requests / 10));
+    long start = System.nanoTime();
+    long[] latencies = run(base, database.getTotalSongs(), clients, requests);
+    long elapsed = System.nanoTime() - start;
+    server.stop();
+
+    Arrays.sort(latencies);
+    System.out.println(String.format("Requests: %d in %.2f s (%.0f per second)",
+        latencies.length, elapsed / 1e9, latencies.length / (elapsed / 1e9)));
+    System.out.println(String.format("p50: %.2f ms, p90: %.2f ms, p99: %.2f ms, max: %.2f ms",
+        percentile(latencies, 50), percentile(latencies, 90), percentile(latencies, 99),
+        latencies[latencies.length - 1] / 1e6));
+  }
+
+  /*
+    Runs every client to completion and returns all their latencies in nanoseconds
+   */
+  private static long[] run(final String base, final int songs, int clients, final int requests)
+      throws InterruptedException, ExecutionException {
+    ExecutorService pool = Executors.newFixedThreadPool(clients);
+    List<Future<long[]>> results = new ArrayList<Future<long[]>>();
+    for (int c = 0; c < clients; c++) {
+      final long seed = c;
+      results.add(pool.submit(new Callable<long[]>() {
+        public long[] call() throws IOException {
+          Random random = new Random(seed);
+          long[] latencies = new long[requests];
+          for (int i = 0; i < requests; i++) {
+            String path = nextRequest(random, songs);
+            long start = System.nanoTime();
+            send(base + path, path.startsWith("/songs?name") ? "POST" : "GET");
+            latencies[i] = System.nanoTime() - start;
+          }
+          return latencies;
+        }
+      }));
+    }
+
+    long[] all = new long[clients * requests];
+    int count = 0;
+    for (Future<long[]> result : results) {
+      long[] latencies = result.get();
+      System.arraycopy(latencies, 0, all, count, latencies.length);
+      count += latencies.length;
+    }
+    pool.shutdown();
+    return all;
+  }
+
+  /*
+    70% duration queries, 20% single songs, 9% searches, 1% adds
+   */
+  private static String nextRequest(Random random, int songs) {
+    int roll = random.nextInt(100);
+    if (roll < 70) {
+      String[] orders = { "name", "artist", "size", "duration" };
+      return String.format("/query?duration=%d&order=%s&limit=20", 60 + random.nextInt(20) * 30, orders[random.nextInt(orders.length)]);
+    } else if (roll < 90) {
+      return "/songs/" + (1 + random.nextInt(Math.max(1, songs)));
+    } else if (roll < 99) {
+      return "/search?q=" + random.nextInt(1000) + "&limit=20";
+    }
+    return String.format("/songs?name=Load%%20%d&artist=Tester&duration=%d&fileSize=%d",
+        random.nextLong() & Long.MAX_VALUE, 60 + random.nextInt(600), 1 + random.nextInt(500));
+  }
+
+  private static void send(String url, String method) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod(method);
+    int status = connection.getResponseCode();
+    InputStream in = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+    //read it all so the connection can be reused
+    byte[] buffer = new byte[8192];
+    if (in != null) {
+      while (in.read(buffer) != -1) {
+        //discard
+      }
+      in.close();
+    }
+    if (status >= 500) {
+      throw new IOException("Server error " + status + " for " + url);
+    }
+  }
+
+  private static double percentile(long[] sorted, int percent) {
+    int index = (int) Math.ceil(percent / 100.0 * sorted.length) - 1;
+    return sorted[Math.max(0, index)] / 1e6;
+  }
+}
\ No newline at end of file
@@ -1,22 +1,47 @@
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 public class Interface {
   private static final int OPTION_BACK = 0;
   private static final int DATABASE_EMPTY = -1;
-  private static final int PLAYLISTS_SIZE_INCREMENT = 4;
+
+  //opened at startup if it is in the working directory
+  private static final String STARTUP_SNAPSHOT = "songs" + SnapshotSongStore.EXTENSION;
 
   private final Scanner console;
-  private Playlist[] playlists;
+  private final ResizableArray<Playlist> playlists;
   private final SongDatabase database;
-  private int logicalSize;
+
+  //rule based playlists, kept up to date as the database changes
+  private final SmartPlaylistManager smartPlaylists;
+
+  //undo, redo and named versions for the database and playlists
+  private final EditHistory history;
+
+  //when on, saves are written to disk without making the user wait
+  private boolean backgroundSaving;
+  private Future<SaveReport> pendingSave;
+
+  //feeds songs written to a folder into the database, null when not watching
+  private DirectoryWatcher watcher;
+
+  //ships changes to read replicas in other processes, null when not leading
+  private ReplicationLeader leader;
 
   /*
    * Main entry for the program
+   * Any arguments are run as batch commands instead of showing the menus, see BatchMode
    */
   public static void main(String[] args) {
+    if (args.length > 0) {
+      System.exit(BatchMode.run(args));
+    }
+
     Interface intFace = new Interface();
     intFace.run();
     intFace.close();
@@ -38,15 +63,45 @@ public class Interface {
    */
   public Interface() {
     console = new Scanner(System.in);
-    database = new SongDatabase();
-    playlists = new Playlist[PLAYLISTS_SIZE_INCREMENT];
-    logicalSize = 0;
+    database = openStartupDatabase();
+    playlists = new ResizableArray<Playlist>();
+    smartPlaylists = new SmartPlaylistManager(database);
+    history = new EditHistory(database);
+    backgroundSaving = false;
+    pendingSave = null;
+  }
+
+  /*
+   * Opens the startup snapshot if there is one, otherwise starts with an empty database
+   */
+  private static SongDatabase openStartupDatabase() {
+    File snapshot = new File(System.getProperty("user.dir"), STARTUP_SNAPSHOT);
+    if (snapshot.exists()) {
+      try {
+        long start = System.nanoTime();
+        SongDatabase opened = SongDatabase.openSnapshot(snapshot);
+        System.out.println(String.format("Opened %d songs from %s in %d ms", opened.getTotalSongs(), snapshot.getName(), (System.nanoTime() - start) / 1000000));
+        return opened;
+      } catch (IOException e) {
+        System.out.println("Couldn't open the startup snapshot: " + e.getMessage());
+      }
+    }
+    return new SongDatabase();
   }
 
   /*
    * Deconstructor method. Should be called when finished.
    */
   public void close() {
+    //don't exit while a save is still being written
+    waitForPendingSave();
+    stopWatching();
+    stopLeading();
+    try {
+      database.close();
+    } catch (IOException e) {
+      System.out.println("Couldn't close the database: " + e.getMessage());
+    }
     console.close();
   }
 
@@ -89,6 +144,9 @@ public class Interface {
     String[] options = {
         "[1]: Manage database",
         "[2]: Manage playlists",
+        "[3]: Undo",
+        "[4]: Redo",
+        "[5]: Versions",
         String.format("[%d]: Quit", OPTION_BACK)
     };
 
@@ -106,6 +164,18 @@ public class Interface {
           managePlaylists();
           break;
         }
+        case 3: {
+          undo();
+          break;
+        }
+        case 4: {
+          redo();
+          break;
+        }
+        case 5: {
+          manageVersions();
+          break;
+        }
         case OPTION_BACK: {
           continue;
         }
@@ -115,9 +185,112 @@ public class Interface {
       }
     }
 
+    //give the user a chance to keep any unsaved changes
+    waitForPendingSave();
+    if (database.isModified()) {
+      String[] saveOptions = {
+          "[1]: Save changes",
+          String.format("[%d]: Quit without saving", OPTION_BACK)
+      };
+      if (optionPrompt(saveOptions, "The song database has unsaved changes.") == 1) {
+        saveDatabaseToFile();
+      }
+    }
+
     System.out.println("Thank you for using iToons music!");
   }
 
+  /*
+   * Undoes the last change to the database or playlists
+   */
+  private void undo() {
+    String label = history.getUndoLabel();
+    try {
+      if (history.undo()) {
+        System.out.println(label == null ? "Undid the last change." : "Undid: " + label);
+      } else {
+        System.out.println("There is nothing to undo.");
+      }
+    } catch (IllegalStateException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+
+  /*
+   * Does the last undone change again
+   */
+  private void redo() {
+    String label = history.getRedoLabel();
+    try {
+      if (history.redo()) {
+        System.out.println(label == null ? "Redid the last change." : "Redid: " + label);
+      } else {
+        System.out.println("There is nothing to redo.");
+      }
+    } catch (IllegalStateException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+
+  /*
+   * Names the current state so it can be gone back to later, or goes back to a named one
+   */
+  private void manageVersions() {
+    String[] options = {
+        "[1]: Name this version",
+        "[2]: Go to a named version",
+        String.format("[%d]: Back", OPTION_BACK)
+    };
+
+    int option = -1;
+    while (option != OPTION_BACK) {
+      option = optionPrompt(options);
+      switch (option) {
+        case 1:
+          System.out.println("Enter a name for this version:");
+          String name = console.nextLine().trim();
+          if (name.length() == 0) {
+            System.out.println("Versions need a name.");
+          } else {
+            history.tag(name);
+            System.out.println(String.format("Saved this version as \"%s\".", name));
+          }
+          break;
+        case 2:
+          checkoutVersion();
+          break;
+      }
+    }
+  }
+
+  /*
+   * Lists the named versions and goes to the one chosen
+   */
+  private void checkoutVersion() {
+    List<String> versions = history.getVersions();
+    if (versions.isEmpty()) {
+      System.out.println("There are no named versions.");
+      return;
+    }
+
+    String[] options = new String[versions.size() + 1];
+    for (int i = 0; i < versions.size(); i++) {
+      options[i] = String.format("[%d]: %s", i + 1, versions.get(i));
+    }
+    options[versions.size()] = String.format("[%d]: Back", OPTION_BACK);
+
+    int choice = optionPrompt(options, "Select a version:");
+    if (choice == OPTION_BACK || choice > versions.size()) return;
+
+    String version = versions.get(choice - 1);
+    try {
+      int steps = history.checkout(version);
+      System.out.println(String.format("Went to version \"%s\" (%d changes).", version, steps));
+    } catch (IllegalStateException e) {
+      System.out.println(e.getMessage());
+    }
+  }
+
   /*
    * Removes a song (selected by the user) from the database
    */
@@ -129,22 +302,27 @@ public class Interface {
 
     //song will be null if cancelled or incorrect choice
     if (song != null) {
-      //set the song in the db to null
-      database.removeSong(songNum);
-
-      //then remove from any playlists
-      for (int i = 0; i < logicalSize; i++) {
-        Playlist pl = getPlaylist(i);
-
-        int index;
-        if (pl != null) {
-          do {
-            index = pl.indexOf(song);
-            if (index >= 0) {
-              pl.removeSong(index);
-            }
-          } while (index >= 0);
+      //undone as one change with the playlist removals
+      history.begin("Remove " + song.getName());
+      try {
+        database.removeSong(songNum);
+
+        //then remove from any playlists
+        for (int i = 0; i < playlists.size(); i++) {
+          Playlist pl = getPlaylist(i);
+
+          int index;
+          if (pl != null) {
+            do {
+              index = pl.indexOf(song);
+              if (index >= 0) {
+                pl.removeSong(index);
+              }
+            } while (index >= 0);
+          }
         }
+      } finally {
+        history.end();
       }
 
       System.out.println("Song deleted successfully.");
@@ -181,7 +359,12 @@ public class Interface {
     }
 
     //add to database
-    database.addSong(song);
+    history.begin("Add " + song.getName());
+    try {
+      database.addSong(song);
+    } finally {
+      history.end();
+    }
     System.out.println("Song added successfully");
   }
 
@@ -201,6 +384,9 @@ public class Interface {
         "[1]: Create a playlist",
         "[2]: Manage existing playlist",
         "[3]: Remove a playlist",
+        "[4]: Create a smart playlist",
+        "[5]: View a smart playlist",
+        "[6]: Remove a smart playlist",
         String.format("[%d]: Back", OPTION_BACK)
     };
 
@@ -221,10 +407,102 @@ public class Interface {
         case 3:
           selectAndRemovePlaylist();
           break;
+        case 4:
+          addSmartPlaylist();
+          break;
+        case 5:
+          selectAndViewSmartPlaylist();
+          break;
+        case 6:
+          selectAndRemoveSmartPlaylist();
+          break;
+      }
+    }
+  }
+
+  /*
+    Asks the user for a rule and creates a smart playlist from it
+   */
+  private void addSmartPlaylist() {
+    System.out.println("Artists to include, separated by commas (leave blank for any artist):");
+    String[] artists = console.nextLine().split(",");
+
+    System.out.println("Only include songs shorter than this many seconds (0 for any duration):");
+    int duration = -1;
+    do {
+      try {
+        duration = Integer.parseInt(console.nextLine());
+        if (duration < 0) {
+          System.out.println("Please enter a number of zero or more.");
+        }
+      } catch (Exception e) {
+        //do nothing
       }
+    } while (duration < 0);
+
+    SmartPlaylist smart = smartPlaylists.add(new SmartPlaylist(new SongRule(artists, duration)));
+    database.readLock().lock();
+    try {
+      System.out.println(String.format("Smart playlist created with %d songs.", smart.getPlaylist().getTotalSongs()));
+    } finally {
+      database.readLock().unlock();
     }
   }
 
+  /*
+    Prompts the user to select a smart playlist by index
+   */
+  private int selectSmartPlaylist() {
+    if (smartPlaylists.size() == 0) {
+      System.out.println("There are no smart playlists in the system. You need to create one first.");
+      return -1;
+    }
+
+    String[] options;
+    //smart playlists change under the database's lock
+    database.readLock().lock();
+    try {
+      options = new String[smartPlaylists.size() + 1];
+      for (int i = 0; i < smartPlaylists.size(); i++) {
+        SmartPlaylist smart = smartPlaylists.get(i);
+        Playlist playlist = smart.getPlaylist();
+        options[i] = String.format("[%d]: %s; Songs: %d; Duration (seconds): %d; Size: %dKb", i + 1, smart.getRule(),
+            playlist.getTotalSongs(), playlist.getTotalTime(), playlist.getTotalSize());
+      }
+      options[smartPlaylists.size()] = String.format("[%d]: Cancel", OPTION_BACK);
+    } finally {
+      database.readLock().unlock();
+    }
+
+    int choice = optionPrompt(options, "Choose a smart playlist:") - 1;
+    return choice < smartPlaylists.size() ? choice : -1;
+  }
+
+  private void selectAndViewSmartPlaylist() {
+    int choice = selectSmartPlaylist();
+    if (choice < 0) return;
+
+    Playlist playlist = smartPlaylists.get(choice).getPlaylist();
+    database.readLock().lock();
+    try {
+      if (playlist.getTotalSongs() == 0) {
+        System.out.println("No songs match this smart playlist.");
+      } else {
+        printAllSongs(playlist);
+      }
+    } finally {
+      database.readLock().unlock();
+    }
+  }
+
+  private void selectAndRemoveSmartPlaylist() {
+    int choice = selectSmartPlaylist();
+    if (choice < 0) return;
+
+    smartPlaylists.remove(smartPlaylists.get(choice));
+    System.out.println("Smart playlist removed successfully.");
+  }
+
   /*
     Prompts user to select a playlist
     Which they can then manage using the provided menu
@@ -250,7 +528,7 @@ public class Interface {
    * Returns the amount of playlists currently in the system
    */
   private int getTotalPlaylists() {
-    return logicalSize;
+    return playlists.size();
   }
 
   /*
@@ -259,69 +537,28 @@ public class Interface {
   */
   private Playlist addPlaylist() {
     Playlist newPlaylist = new Playlist();
-
-    //we need to expand the array ie. there are no spots left
-    if (logicalSize >= playlists.length) {
-      //get original size so we know where to put new song
-      int origSize = playlists.length;
-
-      //expand the array
-      playlists = resizeArray(true, playlists);
-      setPlaylist(origSize, newPlaylist);
-    }
-    //we have spots left. find the first empty spot and fill it
-    else {
-      int index = indexOfFirstEmptyPlaylist();
-      setPlaylist(index, newPlaylist);
-    }
-    logicalSize++;
+    addPlaylist(newPlaylist);
 
     System.out.println("Playlist created successfully.");
     return newPlaylist;
   }
 
   /*
-    Finds index of first empty playlist in playlist array
-   */
-  private int indexOfFirstEmptyPlaylist() {
-    //reverse loop because there will only be at most 4 empty slots at the end of the array
-    for (int i = playlists.length - 1; i >= 0; i--) {
-      if (playlists[i] != null) {
-        return i + 1;
+    Adds a playlist to the end of the list, undoably
+    Changes to its songs are recorded in the history from now on
+  */
+  private void addPlaylist(final Playlist pl) {
+    playlists.add(pl);
+    history.watch(pl);
+    history.record(new EditHistory.Edit() {
+      public void undo() {
+        playlists.remove(indexOfPlaylist(pl));
       }
-    }
-
-    return 0;
-  }
-
-  /*
-    Resizes playlist array
-   */
-  private Playlist[] resizeArray(boolean expanding, Playlist[] arr) {
-    if (expanding) {
-      //increase size by set increment
-      int newSize = arr.length + PLAYLISTS_SIZE_INCREMENT;
-
-      //create new expanded array
-      Playlist[] expandedArray = new Playlist[newSize];
 
-      //copy old contents to new array
-      System.arraycopy(arr, 0, expandedArray, 0, arr.length);
-
-      return expandedArray;
-    } else {
-      //we are making the array smaller
-      int halfSize = arr.length / 2;
-      int newSize = halfSize > PLAYLISTS_SIZE_INCREMENT ? halfSize : PLAYLISTS_SIZE_INCREMENT;
-
-      //create new contracted array
-      Playlist[] smallArray = new Playlist[newSize];
-
-      //copy old contents to new array
-      System.arraycopy(arr, 0, smallArray, 0, smallArray.length);
-
-      return smallArray;
-    }
+      public void redo() {
+        playlists.add(pl);
+      }
+    });
   }
 
   /*
@@ -333,6 +570,9 @@ public class Interface {
         "[2]: Add Song To Playlist",
         "[3]: Remove Song From Playlist",
         "[4]: Remove Playlist",
+        "[5]: Insert Song At Position",
+        "[6]: Move Song",
+        "[7]: Shuffle Playlist",
         String.format("[%d]: Back", OPTION_BACK)
     };
 
@@ -359,6 +599,15 @@ public class Interface {
         case 4:
           removePlaylist(pl);
           return; //we can no longer manage this playlist as it's deleted
+        case 5:
+          insertSongIntoPlaylist(pl);
+          break;
+        case 6:
+          moveSongInPlaylist(pl);
+          break;
+        case 7:
+          shufflePlaylist(pl);
+          break;
       }
     }
   }
@@ -375,7 +624,73 @@ public class Interface {
     Song song = database.getSong(songNum);
 
     //the enum PlaylistActionState informs us of the method result
-    Playlist.PlaylistActionState result = pl.addSong(song);
+    printPlaylistResult(pl.addSong(song));
+  }
+
+  /*
+   * Will attempt to add a song (which is selected by the user) at a position chosen by the user
+   */
+  private void insertSongIntoPlaylist(Playlist pl) {
+    //song selection
+    int songNum = selectSongFromDatabase(database, "Select a song to add to the playlist:");
+    if (songNum < 0) {
+      return;
+    }
+    Song song = database.getSong(songNum);
+
+    System.out.println(String.format("Enter the position to insert at (1 - %d):", pl.getTotalSongs() + 1));
+    int position = getPositionFromUser(pl.getTotalSongs() + 1);
+    printPlaylistResult(pl.insertSong(position - 1, song));
+  }
+
+  /*
+   * Moves a song (selected by the user) to a new position in the playlist
+   */
+  private void moveSongInPlaylist(Playlist pl) {
+    int songNum = selectSong(pl);
+    if (pl.getSong(songNum) == null) {
+      return;
+    }
+
+    System.out.println(String.format("Enter the new position (1 - %d):", pl.getTotalSongs()));
+    int position = getPositionFromUser(pl.getTotalSongs());
+    pl.moveSong(songNum, position - 1);
+    System.out.println("Song moved successfully.");
+  }
+
+  /*
+   * Shuffles the playlist, the user can give a seed to get a repeatable order
+   */
+  private void shufflePlaylist(Playlist pl) {
+    System.out.println("Enter a seed number, or leave blank for a random order:");
+    long seed;
+    try {
+      seed = Long.parseLong(console.nextLine().trim());
+    } catch (NumberFormatException e) {
+      seed = System.nanoTime();
+    }
+
+    pl.shuffle(seed);
+    System.out.println(String.format("Playlist shuffled with seed %d.", seed));
+  }
+
+  /*
+   * Reads a position between 1 and max from the user
+   */
+  private int getPositionFromUser(int max) {
+    int position = 0;
+    do try {
+      position = Integer.parseInt(console.nextLine());
+    } catch (Exception e) {
+      //do nothing
+    } while (position < 1 || position > max);
+    return position;
+  }
+
+  /*
+   * Tells the user why a song could not be added to a playlist
+   */
+  private void printPlaylistResult(Playlist.PlaylistActionState result) {
     switch (result) {
       case NO_ERROR:
         break;
@@ -416,7 +731,7 @@ public class Interface {
     System.out.println("File Size (kB):");
     int fileSize = getFileSizeFromUser();
 
-    return new Song(name, artist, fileSize, duration);
+    return new Song(name, artist, fileSize, duration, database.getStringPool());
   }
 
   private int getFileSizeFromUser() {
@@ -460,9 +775,9 @@ public class Interface {
    */
   private int selectPlaylist() {
     //display playlists
-    String[] playlistOption = new String[logicalSize + 1];
+    String[] playlistOption = new String[playlists.size() + 1];
 
-    for (int i = 0; i < logicalSize; i++) {
+    for (int i = 0; i < playlists.size(); i++) {
       //get playlist object
       Playlist playlist = getPlaylist(i);
 
@@ -473,7 +788,7 @@ public class Interface {
       playlistOption[i] = String.format("[%d]: %s", i + 1, details);
     }
 
-    playlistOption[logicalSize] = String.format("[%d]: Cancel", OPTION_BACK);
+    playlistOption[playlists.size()] = String.format("[%d]: Cancel", OPTION_BACK);
     return optionPrompt(playlistOption, "Choose a playlist:") - 1;
   }
 
@@ -481,14 +796,10 @@ public class Interface {
    * Getter for playlist objects by a given index value
    */
   private Playlist getPlaylist(int num) {
-    return playlists[num];
-  }
-
-  /*
-   * Setter for playlist objects by a given index value
-   */
-  private void setPlaylist(int index, Playlist pl) {
-    playlists[index] = pl;
+    if (num < 0 || num >= playlists.size()) {
+      return null;
+    }
+    return playlists.get(num);
   }
 
   //song validation methods
@@ -612,6 +923,7 @@ public class Interface {
     }
 
     int duration = getDurationCeiling();
+    int limit = getResultLimit();
 
     String[] filterOptions = {
         "[1]: Name",
@@ -625,16 +937,16 @@ public class Interface {
       int choice = optionPrompt(filterOptions, "Choose how you would like to order the results:");
       switch (choice) {
         case 1:
-          sortedSongs = database.songsLessThanDurationByName(duration);
+          sortedSongs = limit > 0 ? database.songsLessThanDurationByName(duration, limit) : database.songsLessThanDurationByName(duration);
           break;
         case 2:
-          sortedSongs = database.songsLessThanDurationByArtist(duration);
+          sortedSongs = limit > 0 ? database.songsLessThanDurationByArtist(duration, limit) : database.songsLessThanDurationByArtist(duration);
           break;
         case 3:
-          sortedSongs = database.songsLessThanDurationByFileSize(duration);
+          sortedSongs = limit > 0 ? database.songsLessThanDurationByFileSize(duration, limit) : database.songsLessThanDurationByFileSize(duration);
           break;
         case 4:
-          sortedSongs = database.songsLessThanDurationByDuration(duration);
+          sortedSongs = limit > 0 ? database.songsLessThanDurationByDuration(duration, limit) : database.songsLessThanDurationByDuration(duration);
           break;
         default:
           System.out.println("Invalid choice, please try again.");
@@ -670,6 +982,26 @@ public class Interface {
     return duration;
   }
 
+  /*
+    Asks the user how many results they want to see
+    Returns 0 if all results should be shown
+   */
+  private int getResultLimit() {
+    System.out.println("Enter the maximum number of results to show (0 for all):");
+    int limit = -1;
+    do {
+      try {
+        limit = Integer.parseInt(console.nextLine());
+        if (limit < 0) {
+          System.out.println("Please enter a number of zero or more.");
+        }
+      } catch (Exception e) {
+        //do nothing
+      }
+    } while (limit < 0);
+    return limit;
+  }
+
   /*
    * Prompts user to select playlist which will then be removed
    */
@@ -693,28 +1025,18 @@ public class Interface {
   /*
    * Removes the given playlist.
    */
-  private void removePlaylist(Playlist pl) {
-    int index = indexOfPlaylist(pl);
-    //set playlist to null
-    playlists[index] = null;
-
-    //update logicalSize
-    logicalSize--;
-
-    //move null index item to the end
-    for (int i = index; i < playlists.length; i++) {
-      if (playlists.length == i + 1 || playlists[i + 1] == null) {
-        return;
+  private void removePlaylist(final Playlist pl) {
+    final int index = indexOfPlaylist(pl);
+    playlists.remove(index);
+    history.record(new EditHistory.Edit() {
+      public void undo() {
+        playlists.insert(index, pl);
       }
 
-      playlists[i] = playlists[i + 1];
-      playlists[i + 1] = null;
-    }
-
-    if (logicalSize < (playlists.length / 2)) {
-      //resize the array
-      playlists = resizeArray(false, playlists);
-    }
+      public void redo() {
+        playlists.remove(index);
+      }
+    });
     System.out.println("Playlist removed successfully.");
   }
 
@@ -722,7 +1044,7 @@ public class Interface {
    * Finds the index of a given playlist. Returns -1 if not found.
    */
   private int indexOfPlaylist(Playlist pl) {
-    for (int i = 0; i < logicalSize; i++) {
+    for (int i = 0; i < playlists.size(); i++) {
       if (pl == getPlaylist(i)) {
         return i;
       }
@@ -740,16 +1062,8 @@ public class Interface {
     //list databases in directory
     File files = new File(System.getProperty("user.dir"));
 
-    //we only want txt files shown
-    FilenameFilter filter = new FilenameFilter() {
-      @Override
-      public boolean accept(File dir, String name) {
-        return name.toLowerCase().endsWith(".txt");
-      }
-    };
-
-    //removes any files from the list that aren't txt
-    File[] fileList = files.listFiles(filter);
+    //removes any files from the list that aren't txt, compressed or not
+    File[] fileList = files.listFiles(DirectoryImport.DATABASE_FILES);
 
     if (fileList.length == 0) {
       System.out.println("No databases found");
@@ -768,7 +1082,19 @@ public class Interface {
     //load it into a file object
     File selectedFile = fileList[selection];
 
-    //pass into song database to load in
+    //pass into song database to load in, the songs and playlists undo as one change
+    history.begin("Load " + selectedFile.getName());
+    try {
+      loadDatabaseAndPlaylists(selectedFile);
+    } finally {
+      history.end();
+    }
+  }
+
+  /*
+    Loads the songs from a database file, and any playlists saved with it
+   */
+  private void loadDatabaseAndPlaylists(File selectedFile) throws ClassNotFoundException, IOException {
     int songsLoaded = database.loadSongs(selectedFile);
     if (songsLoaded > 0) {
       System.out.println(String.format("Loaded %d new songs from %s successfully", songsLoaded, selectedFile));
@@ -776,6 +1102,163 @@ public class Interface {
       System.out.println("No new songs were loaded from the database.");
       System.out.println("Please note that duplicates will not be loaded.");
     }
+
+    //bring back any playlists saved alongside the database
+    PlaylistFile playlistFile = PlaylistFile.forDatabase(selectedFile.getPath());
+    if (playlistFile.getFile().exists()) {
+      List<Playlist> loaded = playlistFile.load(database);
+      for (Playlist pl : loaded) {
+        addPlaylist(pl);
+      }
+      System.out.println(String.format("Loaded %d playlists from %s", loaded.size(), playlistFile.getFile()));
+      if (playlistFile.getMissingSongs() > 0) {
+        System.out.println(String.format("%d playlist songs are no longer in the database and were left out.", playlistFile.getMissingSongs()));
+      }
+      if (playlistFile.getRefusedSongs() > 0) {
+        System.out.println(String.format("%d playlist songs no longer fit their playlist's limits and were left out.", playlistFile.getRefusedSongs()));
+      }
+    }
+  }
+
+  /*
+    Prompts for a folder, then loads every database file under it
+    Files are read side by side, progress is shown as each one is added
+   */
+  private void importDirectory() {
+    System.out.println("Enter the folder to import from (leave blank for the current folder):");
+    String path = console.nextLine().trim();
+    File directory = new File(path.length() == 0 ? System.getProperty("user.dir") : path);
+    if (!directory.isDirectory()) {
+      System.out.println("That folder doesn't exist.");
+      return;
+    }
+
+    long start = System.nanoTime();
+    List<DirectoryImport.FileResult> results;
+    history.begin("Import " + directory.getName());
+    try {
+      results = new DirectoryImport().importInto(database, directory, new DirectoryImport.Progress() {
+        public void fileImported(DirectoryImport.FileResult result, int filesDone, int totalFiles) {
+          if (result.getError() != null) {
+            System.out.println(String.format("[%d/%d] %s: skipped, %s", filesDone, totalFiles, result.getFile(), result.getError()));
+          } else {
+            System.out.println(String.format("[%d/%d] %s: %d new of %d songs", filesDone, totalFiles,
+                result.getFile(), result.getSongsAdded(), result.getSongsRead()));
+          }
+        }
+      });
+    } catch (IOException e) {
+      System.out.println("There was an error importing: " + e.getMessage());
+      return;
+    } finally {
+      history.end();
+    }
+
+    int added = 0;
+    int failed = 0;
+    for (DirectoryImport.FileResult result : results) {
+      added += result.getSongsAdded();
+      if (result.getError() != null) {
+        failed++;
+      }
+    }
+    System.out.println(String.format("Imported %d new songs from %d files in %d ms%s", added, results.size() - failed,
+        (System.nanoTime() - start) / 1000000, failed > 0 ? String.format(", %d files couldn't be read", failed) : ""));
+  }
+
+  /*
+    Prompts for a folder, then adds songs from database files as they are written there
+   */
+  private void startWatching() {
+    System.out.println("Enter the folder to watch (leave blank for the current folder):");
+    String path = console.nextLine().trim();
+    File directory = new File(path.length() == 0 ? System.getProperty("user.dir") : path);
+    if (!directory.isDirectory()) {
+      System.out.println("That folder doesn't exist.");
+      return;
+    }
+
+    DirectoryWatcher started = new DirectoryWatcher(database, directory, new DirectoryWatcher.Listener() {
+      public void songsAdded(File file, int added) {
+        System.out.println(String.format("Added %d new songs from %s", added, file));
+      }
+
+      public void failed(File file, IOException e) {
+        System.out.println(String.format("Couldn't read %s: %s", file, e.getMessage()));
+      }
+    });
+    try {
+      started.start();
+      watcher = started;
+      System.out.println(String.format("Watching %s, new songs will be added as they are written.", directory));
+    } catch (IOException e) {
+      System.out.println("There was an error watching the folder: " + e.getMessage());
+    }
+  }
+
+  /*
+    Prompts for a port, then ships every change to follower processes that connect to it
+    Followers are started with: java Interface "follow <port>" "serve <http port>"
+   */
+  private void startLeading() {
+    System.out.println("Enter the port for replicas to connect to:");
+    int port;
+    try {
+      port = Integer.parseInt(console.nextLine().trim());
+    } catch (NumberFormatException e) {
+      System.out.println("That isn't a port number.");
+      return;
+    }
+
+    try {
+      ReplicationLeader started = new ReplicationLeader(database, port);
+      started.start();
+      leader = started;
+      System.out.println(String.format("Replicas can follow this database on port %d.", leader.getPort()));
+    } catch (IOException e) {
+      System.out.println("Couldn't listen for replicas: " + e.getMessage());
+    } catch (IllegalArgumentException e) {
+      System.out.println("That isn't a port number.");
+    }
+  }
+
+  private void stopLeading() {
+    if (leader == null) return;
+
+    try {
+      int followers = leader.getFollowerCount();
+      leader.stop();
+      System.out.println(String.format("Stopped sharing, %d replicas disconnected.", followers));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    leader = null;
+  }
+
+  private void stopWatching() {
+    if (watcher == null) return;
+
+    try {
+      watcher.stop();
+      System.out.println(String.format("Stopped watching %s", watcher.getDirectory()));
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    watcher = null;
+  }
+
+  /*
+    Saves every playlist next to the given database file
+   */
+  private void savePlaylists(String databasePath) throws IOException {
+    List<Playlist> all = new ArrayList<Playlist>(playlists.size());
+    for (int i = 0; i < playlists.size(); i++) {
+      all.add(playlists.get(i));
+    }
+
+    PlaylistFile playlistFile = PlaylistFile.forDatabase(databasePath);
+    playlistFile.save(all);
+    System.out.println(String.format("Saved %d playlists to %s", all.size(), playlistFile.getFile()));
   }
 
   /*
@@ -783,7 +1266,7 @@ public class Interface {
     Will prompt user for filename
    */
   private void saveDatabaseToFile() {
-    System.out.println("Enter name of database (extension will be added automatically):");
+    System.out.println("Enter name of database (extension will be added automatically, end it with .gz to compress):");
     String fileName = console.nextLine();
 
     //get the application path
@@ -791,15 +1274,75 @@ public class Interface {
     //save to file in application directory
     try {
       String destination = String.format("%s/%s", appPath, fileName);
-      boolean saveResult = database.saveToFile(destination);
-      if (saveResult) {
-        System.out.println(String.format("Database saved successfully to %s successfully", destination));
+      if (backgroundSaving) {
+        //finish the previous save first so they can't complete out of order
+        waitForPendingSave();
+        pendingSave = database.saveToFileInBackground(destination);
+        System.out.println(String.format("Saving to %s in the background.", destination));
+      } else {
+        printSaveReport(database.saveToFile(destination));
       }
+      savePlaylists(destination);
     } catch (IOException e) {
       System.out.println("There was an error saving database to file: " + e.getMessage());
     }
   }
 
+  /*
+    Writes the songs to the snapshot that is opened the next time the program starts
+   */
+  private void saveStartupSnapshot() {
+    File snapshot = new File(System.getProperty("user.dir"), STARTUP_SNAPSHOT);
+    try {
+      long bytes = database.saveSnapshot(snapshot);
+      System.out.println(String.format("Saved %d songs (%d bytes) to %s, they will be opened at startup.", database.getTotalSongs(), bytes, snapshot));
+    } catch (IOException e) {
+      System.out.println("There was an error saving the snapshot: " + e.getMessage());
+    }
+  }
+
+  /*
+    Tells the user what a save actually wrote
+   */
+  private void printSaveReport(SaveReport report) {
+    switch (report.getMode()) {
+      case SKIPPED:
+        System.out.println(String.format("No changes since %s was last saved, nothing written.", report.getFilePath()));
+        break;
+      case APPENDED:
+        System.out.println(String.format("Appended %d new songs (%d bytes) to %s successfully", report.getSongsWritten(), report.getBytesWritten(), report.getFilePath()));
+        break;
+      case REWRITTEN:
+        System.out.println(String.format("Database saved successfully to %s (%d songs, %d bytes)", report.getFilePath(), report.getSongsWritten(), report.getBytesWritten()));
+        break;
+    }
+  }
+
+  /*
+    Reports on a finished background save, if there is one
+   */
+  private void checkPendingSave() {
+    if (pendingSave != null && pendingSave.isDone()) {
+      waitForPendingSave();
+    }
+  }
+
+  /*
+    Waits for any background save to finish and reports on it
+   */
+  private void waitForPendingSave() {
+    if (pendingSave == null) return;
+
+    try {
+      printSaveReport(pendingSave.get());
+    } catch (ExecutionException e) {
+      System.out.println("There was an error saving database to file: " + e.getCause().getMessage());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    pendingSave = null;
+  }
+
   /*
     Manage database
    */
@@ -812,11 +1355,19 @@ public class Interface {
         "[5]: Save to file",
         "[6]: List Songs By Duration",
         "[7]: List All Songs",
+        "[8]: Toggle background saving",
+        "[9]: Save startup snapshot",
+        "[10]: Find duplicates",
+        "[11]: Import every database in a folder",
+        "[12]: Watch a folder for new songs (on/off)",
+        "[13]: Show statistics",
+        "[14]: Share with read replicas (on/off)",
         String.format("[%d]: Back", OPTION_BACK)
     };
 
     int option = -1;
     while (option != OPTION_BACK) {
+      checkPendingSave();
       option = optionPrompt(options);
       switch (option) {
         case 1:
@@ -844,8 +1395,131 @@ public class Interface {
         case 7:
           listAllSongsInDatabase();
           break;
+        case 8:
+          backgroundSaving = !backgroundSaving;
+          System.out.println(backgroundSaving ? "Background saving is on." : "Background saving is off.");
+          break;
+        case 9:
+          saveStartupSnapshot();
+          break;
+        case 10:
+          findDuplicates();
+          break;
+        case 11:
+          importDirectory();
+          break;
+        case 12:
+          if (watcher != null) {
+            stopWatching();
+          } else {
+            startWatching();
+          }
+          break;
+        case 13:
+          printStatistics();
+          break;
+        case 14:
+          if (leader != null) {
+            stopLeading();
+          } else {
+            startLeading();
+          }
+          break;
+      }
+    }
+  }
+
+  /*
+    Lists songs that look like the same song entered differently,
+    then offers to merge each group into its first song
+   */
+  private void findDuplicates() {
+    List<DuplicateFinder.Cluster> clusters = new DuplicateFinder().find(database);
+    if (clusters.isEmpty()) {
+      System.out.println("No duplicates found.");
+      return;
+    }
+
+    StringBuilder listing = new StringBuilder();
+    int duplicates = 0;
+    for (int c = 0; c < clusters.size(); c++) {
+      DuplicateFinder.Cluster cluster = clusters.get(c);
+      listing.append(String.format("Group %d:", c + 1)).append(System.lineSeparator());
+      for (int member = 0; member < cluster.size(); member++) {
+        listing.append("  ").append(songDetailsWithIndex(cluster.getSong(member), cluster.getIndex(member) + 1)).append(System.lineSeparator());
+      }
+      duplicates += cluster.size() - 1;
+    }
+    System.out.print(listing);
+
+    String[] options = {
+        "[1]: Merge them, keeping the first song of each group",
+        String.format("[%d]: Leave them", OPTION_BACK)
+    };
+    if (optionPrompt(options, String.format("Found %d duplicates in %d groups.", duplicates, clusters.size())) != 1) {
+      return;
+    }
+
+    List<Playlist> all = new ArrayList<Playlist>(playlists.size());
+    for (int i = 0; i < playlists.size(); i++) {
+      if (getPlaylist(i) != null) {
+        all.add(getPlaylist(i));
+      }
+    }
+    history.begin("Merge duplicates");
+    try {
+      int removed = DuplicateFinder.merge(database, all, clusters);
+      System.out.println(String.format("Merged %d duplicates, playlists now use the kept songs.", removed));
+    } catch (IllegalStateException e) {
+      System.out.println("The database changed while looking for duplicates, please try again.");
+    } finally {
+      history.end();
+    }
+  }
+
+  /*
+    Prints counts, totals, percentiles, the spread of durations and sizes, and the biggest artists
+    The figures are kept up to date by the database, so this doesn't go through the songs
+   */
+  private void printStatistics() {
+    CatalogueStats stats = database.getStats();
+    if (stats.getSongCount() == 0) {
+      System.out.println("The database is empty.");
+      return;
+    }
+
+    StringBuilder report = new StringBuilder();
+    String newLine = System.lineSeparator();
+    report.append(String.format("%d songs by %d artists, %d seconds and %d kB in total", stats.getSongCount(),
+        stats.getArtistCount(), stats.getTotalDuration(), stats.getTotalFileSize())).append(newLine);
+    report.append(String.format("Duration (seconds): min %d, median %d, 90%% %d, 99%% %d, max %d, mean %.1f",
+        stats.getMinDuration(), stats.durationQuantile(0.5), stats.durationQuantile(0.9), stats.durationQuantile(0.99),
+        stats.getMaxDuration(), stats.getMeanDuration())).append(newLine);
+    report.append(String.format("File size (kB): min %d, median %d, 90%% %d, 99%% %d, max %d, mean %.1f",
+        stats.getMinFileSize(), stats.fileSizeQuantile(0.5), stats.fileSizeQuantile(0.9), stats.fileSizeQuantile(0.99),
+        stats.getMaxFileSize(), stats.getMeanFileSize())).append(newLine);
+
+    report.append("Songs by duration (seconds):").append(newLine);
+    for (int range = 0; range < Distribution.RANGES; range++) {
+      if (stats.getDurationRangeCount(range) > 0) {
+        report.append(String.format("  %d-%d: %d", Distribution.getRangeLow(range), Distribution.getRangeHigh(range),
+            stats.getDurationRangeCount(range))).append(newLine);
+      }
+    }
+    report.append("Songs by file size (kB):").append(newLine);
+    for (int range = 0; range < Distribution.RANGES; range++) {
+      if (stats.getFileSizeRangeCount(range) > 0) {
+        report.append(String.format("  %d-%d: %d", Distribution.getRangeLow(range), Distribution.getRangeHigh(range),
+            stats.getFileSizeRangeCount(range))).append(newLine);
       }
     }
+
+    report.append("Artists with the most songs:").append(newLine);
+    List<CatalogueStats.ArtistCount> top = stats.getTopArtists(10);
+    for (int i = 0; i < top.size(); i++) {
+      report.append(String.format("  [%d] %s: %d", i + 1, top.get(i).getArtist(), top.get(i).getSongs())).append(newLine);
+    }
+    System.out.print(report);
   }
 
   /*
@@ -855,7 +1529,6 @@ public class Interface {
     int songChoice = selectSongFromDatabase(database, "Select which song you would like to edit:");
     if (songChoice == OPTION_BACK - 1) return;
 
-    Song song = database.getSong(songChoice);
     String[] editOptions = {
         "[1]: Name",
         "[2]: Artist",
@@ -865,32 +1538,61 @@ public class Interface {
     int editChoice = -1;
     while (editChoice != OPTION_BACK) {
       editChoice = optionPrompt(editOptions, "What would you like to edit?");
+
+      //each edit replaces the song with a new copy
+      Song current = database.getSong(songChoice);
       switch (editChoice) {
         case OPTION_BACK:
           return;
         case 1:
           System.out.println("Enter a new name:");
           String name = getNameFromUser();
-          song.setName(name);
+          history.begin("Rename " + current.getName());
+          try {
+            replaceSongInPlaylists(current, database.setSongName(songChoice, name));
+          } finally {
+            history.end();
+          }
           System.out.println("Name updated successfully.");
           break;
         case 2:
           System.out.println("Enter new artist name:");
           String artist = getArtistFromUser();
-          song.setArtist(artist);
+          history.begin("Change the artist of " + current.getName());
+          try {
+            replaceSongInPlaylists(current, database.setSongArtist(songChoice, artist));
+          } finally {
+            history.end();
+          }
           System.out.println("Artist updated successfully.");
           break;
       }
     }
   }
 
+  /*
+    Songs are edited by replacing them with a copy,
+    so playlists need to be pointed at the new copy
+   */
+  private void replaceSongInPlaylists(Song song, Song replacement) {
+    for (int i = 0; i < playlists.size(); i++) {
+      Playlist pl = getPlaylist(i);
+      if (pl != null) {
+        pl.replaceSong(song, replacement);
+      }
+    }
+  }
+
   /*
     Prints all the songs in the database to the console
     Ordered by index
    */
   private void listAllSongsInDatabase() {
+    //build the whole listing first so the console is written once
+    StringBuilder listing = new StringBuilder();
     for (int i = 0; i < database.getTotalSongs(); i++) {
-      System.out.println(songDetailsWithIndex(database.getSong(i), i + 1));
+      listing.append(songDetailsWithIndex(database.getSong(i), i + 1)).append(System.lineSeparator());
     }
+    System.out.print(listing);
   }
 }
\ No newline at end of file
@@ -0,0 +1,280 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Song storage that leaves songs in their database file until they are needed
+  Loading only records where each song starts and how long it is, so duration
+  filters never touch the file. Songs are read back when asked for and kept in a
+  bounded least recently used cache, so memory stays flat however big the file is
+
+  Only one uncompressed file can back the store. Songs added or edited after loading
+  are kept in memory. The file is held open, so saving over it with an atomic
+  replace or an append doesn't move any of the records we point at, until close
+ */
+public class LazySongStore implements SongStore, Closeable {
+  public static final int DEFAULT_CACHE_SIZE = 10000;
+
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int READ_SIZE = 512;
+
+  //where each song is: an offset into the file, or for songs held in memory, -1 - their slot
+  private long[] refs;
+  private int[] durations;
+  private int logicalSize;
+
+  //songs added or edited since loading
+  private final List<Song> held;
+
+  //slots in held let go of by edits and removals, reused before held grows
+  private int[] freeSlots;
+  private int freeCount;
+
+  private File file;
+  private Object fileKey;
+  private FileChannel channel;
+  private Charset charset;
+
+  //songs read from the file recently, by offset
+  private final LinkedHashMap<Long, Song> cache;
+
+  public LazySongStore() {
+    this(DEFAULT_CACHE_SIZE);
+  }
+
+  public LazySongStore(final int cacheSize) {
+    refs = new long[INITIAL_CAPACITY];
+    durations = new int[INITIAL_CAPACITY];
+    logicalSize = 0;
+    held = new ArrayList<Song>();
+    freeSlots = new int[16];
+    cache = new LinkedHashMap<Long, Song>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Long, Song> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /*
+    Makes the given file the one records are read from
+    Returns false if a different file already backs the store, including a new
+    file saved over the old one's path
+   */
+  public boolean attach(File dataFile) throws IOException {
+    Object key = Files.readAttributes(dataFile.toPath(), BasicFileAttributes.class).fileKey();
+    if (file != null) {
+      return fileKey != null && fileKey.equals(key);
+    }
+
+    channel = new RandomAccessFile(dataFile, "r").getChannel();
+    file = dataFile;
+    fileKey = key;
+    //same charset the database writes with
+    charset = Charset.defaultCharset();
+    return true;
+  }
+
+  /*
+    Adds a song that is still in the attached file, without reading it
+   */
+  public void addRecord(long offset, int duration) {
+    ensureCapacity();
+    refs[logicalSize] = offset;
+    durations[logicalSize] = duration;
+    logicalSize++;
+  }
+
+  public int size() {
+    return logicalSize;
+  }
+
+  public Song get(int index) {
+    checkIndex(index);
+    long ref = refs[index];
+    if (ref < 0) {
+      return held.get((int) (-1 - ref));
+    }
+
+    synchronized (cache) {
+      Song song = cache.get(ref);
+      if (song != null) {
+        return song;
+      }
+    }
+
+    //read outside the lock, positional reads are safe from many threads
+    Song song = readRecord(ref);
+    synchronized (cache) {
+      cache.put(ref, song);
+    }
+    return song;
+  }
+
+  public int getDuration(int index) {
+    checkIndex(index);
+    return durations[index];
+  }
+
+  public void add(Song song) {
+    ensureCapacity();
+    refs[logicalSize] = hold(song);
+    durations[logicalSize] = song.getDuration();
+    logicalSize++;
+  }
+
+  public void insert(int index, Song song) {
+    if (index != logicalSize) {
+      checkIndex(index);
+    }
+    ensureCapacity();
+    System.arraycopy(refs, index, refs, index + 1, logicalSize - index);
+    System.arraycopy(durations, index, durations, index + 1, logicalSize - index);
+    refs[index] = hold(song);
+    durations[index] = song.getDuration();
+    logicalSize++;
+  }
+
+  public void set(int index, Song song) {
+    checkIndex(index);
+    release(refs[index]);
+    refs[index] = hold(song);
+    durations[index] = song.getDuration();
+  }
+
+  public void remove(int index) {
+    checkIndex(index);
+    release(refs[index]);
+    System.arraycopy(refs, index + 1, refs, index, logicalSize - index - 1);
+    System.arraycopy(durations, index + 1, durations, index, logicalSize - index - 1);
+    logicalSize--;
+  }
+
+  /*
+    Number of songs currently cached from the file
+   */
+  public int getCachedSongs() {
+    synchronized (cache) {
+      return cache.size();
+    }
+  }
+
+  /*
+    Closes the file, songs still in it can't be read after this
+   */
+  public void close() throws IOException {
+    if (channel != null) {
+      channel.close();
+    }
+    synchronized (cache) {
+      cache.clear();
+    }
+  }
+
+  private long hold(Song song) {
+    if (freeCount > 0) {
+      int slot = freeSlots[--freeCount];
+      held.set(slot, song);
+      return -1 - slot;
+    }
+    held.add(song);
+    return -held.size();
+  }
+
+  /*
+    Lets go of a held song, file records just drop out of the cache in their own time
+   */
+  private void release(long ref) {
+    if (ref < 0) {
+      int slot = (int) (-1 - ref);
+      held.set(slot, null);
+      if (freeCount == freeSlots.length) {
+        freeSlots = Arrays.copyOf(freeSlots, freeCount * 2);
+      }
+      freeSlots[freeCount++] = slot;
+    }
+  }
+
+  /*
+    Songs held in memory, edits and additions that aren't in the file
+   */
+  public int getHeldSongs() {
+    return held.size() - freeCount;
+  }
+
+  private void ensureCapacity() {
+    if (logicalSize == refs.length) {
+      refs = Arrays.copyOf(refs, refs.length * 2);
+      durations = Arrays.copyOf(durations, durations.length * 2);
+    }
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= logicalSize) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+  }
+
+  /*
+    Reads the five lines of the record starting at the given offset
+   */
+  private Song readRecord(long offset) {
+    try {
+      ByteBuffer bytes = ByteBuffer.allocate(READ_SIZE);
+      int[] lineEnds = new int[5];
+      int lines = 0;
+      int scanned = 0;
+      while (lines < lineEnds.length) {
+        if (!bytes.hasRemaining()) {
+          ByteBuffer bigger = ByteBuffer.allocate(bytes.capacity() * 2);
+          bytes.flip();
+          bigger.put(bytes);
+          bytes = bigger;
+        }
+
+        int read = channel.read(bytes, offset + bytes.position());
+        if (read < 0) {
+          //the last line may have no line ending
+          if (lines == lineEnds.length - 1 && scanned > lineEnds[lines - 1] + 1) {
+            lineEnds[lines++] = scanned;
+            break;
+          }
+          throw new IOException("Song record at " + offset + " is cut short");
+        }
+
+        for (; scanned < bytes.position() && lines < lineEnds.length; scanned++) {
+          if (bytes.get(scanned) == '\n') {
+            lineEnds[lines++] = scanned;
+          }
+        }
+      }
+
+      byte[] record = bytes.array();
+      String name = line(record, lineEnds[0] + 1, lineEnds[1]);
+      String artist = line(record, lineEnds[1] + 1, lineEnds[2]);
+      String fileSize = line(record, lineEnds[2] + 1, lineEnds[3]);
+      String duration = line(record, lineEnds[3] + 1, lineEnds[4]);
+      return new Song(name, artist, Integer.parseInt(fileSize.substring(0, fileSize.indexOf('k'))), Integer.parseInt(duration));
+    } catch (IOException e) {
+      throw new IllegalStateException("Couldn't read song from " + file, e);
+    }
+  }
+
+  private String line(byte[] record, int start, int end) {
+    if (end > start && record[end - 1] == '\r') {
+      end--;
+    }
+    return new String(record, start, end - start, charset);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,282 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Song storage outside the Java heap, for catalogues too big for the garbage collector
+  Each song is a fixed width record in a direct buffer, with its name and artist
+  kept in a separate string arena. Song objects are only created when asked for
+ */
+public class OffHeapSongStore implements SongStore {
+  //record layout: name ref, artist ref, file size, duration
+  private static final int NAME_OFFSET = 0;
+  private static final int ARTIST_OFFSET = 8;
+  private static final int FILE_SIZE_OFFSET = 16;
+  private static final int DURATION_OFFSET = 20;
+  private static final int RECORD_SIZE = 24;
+  private static final int MAX_RECORDS = Integer.MAX_VALUE / RECORD_SIZE;
+
+  private static final int INITIAL_RECORDS = 1024;
+  private static final int ARENA_CHUNK_SIZE = 1 << 22;
+
+  //artists repeat a lot, so the arena stores each one once, up to this many
+  private static final int MAX_SHARED_ARTISTS = 1 << 16;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private ByteBuffer records;
+  private int logicalSize;
+
+  //string arena, refs are the chunk number in the high half and the position in the low half
+  private List<ByteBuffer> arena;
+  private long arenaBytes;
+  private long garbageBytes;
+  private Map<String, Long> sharedArtists;
+
+  public OffHeapSongStore() {
+    records = allocate(INITIAL_RECORDS * RECORD_SIZE);
+    logicalSize = 0;
+    clearArena();
+  }
+
+  private void clearArena() {
+    arena = new ArrayList<ByteBuffer>();
+    arena.add(allocate(ARENA_CHUNK_SIZE));
+    arenaBytes = 0;
+    garbageBytes = 0;
+    sharedArtists = new HashMap<String, Long>();
+  }
+
+  private static ByteBuffer allocate(int capacity) {
+    return ByteBuffer.allocateDirect(capacity).order(ByteOrder.nativeOrder());
+  }
+
+  public int size() {
+    return logicalSize;
+  }
+
+  /*
+    Creates a Song object for the record at the given index
+   */
+  public Song get(int index) {
+    checkIndex(index);
+    int offset = index * RECORD_SIZE;
+    return new Song(readString(records.getLong(offset + NAME_OFFSET)),
+        readString(records.getLong(offset + ARTIST_OFFSET)),
+        records.getInt(offset + FILE_SIZE_OFFSET),
+        records.getInt(offset + DURATION_OFFSET));
+  }
+
+  /*
+    Reads a duration straight from the record, without creating a Song
+   */
+  public int getDuration(int index) {
+    checkIndex(index);
+    return records.getInt(index * RECORD_SIZE + DURATION_OFFSET);
+  }
+
+  public void add(Song song) {
+    ensureCapacity();
+    writeRecord(logicalSize, song);
+    logicalSize++;
+  }
+
+  /*
+    Puts a record at the given index, moving later records down a place
+   */
+  public void insert(int index, Song song) {
+    if (index < 0 || index > logicalSize) {
+      throw new IndexOutOfBoundsException("Index: " + index);
+    }
+    ensureCapacity();
+
+    //copied from the end backwards, the source and target overlap
+    for (int offset = logicalSize * RECORD_SIZE - 8; offset >= index * RECORD_SIZE; offset -= 8) {
+      records.putLong(offset + RECORD_SIZE, records.getLong(offset));
+    }
+
+    writeRecord(index, song);
+    logicalSize++;
+  }
+
+  /*
+    The buffer goes past the last record, so reads and writes there wouldn't fail on their own
+   */
+  private void checkIndex(int index) {
+    if (index < 0 || index >= logicalSize) {
+      throw new IndexOutOfBoundsException("Index: " + index);
+    }
+  }
+
+  private void ensureCapacity() {
+    //double the record buffer when it's full
+    if ((logicalSize + 1) * RECORD_SIZE > records.capacity()) {
+      if (logicalSize >= MAX_RECORDS) {
+        throw new IllegalStateException("Off-heap song store is full");
+      }
+      int newRecords = (int) Math.min(2L * records.capacity() / RECORD_SIZE, MAX_RECORDS);
+      ByteBuffer expanded = allocate(newRecords * RECORD_SIZE);
+      ByteBuffer old = records.duplicate();
+      old.position(0).limit(logicalSize * RECORD_SIZE);
+      expanded.put(old);
+      records = expanded;
+    }
+  }
+
+  /*
+    Replaces the record at the given index
+   */
+  public void set(int index, Song song) {
+    checkIndex(index);
+    releaseStrings(index);
+    writeRecord(index, song);
+    compactIfWasteful();
+  }
+
+  /*
+    Removes the record at the given index, moving later records up a place
+   */
+  public void remove(int index) {
+    checkIndex(index);
+    releaseStrings(index);
+
+    ByteBuffer later = records.duplicate();
+    later.position((index + 1) * RECORD_SIZE).limit(logicalSize * RECORD_SIZE);
+    ByteBuffer target = records.duplicate();
+    target.position(index * RECORD_SIZE);
+    target.put(later);
+
+    logicalSize--;
+    compactIfWasteful();
+  }
+
+  private void writeRecord(int index, Song song) {
+    int offset = index * RECORD_SIZE;
+    records.putLong(offset + NAME_OFFSET, writeString(song.getName()));
+    records.putLong(offset + ARTIST_OFFSET, writeArtist(song.getArtist()));
+    records.putInt(offset + FILE_SIZE_OFFSET, song.getFileSize());
+    records.putInt(offset + DURATION_OFFSET, song.getDuration());
+  }
+
+  /*
+    Artists are shared between records, so only names are freed straight away
+   */
+  private void releaseStrings(int index) {
+    long ref = records.getLong(index * RECORD_SIZE + NAME_OFFSET);
+    garbageBytes += 4 + stringChunk(ref).getInt(stringPosition(ref));
+  }
+
+  private long writeArtist(String artist) {
+    Long shared = sharedArtists.get(artist);
+    if (shared != null) {
+      return shared;
+    }
+
+    long ref = writeString(artist);
+    if (sharedArtists.size() < MAX_SHARED_ARTISTS) {
+      sharedArtists.put(artist, ref);
+    }
+    return ref;
+  }
+
+  /*
+    Appends a length prefixed string to the arena and returns its ref
+   */
+  private long writeString(String value) {
+    byte[] bytes = value.getBytes(UTF_8);
+    if (bytes.length + 4 > ARENA_CHUNK_SIZE) {
+      throw new IllegalArgumentException("String too long to store: " + value.length() + " characters");
+    }
+
+    ByteBuffer chunk = arena.get(arena.size() - 1);
+    if (chunk.remaining() < bytes.length + 4) {
+      chunk = allocate(ARENA_CHUNK_SIZE);
+      arena.add(chunk);
+    }
+
+    long ref = ((long) (arena.size() - 1) << 32) | chunk.position();
+    chunk.putInt(bytes.length);
+    chunk.put(bytes);
+    arenaBytes += bytes.length + 4;
+    return ref;
+  }
+
+  private String readString(long ref) {
+    ByteBuffer chunk = stringChunk(ref);
+    int position = stringPosition(ref);
+
+    byte[] bytes = new byte[chunk.getInt(position)];
+    ByteBuffer source = chunk.duplicate();
+    source.position(position + 4);
+    source.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  private ByteBuffer stringChunk(long ref) {
+    return arena.get((int) (ref >>> 32));
+  }
+
+  private static int stringPosition(long ref) {
+    return (int) ref;
+  }
+
+  /*
+    Rewrites the arena once more than half of it is names that are no longer used
+   */
+  private void compactIfWasteful() {
+    if (garbageBytes < ARENA_CHUNK_SIZE || garbageBytes * 2 < arenaBytes) return;
+
+    List<ByteBuffer> oldArena = arena;
+    Map<String, Long> oldArtists = sharedArtists;
+    clearArena();
+
+    //copy the raw bytes of every string that is still used, artists only once
+    Map<Long, Long> movedArtists = new HashMap<Long, Long>();
+    for (int i = 0; i < logicalSize; i++) {
+      int offset = i * RECORD_SIZE;
+      records.putLong(offset + NAME_OFFSET, copyString(oldArena, records.getLong(offset + NAME_OFFSET)));
+
+      long artistRef = records.getLong(offset + ARTIST_OFFSET);
+      Long moved = movedArtists.get(artistRef);
+      if (moved == null) {
+        moved = copyString(oldArena, artistRef);
+        movedArtists.put(artistRef, moved);
+      }
+      records.putLong(offset + ARTIST_OFFSET, moved);
+    }
+
+    //keep sharing the artists that are still in use
+    for (Map.Entry<String, Long> artist : oldArtists.entrySet()) {
+      Long moved = movedArtists.get(artist.getValue());
+      if (moved != null) {
+        sharedArtists.put(artist.getKey(), moved);
+      }
+    }
+  }
+
+  /*
+    Copies a string from an old arena into the current one and returns its new ref
+   */
+  private long copyString(List<ByteBuffer> oldArena, long ref) {
+    ByteBuffer chunk = oldArena.get((int) (ref >>> 32));
+    int position = stringPosition(ref);
+    int length = chunk.getInt(position) + 4;
+
+    ByteBuffer target = arena.get(arena.size() - 1);
+    if (target.remaining() < length) {
+      target = allocate(ARENA_CHUNK_SIZE);
+      arena.add(target);
+    }
+
+    long newRef = ((long) (arena.size() - 1) << 32) | target.position();
+    ByteBuffer source = chunk.duplicate();
+    source.position(position).limit(position + length);
+    target.put(source);
+    arenaBytes += length;
+    return newRef;
+  }
+}
\ No newline at end of file
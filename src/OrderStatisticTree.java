@@ -0,0 +1,254 @@
+import java.util.Random;
+
+/*
+  List backed by a randomised balanced tree (an implicit treap)
+  Each node knows the size of its subtree, so getting, inserting and removing
+  by position are all O(log n) on average, and so is finding the position of a node
+ */
+public class OrderStatisticTree<T> {
+  /*
+    Handle to an item in the tree, stays valid while the item is in the tree
+   */
+  public static final class Node<T> {
+    private T value;
+    private final int priority;
+    private int size;
+    private Node<T> left;
+    private Node<T> right;
+    private Node<T> parent;
+
+    private Node(T value, int priority) {
+      this.value = value;
+      this.priority = priority;
+      this.size = 1;
+    }
+
+    public T getValue() {
+      return value;
+    }
+
+    public void setValue(T value) {
+      this.value = value;
+    }
+  }
+
+  private final Random random;
+  private Node<T> root;
+
+  public OrderStatisticTree() {
+    random = new Random();
+    root = null;
+  }
+
+  public int size() {
+    return size(root);
+  }
+
+  public void clear() {
+    root = null;
+  }
+
+  public T get(int index) {
+    return nodeAt(index).value;
+  }
+
+  /*
+    Finds the node at the given position
+   */
+  public Node<T> nodeAt(int index) {
+    checkIndex(index, size());
+
+    Node<T> node = root;
+    while (true) {
+      int leftSize = size(node.left);
+      if (index < leftSize) {
+        node = node.left;
+      } else if (index == leftSize) {
+        return node;
+      } else {
+        index -= leftSize + 1;
+        node = node.right;
+      }
+    }
+  }
+
+  /*
+    Current position of the given node
+   */
+  public int indexOf(Node<T> node) {
+    int index = size(node.left);
+    while (node.parent != null) {
+      if (node == node.parent.right) {
+        index += size(node.parent.left) + 1;
+      }
+      node = node.parent;
+    }
+    return index;
+  }
+
+  public Node<T> add(T value) {
+    return insert(size(), value);
+  }
+
+  /*
+    Inserts the value so it ends up at the given position
+   */
+  public Node<T> insert(int index, T value) {
+    checkIndex(index, size() + 1);
+
+    Node<T> node = new Node<T>(value, random.nextInt());
+    insertNode(index, node);
+    return node;
+  }
+
+  public T remove(int index) {
+    return remove(nodeAt(index));
+  }
+
+  public T remove(Node<T> node) {
+    int index = indexOf(node);
+    Node<T>[] parts = split(root, index);
+    Node<T>[] rest = split(parts[1], 1);
+    setRoot(merge(parts[0], rest[1]));
+    return node.value;
+  }
+
+  /*
+    Moves the item at one position to another, keeping the same node
+   */
+  public void move(int from, int to) {
+    checkIndex(to, size());
+
+    Node<T> node = nodeAt(from);
+    remove(node);
+    node.left = null;
+    node.right = null;
+    node.parent = null;
+    node.size = 1;
+    insertNode(to, node);
+  }
+
+  /*
+    Puts the items in a random order decided by the seed, keeping the same nodes
+   */
+  public void shuffle(long seed) {
+    Node<T>[] nodes = toNodeArray();
+
+    //Fisher-Yates shuffle
+    Random shuffler = new Random(seed);
+    for (int i = nodes.length - 1; i > 0; i--) {
+      int j = shuffler.nextInt(i + 1);
+      Node<T> temp = nodes[i];
+      nodes[i] = nodes[j];
+      nodes[j] = temp;
+    }
+
+    root = null;
+    for (Node<T> node : nodes) {
+      node.left = null;
+      node.right = null;
+      node.parent = null;
+      node.size = 1;
+      setRoot(merge(root, node));
+    }
+  }
+
+  private void insertNode(int index, Node<T> node) {
+    Node<T>[] parts = split(root, index);
+    setRoot(merge(merge(parts[0], node), parts[1]));
+  }
+
+  /*
+    Arrays can't be created with a type parameter, so this is the one unchecked cast
+   */
+  @SuppressWarnings("unchecked")
+  private static <T> Node<T>[] newNodes(int length) {
+    return (Node<T>[]) new Node<?>[length];
+  }
+
+  /*
+    Nodes in order, collected without recursion so deep trees can't overflow the stack
+   */
+  private Node<T>[] toNodeArray() {
+    Node<T>[] nodes = newNodes(size());
+    Node<T>[] stack = newNodes(size());
+    int depth = 0;
+    int count = 0;
+    Node<T> node = root;
+    while (node != null || depth > 0) {
+      while (node != null) {
+        stack[depth++] = node;
+        node = node.left;
+      }
+      node = stack[--depth];
+      nodes[count++] = node;
+      node = node.right;
+    }
+    return nodes;
+  }
+
+  /*
+    Splits a tree into the first count items and the rest
+   */
+  private Node<T>[] split(Node<T> node, int count) {
+    if (node == null) {
+      return newNodes(2);
+    }
+
+    if (size(node.left) < count) {
+      Node<T>[] parts = split(node.right, count - size(node.left) - 1);
+      node.right = parts[0];
+      update(node);
+      parts[0] = node;
+      return parts;
+    } else {
+      Node<T>[] parts = split(node.left, count);
+      node.left = parts[1];
+      update(node);
+      parts[1] = node;
+      return parts;
+    }
+  }
+
+  /*
+    Joins two trees, every item in the first one comes before the second
+   */
+  private Node<T> merge(Node<T> first, Node<T> second) {
+    if (first == null) return second;
+    if (second == null) return first;
+
+    if (first.priority > second.priority) {
+      first.right = merge(first.right, second);
+      update(first);
+      return first;
+    } else {
+      second.left = merge(first, second.left);
+      update(second);
+      return second;
+    }
+  }
+
+  /*
+    Fixes up the size and child links of a node after its children have changed
+   */
+  private void update(Node<T> node) {
+    node.size = 1 + size(node.left) + size(node.right);
+    if (node.left != null) node.left.parent = node;
+    if (node.right != null) node.right.parent = node;
+  }
+
+  private void setRoot(Node<T> node) {
+    root = node;
+    if (root != null) root.parent = null;
+  }
+
+  private static int size(Node<?> node) {
+    return node == null ? 0 : node.size;
+  }
+
+  private static void checkIndex(int index, int bound) {
+    if (index < 0 || index >= bound) {
+      throw new IndexOutOfBoundsException("Index: " + index);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,124 @@
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
+
+/*
+  Fork-join helpers for scanning and sorting large song arrays
+  Both operations give exactly the same result as their sequential versions
+ */
+public class ParallelSongs {
+  //below this many songs a task does its work on the current thread
+  private static final int MIN_CHUNK = 8192;
+
+  private static final ForkJoinPool POOL = new ForkJoinPool();
+
+  /*
+    Returns the songs in the store that are shorter than the given duration
+    Order is kept the same as in the store
+   */
+  public static Song[] shorterThan(SongStore songs, int duration) {
+    return POOL.invoke(new FilterTask(songs, 0, songs.size(), duration));
+  }
+
+  /*
+    Stable sort of the whole array
+    Chunks are sorted with Arrays.sort then merged, so ties keep their order
+   */
+  public static void sort(Song[] songs, Comparator<Song> comparator) {
+    Song[] buffer = new Song[songs.length];
+    POOL.invoke(new SortTask(songs, buffer, 0, songs.length, comparator));
+  }
+
+  private static class FilterTask extends RecursiveTask<Song[]> {
+    private static final long serialVersionUID = 1L;
+
+    private final SongStore songs;
+    private final int from;
+    private final int to;
+    private final int duration;
+
+    FilterTask(SongStore songs, int from, int to, int duration) {
+      this.songs = songs;
+      this.from = from;
+      this.to = to;
+      this.duration = duration;
+    }
+
+    @Override
+    protected Song[] compute() {
+      if (to - from <= MIN_CHUNK) {
+        Song[] matched = new Song[to - from];
+        int count = 0;
+        for (int i = from; i < to; i++) {
+          if (songs.getDuration(i) < duration) {
+            matched[count++] = songs.get(i);
+          }
+        }
+        return Arrays.copyOf(matched, count);
+      }
+
+      int middle = (from + to) >>> 1;
+      FilterTask left = new FilterTask(songs, from, middle, duration);
+      left.fork();
+      Song[] right = new FilterTask(songs, middle, to, duration).compute();
+      Song[] leftResult = left.join();
+
+      //stitch the halves back together in source order
+      Song[] joined = Arrays.copyOf(leftResult, leftResult.length + right.length);
+      System.arraycopy(right, 0, joined, leftResult.length, right.length);
+      return joined;
+    }
+  }
+
+  private static class SortTask extends RecursiveAction {
+    private static final long serialVersionUID = 1L;
+
+    private final Song[] songs;
+    private final Song[] buffer;
+    private final int from;
+    private final int to;
+    private final Comparator<Song> comparator;
+
+    SortTask(Song[] songs, Song[] buffer, int from, int to, Comparator<Song> comparator) {
+      this.songs = songs;
+      this.buffer = buffer;
+      this.from = from;
+      this.to = to;
+      this.comparator = comparator;
+    }
+
+    @Override
+    protected void compute() {
+      if (to - from <= MIN_CHUNK) {
+        Arrays.sort(songs, from, to, comparator);
+        return;
+      }
+
+      int middle = (from + to) >>> 1;
+      invokeAll(new SortTask(songs, buffer, from, middle, comparator),
+          new SortTask(songs, buffer, middle, to, comparator));
+
+      //already in order, nothing to merge
+      if (comparator.compare(songs[middle - 1], songs[middle]) <= 0) return;
+
+      //merge into the buffer, taking from the left half on ties to stay stable
+      System.arraycopy(songs, from, buffer, from, to - from);
+      int left = from, right = middle, out = from;
+      while (left < middle && right < to) {
+        if (comparator.compare(buffer[right], buffer[left]) < 0) {
+          songs[out++] = buffer[right++];
+        } else {
+          songs[out++] = buffer[left++];
+        }
+      }
+      while (left < middle) {
+        songs[out++] = buffer[left++];
+      }
+      while (right < to) {
+        songs[out++] = buffer[right++];
+      }
+    }
+  }
+}
\ No newline at end of file
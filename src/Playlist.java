@@ -1,18 +1,58 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 public class Playlist {
-  private Song[] songs;
-  private int logicalSize;
+  //songs in play order, positional edits are O(log n)
+  private final OrderStatisticTree<Song> songs;
+
+  //where each song is in the tree, so indexOf doesn't need to scan
+  //keyed by exact copy, songs differing only in case are different songs in the database
+  private final Map<ExactSongKey, List<OrderStatisticTree.Node<Song>>> positions;
+
+  //running totals, kept up to date on every change
+  private int totalSize;
+  private int totalTime;
 
   /*
     Constants
-    Values can be accessed outside using getters
+    Default constraints for new playlists
   */
-  private final int MAX_TIME = 60 * 25;
-  private final int MAX_SIZE = 512;
-  private final int SIZE_INCREMENT = 4;
+  public static final int DEFAULT_MAX_TIME = 60 * 25;
+  public static final int DEFAULT_MAX_SIZE = 512;
+
+  //constraints for this playlist
+  //values can be accessed outside using getters
+  private final int maxTime;
+  private final int maxSize;
+
+  //told about every change
+  private final List<PlaylistListener> listeners;
 
   public Playlist() {
-    songs = new Song[SIZE_INCREMENT];
-    logicalSize = 0;
+    this(DEFAULT_MAX_TIME, DEFAULT_MAX_SIZE);
+  }
+
+  /*
+    Playlist with its own maximum total time (seconds) and size (kB)
+  */
+  public Playlist(int maxTime, int maxSize) {
+    this.maxTime = maxTime;
+    this.maxSize = maxSize;
+    songs = new OrderStatisticTree<Song>();
+    positions = new HashMap<ExactSongKey, List<OrderStatisticTree.Node<Song>>>();
+    totalSize = 0;
+    totalTime = 0;
+    listeners = new ArrayList<PlaylistListener>();
+  }
+
+  public void addListener(PlaylistListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(PlaylistListener listener) {
+    listeners.remove(listener);
   }
 
   public enum PlaylistActionState {
@@ -22,35 +62,35 @@ public class Playlist {
   }
 
   /*
-    Add a song to a free spot
+    Add a song to the end of the playlist
   */
   public PlaylistActionState addSong(Song song) {
+    return insertSong(songs.size(), song);
+  }
+
+  /*
+    Add a song so it ends up at the given position
+    Later songs move down a place
+  */
+  public PlaylistActionState insertSong(int index, Song song) {
     //does the song fit within the time constraints?
-    if (getTotalTime() + song.getDuration() > MAX_TIME) {
+    if (getTotalTime() + song.getDuration() > maxTime) {
       return PlaylistActionState.ERROR_MAX_TIME_REACHED;
     }
 
     //does the song fit within the size constraints?
-    if (getTotalSize() + song.getFileSize() > MAX_SIZE) {
+    if (getTotalSize() + song.getFileSize() > maxSize) {
       return PlaylistActionState.ERROR_MAX_SIZE_REACHED;
     }
 
-    //we need to expand the array ie. there are no spots left
-    if (logicalSize >= songs.length) {
-      //get original size so we know where to put new song
-      int origSize = songs.length;
+    OrderStatisticTree.Node<Song> node = songs.insert(index, song);
+    nodesOf(song).add(node);
+    totalSize += song.getFileSize();
+    totalTime += song.getDuration();
 
-      //expand the array
-      songs = resizeArray(true, songs);
-      songs[origSize] = song;
+    for (PlaylistListener listener : listeners) {
+      listener.songInserted(this, index, song);
     }
-    //we have spots left. find the first empty spot and fill it
-    else {
-      int index = indexOfFirstEmpty();
-      songs[index] = song;
-    }
-
-    logicalSize++;
     return PlaylistActionState.NO_ERROR;
   }
 
@@ -60,21 +100,27 @@ public class Playlist {
     Returns null if invalid index
   */
   public Song getSong(int num) {
-    try {
-      return songs[num];
-    } catch (ArrayIndexOutOfBoundsException e) {
+    if (num < 0 || num >= songs.size()) {
       return null;
     }
+    return songs.get(num);
+  }
+
+  /*
+    Constraint getters
+  */
+  public int getMaxTime() {
+    return maxTime;
+  }
+
+  public int getMaxSize() {
+    return maxSize;
   }
 
   /*
     Get the total size of songs in playlist
   */
   public int getTotalSize() {
-    int totalSize = 0;
-    for (int i = 0; i < logicalSize; i++) {
-      totalSize += songs[i].getFileSize();
-    }
     return totalSize;
   }
 
@@ -82,10 +128,6 @@ public class Playlist {
     Get the total time of songs in playlist
   */
   public int getTotalTime() {
-    int totalTime = 0;
-    for (int i = 0; i < logicalSize; i++) {
-      totalTime += songs[i].getDuration();
-    }
     return totalTime;
   }
 
@@ -94,91 +136,166 @@ public class Playlist {
     ignoring nulls
   */
   public int getTotalSongs() {
-    return logicalSize;
+    return songs.size();
   }
 
   /*
     Gets the int index of a song in the playlist
+    Only an exact copy matches, a song differing just in case or size is another song
+    If the song is in the playlist more than once, the first index is returned
     Returns -1 if not found
   */
   public int indexOf(Song song) {
-    for (int i = 0; i < logicalSize; i++) {
-      if (song == songs[i]) {
-        return i;
+    List<OrderStatisticTree.Node<Song>> nodes = positions.get(new ExactSongKey(song));
+    if (nodes == null) {
+      return -1;
+    }
+
+    int first = -1;
+    for (OrderStatisticTree.Node<Song> node : nodes) {
+      int index = songs.indexOf(node);
+      if (first == -1 || index < first) {
+        first = index;
+      }
+    }
+    return first;
+  }
+
+  /*
+    Swaps every occurrence of a song, matched exactly, for its edited copy
+   */
+  public void replaceSong(Song song, Song replacement) {
+    List<OrderStatisticTree.Node<Song>> nodes = positions.remove(new ExactSongKey(song));
+    if (nodes == null) return;
+
+    for (OrderStatisticTree.Node<Song> node : nodes) {
+      Song old = node.getValue();
+      totalSize += replacement.getFileSize() - old.getFileSize();
+      totalTime += replacement.getDuration() - old.getDuration();
+      node.setValue(replacement);
+      nodesOf(replacement).add(node);
+
+      if (!listeners.isEmpty()) {
+        int index = songs.indexOf(node);
+        for (PlaylistListener listener : listeners) {
+          listener.songReplaced(this, index, old, replacement);
+        }
       }
     }
-    return -1;
   }
 
   /*
-    Used to resize songs array
+    Puts the given song in place of the one at the given index
+    Doesn't check the constraints, it is for putting back a song that was there before
    */
-  private Song[] resizeArray(boolean expanding, Song[] arr) {
-    if (expanding) {
-      //increase size by set increment
-      int newSize = arr.length + SIZE_INCREMENT;
+  void setSong(int index, Song song) {
+    OrderStatisticTree.Node<Song> node = songs.nodeAt(index);
+    Song old = node.getValue();
+    ExactSongKey oldKey = new ExactSongKey(old);
+    List<OrderStatisticTree.Node<Song>> nodes = positions.get(oldKey);
+    nodes.remove(node);
+    if (nodes.isEmpty()) {
+      positions.remove(oldKey);
+    }
 
-      //create new expanded array
-      Song[] expandedArray = new Song[newSize];
+    totalSize += song.getFileSize() - old.getFileSize();
+    totalTime += song.getDuration() - old.getDuration();
+    node.setValue(song);
+    nodesOf(song).add(node);
 
-      //copy old contents to new array
-      System.arraycopy(arr, 0, expandedArray, 0, arr.length);
+    for (PlaylistListener listener : listeners) {
+      listener.songReplaced(this, index, old, song);
+    }
+  }
 
-      return expandedArray;
-    } else {
-      //we are making the array smaller
-      int halfSize = arr.length / 2;
-      int newSize = halfSize > SIZE_INCREMENT ? halfSize : SIZE_INCREMENT;
+  /*
+    Moves the song at one position to another
+    Songs in between shift by one place to make room
+   */
+  public void moveSong(int from, int to) {
+    songs.move(from, to);
 
-      //create new contracted array
-      Song[] smallArray = new Song[newSize];
+    for (PlaylistListener listener : listeners) {
+      listener.songMoved(this, from, to);
+    }
+  }
 
-      //copy old contents to new array
-      System.arraycopy(arr, 0, smallArray, 0, smallArray.length);
+  /*
+    Puts the songs in a random order
+    The same seed always gives the same order
+   */
+  public void shuffle(long seed) {
+    Song[] before = listeners.isEmpty() ? null : toArray();
+    songs.shuffle(seed);
 
-      return smallArray;
+    for (PlaylistListener listener : listeners) {
+      listener.reordered(this, before);
     }
   }
 
   /*
-   * Returns the first empty index in the songs array
+    Puts the songs back in an order they had before, given as every song in the playlist
    */
-  private int indexOfFirstEmpty() {
-    //reverse loop because there will only be at most 4 empty slots at the end of the array
-    //this has a maximum of O(4) complexity
-    //a forward loop would have O(n + 1) complexity
-    for (int i = songs.length - 1; i >= 0; i--) {
-      if (songs[i] != null) {
-        return i + 1;
-      }
+  void restoreOrder(Song[] order) {
+    if (order.length != songs.size()) {
+      throw new IllegalArgumentException("Order has " + order.length + " songs, the playlist has " + songs.size());
+    }
+    Song[] before = listeners.isEmpty() ? null : toArray();
+
+    songs.clear();
+    positions.clear();
+    for (Song song : order) {
+      nodesOf(song).add(songs.add(song));
     }
 
-    return 0;
+    for (PlaylistListener listener : listeners) {
+      listener.reordered(this, before);
+    }
+  }
+
+  /*
+    Songs in play order
+   */
+  public Song[] toArray() {
+    Song[] all = new Song[songs.size()];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = songs.get(i);
+    }
+    return all;
   }
 
   /*
    * Removes a song from the playlist
    */
   public void removeSong(int index) {
-    //set song to null
-    songs[index] = null;
+    OrderStatisticTree.Node<Song> node = songs.nodeAt(index);
+    Song song = songs.remove(node);
 
-    //update logicalSize
-    logicalSize--;
+    ExactSongKey key = new ExactSongKey(song);
+    List<OrderStatisticTree.Node<Song>> nodes = positions.get(key);
+    nodes.remove(node);
+    if (nodes.isEmpty()) {
+      positions.remove(key);
+    }
 
-    //move null index item to the end
-    for (int i = index; i < songs.length; i++) {
-      if (songs.length == i + 1 || songs[i + 1] == null) {
-        break;
-      }
+    totalSize -= song.getFileSize();
+    totalTime -= song.getDuration();
 
-      songs[i] = songs[i + 1];
-      songs[i + 1] = null;
+    for (PlaylistListener listener : listeners) {
+      listener.songRemoved(this, index, song);
     }
+  }
 
-    if (logicalSize < (songs.length / 2)) {
-      //resize the array
-      songs = resizeArray(false, songs);
+  /*
+    Nodes holding the given song, created if the song isn't in the playlist yet
+   */
+  private List<OrderStatisticTree.Node<Song>> nodesOf(Song song) {
+    ExactSongKey key = new ExactSongKey(song);
+    List<OrderStatisticTree.Node<Song>> nodes = positions.get(key);
+    if (nodes == null) {
+      nodes = new ArrayList<OrderStatisticTree.Node<Song>>(1);
+      positions.put(key, nodes);
     }
+    return nodes;
   }
 }
\ No newline at end of file
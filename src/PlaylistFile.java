@@ -0,0 +1,193 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Saves and loads playlists
+  Songs are stored by their exact name and artist, and are matched back up to the songs
+  in a database when loading. Song.equals ignores case, so "Song" and "song" by the same
+  artist would find whichever was first, the match here is exact instead
+ */
+public class PlaylistFile {
+  public static final String HEADER = "SongPlaylist File";
+  public static final String EXTENSION = ".playlists";
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final File file;
+
+  //songs that weren't in the database during the last load
+  private int missingSongs;
+
+  //songs the last load found, but that no longer fit their playlist's constraints
+  private int refusedSongs;
+
+  public PlaylistFile(File file) {
+    this.file = file;
+    this.missingSongs = 0;
+    this.refusedSongs = 0;
+  }
+
+  /*
+    Playlists are kept next to the database file, with the same name and their own extension
+   */
+  public static PlaylistFile forDatabase(String databasePath) {
+    String basePath = databasePath;
+    if (basePath.endsWith(".gz"))
+      basePath = basePath.substring(0, basePath.length() - ".gz".length());
+    if (basePath.endsWith(".txt"))
+      basePath = basePath.substring(0, basePath.length() - ".txt".length());
+
+    return new PlaylistFile(new File(basePath + EXTENSION));
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /*
+    Number of songs skipped by the last load because they weren't in the database
+   */
+  public int getMissingSongs() {
+    return missingSongs;
+  }
+
+  /*
+    Number of songs skipped by the last load because their playlist's time or size limit was reached,
+    eg. when the database copy has grown since the playlist was saved
+   */
+  public int getRefusedSongs() {
+    return refusedSongs;
+  }
+
+  /*
+    Saves the playlists, with their constraints, replacing the file atomically
+   */
+  public void save(final List<Playlist> playlists) throws IOException {
+    AtomicFile.replace(file, new AtomicFile.Content() {
+      public void writeTo(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, Charset.defaultCharset());
+        writer.write(HEADER + "\n");
+        for (int i = 0; i < playlists.size(); i++) {
+          Playlist playlist = playlists.get(i);
+          writer.write(String.format("Playlist %d\n%d\n%d\n%d\n", i + 1, playlist.getMaxTime(), playlist.getMaxSize(), playlist.getTotalSongs()));
+          for (int j = 0; j < playlist.getTotalSongs(); j++) {
+            Song song = playlist.getSong(j);
+            writer.write(song.getName() + "\n" + song.getArtist() + "\n");
+          }
+        }
+        writer.flush();
+      }
+    });
+  }
+
+  /*
+    Loads the playlists, using the songs in the given database
+    Songs are looked up through a hash index built once, rather than searching the database for each one
+   */
+  public List<Playlist> load(SongDatabase database) throws IOException {
+    Map<SongRef, Song> songIndex = new HashMap<SongRef, Song>(database.getTotalSongs() * 2);
+    for (int i = 0; i < database.getTotalSongs(); i++) {
+      Song song = database.getSong(i);
+      SongRef ref = new SongRef(song.getName(), song.getArtist());
+      //keep the first song if the database has more than one that match
+      if (!songIndex.containsKey(ref)) {
+        songIndex.put(ref, song);
+      }
+    }
+
+    List<Playlist> playlists = new ArrayList<Playlist>();
+    missingSongs = 0;
+    refusedSongs = 0;
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), Charset.defaultCharset()), BUFFER_SIZE);
+    try {
+      if (!HEADER.equals(reader.readLine())) {
+        throw new IOException("Given file is not a SongPlaylist file.");
+      }
+
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.startsWith("Playlist")) continue;
+
+        int maxTime = readNumber(reader);
+        int maxSize = readNumber(reader);
+        int count = readNumber(reader);
+
+        Playlist playlist = new Playlist(maxTime, maxSize);
+        for (int i = 0; i < count; i++) {
+          String name = reader.readLine();
+          String artist = reader.readLine();
+          if (artist == null) {
+            throw new IOException("Playlist file ends part way through a playlist.");
+          }
+
+          //a song with exactly the same name and artist finds the database copy
+          Song song = songIndex.get(new SongRef(name, artist));
+          if (song == null) {
+            missingSongs++;
+          } else if (playlist.addSong(song) != Playlist.PlaylistActionState.NO_ERROR) {
+            refusedSongs++;
+          }
+        }
+        playlists.add(playlist);
+      }
+    } finally {
+      reader.close();
+    }
+
+    return playlists;
+  }
+
+  /*
+    Reads a playlist's constraint or song count line
+   */
+  private static int readNumber(BufferedReader reader) throws IOException {
+    String line = reader.readLine();
+    if (line == null) {
+      throw new IOException("Playlist file ends part way through a playlist.");
+    }
+    try {
+      return Integer.parseInt(line.trim());
+    } catch (NumberFormatException e) {
+      throw new IOException("Playlist file has a damaged number: " + line);
+    }
+  }
+
+  /*
+    Exact name and artist, as written to the file
+   */
+  private static final class SongRef {
+    private final String name;
+    private final String artist;
+
+    SongRef(String name, String artist) {
+      this.name = name;
+      this.artist = artist;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (this == o) return true;
+      if (!(o instanceof SongRef)) return false;
+
+      SongRef r = (SongRef) o;
+      return r.name.equals(name) && r.artist.equals(artist);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * name.hashCode() + artist.hashCode();
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,17 @@
+/*
+  Told about every change made to a Playlist, straight after it happens
+ */
+public interface PlaylistListener {
+  void songInserted(Playlist playlist, int index, Song song);
+
+  void songRemoved(Playlist playlist, int index, Song song);
+
+  void songMoved(Playlist playlist, int from, int to);
+
+  void songReplaced(Playlist playlist, int index, Song song, Song replacement);
+
+  /*
+    The songs are in a new order, before holds the order they had
+   */
+  void reordered(Playlist playlist, Song[] before);
+}
\ No newline at end of file
@@ -0,0 +1,104 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+  LRU cache of query results
+  Results are tagged with the database modification count they were worked out at,
+  so any change to the database makes every cached result a miss
+ */
+public class QueryCache {
+  public static final int DEFAULT_MAX_ENTRIES = 64;
+  public static final int DEFAULT_MAX_SONGS = 1000000;
+
+  private final LinkedHashMap<String, Song[]> results;
+  private final int maxEntries;
+  private final int maxSongs;
+
+  //modification count the cached results belong to
+  private int epoch;
+  private int cachedSongs;
+
+  private long hits;
+  private long misses;
+
+  public QueryCache() {
+    this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_SONGS);
+  }
+
+  /*
+    maxEntries caps the number of cached queries
+    maxSongs caps the total number of songs held across all cached results, which bounds memory
+   */
+  public QueryCache(int maxEntries, int maxSongs) {
+    this.maxEntries = maxEntries;
+    this.maxSongs = maxSongs;
+    results = new LinkedHashMap<String, Song[]>(16, 0.75f, true);
+    epoch = 0;
+    cachedSongs = 0;
+    hits = 0;
+    misses = 0;
+  }
+
+  /*
+    Returns a copy of the cached result for the query, or null if it isn't cached
+   */
+  public synchronized Song[] get(String query, int modCount) {
+    invalidateIfChanged(modCount);
+
+    Song[] result = results.get(query);
+    if (result == null) {
+      misses++;
+      return null;
+    }
+
+    hits++;
+    return result.clone();
+  }
+
+  /*
+    Caches a copy of a query result worked out at the given modification count
+   */
+  public synchronized void put(String query, int modCount, Song[] result) {
+    invalidateIfChanged(modCount);
+
+    //too big to ever fit
+    if (result.length > maxSongs || maxEntries <= 0) return;
+
+    Song[] previous = results.put(query, result.clone());
+    if (previous != null) {
+      cachedSongs -= previous.length;
+    }
+    cachedSongs += result.length;
+
+    //evict least recently used results until we are back in bounds
+    Iterator<Map.Entry<String, Song[]>> eldest = results.entrySet().iterator();
+    while (results.size() > maxEntries || cachedSongs > maxSongs) {
+      cachedSongs -= eldest.next().getValue().length;
+      eldest.remove();
+    }
+  }
+
+  /*
+    Drops everything once the database has changed
+   */
+  private void invalidateIfChanged(int modCount) {
+    if (modCount != epoch) {
+      results.clear();
+      cachedSongs = 0;
+      epoch = modCount;
+    }
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized int size() {
+    return results.size();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,239 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/*
+  Keeps a database in step with a ReplicationLeader in another process on the same machine
+  The follower's database should only be read, eg. through a read only SongServer;
+  everything written to it comes from the leader. Changes are applied in the order the
+  leader made them, under the database's write lock, so readers always see a state
+  the leader was in
+
+  Whenever the connection is lost, or the leader goes quiet for longer than a few
+  heartbeats, the follower connects again and catches up from a new snapshot. A
+  snapshot only rewrites the songs that differ, so catching up after a short gap is
+  mostly reading
+ */
+public class ReplicationFollower {
+  //no word from the leader for this long means the connection is dead
+  private static final int TIMEOUT_MILLIS = (int) ReplicationLeader.HEARTBEAT_MILLIS * 5;
+  private static final long RECONNECT_MILLIS = 500;
+
+  private final SongDatabase database;
+  private final int port;
+
+  private volatile boolean running;
+  private volatile boolean caughtUp;
+  private volatile long changesApplied;
+  private volatile long snapshotsApplied;
+  private volatile long lastHeard;
+  private volatile long leaderBacklog;
+
+  private Socket socket;
+  private Thread thread;
+
+  /*
+    Follows the leader on the given local port
+   */
+  public ReplicationFollower(SongDatabase database, int port) {
+    this.database = database;
+    this.port = port;
+  }
+
+  /*
+    Connects to the leader on a background thread, and keeps connecting until stopped
+   */
+  public synchronized void start() {
+    if (thread != null) {
+      throw new IllegalStateException("Already following");
+    }
+    running = true;
+    thread = new Thread(new Runnable() {
+      public void run() {
+        follow();
+      }
+    }, "replication-follower");
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  public void stop() throws InterruptedException {
+    Thread following;
+    synchronized (this) {
+      running = false;
+      following = thread;
+      if (socket != null) {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          //closing only fails if it is already closed
+        }
+      }
+    }
+    if (following != null) {
+      following.interrupt();
+      following.join();
+    }
+  }
+
+  /*
+    Whether the database has a snapshot from the leader and the changes since, as far as the follower knows
+   */
+  public boolean isCaughtUp() {
+    return caughtUp;
+  }
+
+  /*
+    Waits up to the given time for the first snapshot, returning whether it arrived
+   */
+  public boolean awaitCaughtUp(long millis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + millis;
+    while (!caughtUp) {
+      if (System.currentTimeMillis() >= deadline) return false;
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  public long getChangesApplied() {
+    return changesApplied;
+  }
+
+  public long getSnapshotsApplied() {
+    return snapshotsApplied;
+  }
+
+  /*
+    Time since anything was last heard from the leader, or -1 if nothing ever was
+    The leader sends a heartbeat when it has nothing else to send, so this stays
+    small while the connection is healthy
+   */
+  public long getMillisSinceLeaderHeard() {
+    long heard = lastHeard;
+    return heard == 0 ? -1 : (System.nanoTime() - heard) / 1000000;
+  }
+
+  /*
+    Changes the leader had made but not yet sent, as of its last heartbeat
+   */
+  public long getLeaderBacklog() {
+    return leaderBacklog;
+  }
+
+  private void follow() {
+    while (running) {
+      try {
+        Socket connection = new Socket();
+        synchronized (this) {
+          if (!running) return;
+          socket = connection;
+        }
+        connection.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), TIMEOUT_MILLIS);
+        connection.setSoTimeout(TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(connection.getInputStream(), ReplicationProtocol.BUFFER_SIZE));
+        ReplicationProtocol.readHeader(in);
+        apply(in);
+      } catch (SocketTimeoutException e) {
+        //the leader went quiet
+      } catch (IOException e) {
+        //the leader isn't there, or went away
+      } finally {
+        caughtUp = false;
+        synchronized (this) {
+          if (socket != null) {
+            try {
+              socket.close();
+            } catch (IOException e) {
+              //already closed
+            }
+            socket = null;
+          }
+        }
+      }
+
+      try {
+        Thread.sleep(RECONNECT_MILLIS);
+      } catch (InterruptedException e) {
+        return;
+      }
+    }
+  }
+
+  /*
+    Applies messages from the leader until the connection ends
+   */
+  private void apply(DataInputStream in) throws IOException {
+    StringPool pool = database.getStringPool();
+    while (running) {
+      byte type = in.readByte();
+      lastHeard = System.nanoTime();
+      switch (type) {
+        case ReplicationProtocol.SNAPSHOT:
+          applySnapshot(in);
+          break;
+        case ReplicationProtocol.ADD: {
+          int index = in.readInt();
+          database.insertSong(index, ReplicationProtocol.readSong(in, pool));
+          changesApplied++;
+          break;
+        }
+        case ReplicationProtocol.REMOVE:
+          database.removeSong(in.readInt());
+          changesApplied++;
+          break;
+        case ReplicationProtocol.REPLACE: {
+          int index = in.readInt();
+          database.setSong(index, ReplicationProtocol.readSong(in, pool));
+          changesApplied++;
+          break;
+        }
+        case ReplicationProtocol.HEARTBEAT:
+          leaderBacklog = in.readLong();
+          break;
+        default:
+          throw new IOException("Unknown replication message " + type);
+      }
+    }
+  }
+
+  /*
+    Makes the database the same as the snapshot, only changing the songs that differ
+    The snapshot is read in full first, so readers are only held up while it is applied
+   */
+  private void applySnapshot(DataInputStream in) throws IOException {
+    int count = in.readInt();
+    if (count < 0) {
+      throw new IOException("Bad snapshot size " + count);
+    }
+    StringPool pool = database.getStringPool();
+    Song[] songs = new Song[count];
+    for (int i = 0; i < count; i++) {
+      songs[i] = ReplicationProtocol.readSong(in, pool);
+    }
+
+    database.writeLock().lock();
+    try {
+      int kept = Math.min(count, database.getTotalSongs());
+      for (int i = 0; i < kept; i++) {
+        if (!database.getSong(i).isSameAs(songs[i])) {
+          database.setSong(i, songs[i]);
+        }
+      }
+      //from the end, so nothing has to move up
+      for (int i = database.getTotalSongs() - 1; i >= count; i--) {
+        database.removeSong(i);
+      }
+      for (int i = kept; i < count; i++) {
+        database.addSong(songs[i]);
+      }
+    } finally {
+      database.writeLock().unlock();
+    }
+    snapshotsApplied++;
+    caughtUp = true;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,287 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+  Ships every change to a database to follower processes on the same machine, see
+  ReplicationFollower. Only listens on the loopback address
+
+  A follower that connects is sent a snapshot of every song, then the changes made
+  since, from a ChangeStream subscription taken under the same read lock as the
+  snapshot, so nothing is missed or sent twice. Each follower can be at most maxLag
+  changes behind: one that falls further behind overruns its subscription, and is
+  sent a fresh snapshot to catch up from instead of the changes it missed. The
+  database itself never waits for a follower. Playlists aren't replicated
+ */
+public class ReplicationLeader {
+  public static final int DEFAULT_MAX_LAG = ChangeStream.DEFAULT_CAPACITY;
+
+  //how often an idle follower is told the leader is still there
+  static final long HEARTBEAT_MILLIS = 200;
+
+  private static final int BATCH_SIZE = 1024;
+
+  /*
+    Writes a follower's changes to its socket, once the snapshot before them has been sent
+   */
+  private static class Shipper implements ChangeSubscriber {
+    private final DataOutputStream out;
+    private final CountDownLatch snapshotSent;
+    private volatile boolean overran;
+
+    Shipper(DataOutputStream out) {
+      this.out = out;
+      this.snapshotSent = new CountDownLatch(1);
+    }
+
+    public void changes(ChangeEvent[] events, int count) throws IOException {
+      try {
+        snapshotSent.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted before the snapshot was sent", e);
+      }
+
+      synchronized (out) {
+        for (int i = 0; i < count; i++) {
+          ChangeEvent event = events[i];
+          switch (event.getType()) {
+            case SONG_ADDED:
+              out.writeByte(ReplicationProtocol.ADD);
+              out.writeInt(event.getIndex());
+              ReplicationProtocol.writeSong(out, event.getSong());
+              break;
+            case SONG_REMOVED:
+              out.writeByte(ReplicationProtocol.REMOVE);
+              out.writeInt(event.getIndex());
+              break;
+            case SONG_REPLACED:
+              out.writeByte(ReplicationProtocol.REPLACE);
+              out.writeInt(event.getIndex());
+              ReplicationProtocol.writeSong(out, event.getReplacement());
+              break;
+            default:
+              //playlists stay with the leader
+          }
+        }
+        out.flush();
+      }
+    }
+
+    /*
+      Ends the subscription, the follower is sent a new snapshot rather than sent the missed changes
+     */
+    public void overrun(long missed) throws IOException {
+      overran = true;
+      throw new IOException("Follower fell " + missed + " changes behind");
+    }
+  }
+
+  private final SongDatabase database;
+  private final ChangeStream changes;
+  private final ServerSocket server;
+  private final int maxLag;
+
+  //connected followers' sockets
+  private final List<Socket> followers;
+
+  private volatile boolean running;
+  private final AtomicLong snapshotsSent;
+  private Thread acceptor;
+
+  public ReplicationLeader(SongDatabase database, int port) throws IOException {
+    this(database, port, DEFAULT_MAX_LAG);
+  }
+
+  /*
+    Leads on the given port, 0 picks a free one
+   */
+  public ReplicationLeader(SongDatabase database, int port, int maxLag) throws IOException {
+    if (maxLag < 1) {
+      throw new IllegalArgumentException("Followers must be allowed at least one change behind");
+    }
+    this.database = database;
+    this.maxLag = maxLag;
+    this.changes = new ChangeStream(database);
+    this.server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+    this.followers = new ArrayList<Socket>();
+    this.snapshotsSent = new AtomicLong();
+  }
+
+  /*
+    Starts accepting followers on a background thread
+   */
+  public synchronized void start() {
+    if (acceptor != null) {
+      throw new IllegalStateException("Already leading");
+    }
+    running = true;
+    acceptor = new Thread(new Runnable() {
+      public void run() {
+        accept();
+      }
+    }, "replication-leader");
+    acceptor.setDaemon(true);
+    acceptor.start();
+  }
+
+  /*
+    Disconnects every follower and stops accepting new ones
+   */
+  public void stop() throws InterruptedException {
+    running = false;
+    try {
+      server.close();
+    } catch (IOException e) {
+      //closing only fails if it is already closed
+    }
+    synchronized (followers) {
+      for (Socket follower : followers) {
+        closeQuietly(follower);
+      }
+    }
+    changes.close();
+
+    Thread accepting;
+    synchronized (this) {
+      accepting = acceptor;
+    }
+    if (accepting != null) {
+      accepting.join();
+    }
+  }
+
+  public int getPort() {
+    return server.getLocalPort();
+  }
+
+  public int getFollowerCount() {
+    synchronized (followers) {
+      return followers.size();
+    }
+  }
+
+  /*
+    Snapshots sent, one per follower connecting and one per follower that fell too far behind
+   */
+  public long getSnapshotsSent() {
+    return snapshotsSent.get();
+  }
+
+  private void accept() {
+    while (running) {
+      final Socket follower;
+      try {
+        follower = server.accept();
+      } catch (IOException e) {
+        //the server socket was closed by stop
+        return;
+      }
+
+      synchronized (followers) {
+        followers.add(follower);
+      }
+      Thread shipping = new Thread(new Runnable() {
+        public void run() {
+          try {
+            ship(follower);
+          } finally {
+            synchronized (followers) {
+              followers.remove(follower);
+            }
+          }
+        }
+      }, "replication-follower-" + follower.getPort());
+      shipping.setDaemon(true);
+      shipping.start();
+    }
+  }
+
+  /*
+    Sends the follower a snapshot and then its changes, and another snapshot each time it falls too far behind
+   */
+  private void ship(Socket follower) {
+    ChangeStream.Subscription subscription = null;
+    Shipper shipper = null;
+    try {
+      follower.setTcpNoDelay(true);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(follower.getOutputStream(), ReplicationProtocol.BUFFER_SIZE));
+      ReplicationProtocol.writeHeader(out);
+
+      while (running) {
+        shipper = new Shipper(out);
+        Song[] snapshot;
+        database.readLock().lock();
+        try {
+          snapshot = new Song[database.getTotalSongs()];
+          for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = database.getSong(i);
+          }
+          //subscribed before the lock is let go, so the changes carry on exactly from the snapshot
+          subscription = changes.subscribe(shipper, maxLag, BATCH_SIZE);
+        } finally {
+          database.readLock().unlock();
+        }
+
+        //written without the lock, changes made meanwhile wait in the subscription
+        synchronized (out) {
+          out.writeByte(ReplicationProtocol.SNAPSHOT);
+          out.writeInt(snapshot.length);
+          for (Song song : snapshot) {
+            ReplicationProtocol.writeSong(out, song);
+          }
+          out.flush();
+        }
+        //not kept while following
+        snapshot = null;
+        snapshotsSent.incrementAndGet();
+        shipper.snapshotSent.countDown();
+
+        while (!subscription.awaitClose(HEARTBEAT_MILLIS)) {
+          if (!running) return;
+          synchronized (out) {
+            out.writeByte(ReplicationProtocol.HEARTBEAT);
+            out.writeLong(subscription.getLag());
+            out.flush();
+          }
+        }
+        if (!shipper.overran) {
+          //the follower went away
+          return;
+        }
+      }
+    } catch (IOException e) {
+      //the follower went away
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      //a subscriber stuck writing or waiting for the snapshot fails straight away
+      closeQuietly(follower);
+      if (shipper != null) {
+        shipper.snapshotSent.countDown();
+      }
+      if (subscription != null) {
+        try {
+          subscription.close();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+  }
+
+  private static void closeQuietly(Socket socket) {
+    try {
+      socket.close();
+    } catch (IOException e) {
+      //nothing more to do with it
+    }
+  }
+}
\ No newline at end of file
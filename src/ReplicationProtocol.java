@@ -0,0 +1,79 @@
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/*
+  Wire format between a ReplicationLeader and its followers
+
+  The leader opens with MAGIC and VERSION, then sends messages, each a type byte:
+    SNAPSHOT   song count, then each song: every song in the database, in order
+    ADD        index, song: a song put at the index
+    REMOVE     index
+    REPLACE    index, song: the song now at the index
+    HEARTBEAT  changes the leader has not sent yet, sent when there is nothing else to send
+  A song is its name and artist as int length prefixed UTF-8, then file size and duration
+ */
+final class ReplicationProtocol {
+  static final int MAGIC = 0x534E4752;
+  static final int VERSION = 1;
+
+  static final byte SNAPSHOT = 'S';
+  static final byte ADD = 'A';
+  static final byte REMOVE = 'R';
+  static final byte REPLACE = 'P';
+  static final byte HEARTBEAT = 'H';
+
+  static final int BUFFER_SIZE = 1 << 16;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private ReplicationProtocol() {
+  }
+
+  static void writeHeader(DataOutputStream out) throws IOException {
+    out.writeInt(MAGIC);
+    out.writeInt(VERSION);
+  }
+
+  static void readHeader(DataInputStream in) throws IOException {
+    if (in.readInt() != MAGIC) {
+      throw new IOException("Not a replication leader");
+    }
+    int version = in.readInt();
+    if (version != VERSION) {
+      throw new IOException("Unsupported replication version " + version);
+    }
+  }
+
+  static void writeSong(DataOutputStream out, Song song) throws IOException {
+    writeString(out, song.getName());
+    writeString(out, song.getArtist());
+    out.writeInt(song.getFileSize());
+    out.writeInt(song.getDuration());
+  }
+
+  static Song readSong(DataInputStream in, StringPool pool) throws IOException {
+    String name = readString(in);
+    String artist = readString(in);
+    int fileSize = in.readInt();
+    int duration = in.readInt();
+    return new Song(name, artist, fileSize, duration, pool);
+  }
+
+  private static void writeString(DataOutputStream out, String value) throws IOException {
+    byte[] bytes = value.getBytes(UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0) {
+      throw new IOException("Bad string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,92 @@
+/*
+  Array that grows and shrinks as items are added and removed
+  Items are kept packed at the front, in the order they were added
+ */
+public class ResizableArray<T> {
+  private static final int MIN_CAPACITY = 4;
+
+  private Object[] items;
+  private int logicalSize;
+
+  public ResizableArray() {
+    items = new Object[MIN_CAPACITY];
+    logicalSize = 0;
+  }
+
+  public int size() {
+    return logicalSize;
+  }
+
+  @SuppressWarnings("unchecked")
+  public T get(int index) {
+    checkIndex(index);
+    return (T) items[index];
+  }
+
+  public void set(int index, T item) {
+    checkIndex(index);
+    items[index] = item;
+  }
+
+  /*
+    Add an item to the end
+  */
+  public void add(T item) {
+    //double the array when there are no spots left, so adding is amortised O(1)
+    if (logicalSize == items.length) {
+      resize(items.length * 2);
+    }
+
+    items[logicalSize] = item;
+    logicalSize++;
+  }
+
+  /*
+    Puts an item at the given index, moving later items down a place
+   */
+  public void insert(int index, T item) {
+    if (index < 0 || index > logicalSize) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+    if (logicalSize == items.length) {
+      resize(items.length * 2);
+    }
+
+    System.arraycopy(items, index, items, index + 1, logicalSize - index);
+    items[index] = item;
+    logicalSize++;
+  }
+
+  /*
+    Removes the item at the given index, moving later items up a place
+   */
+  @SuppressWarnings("unchecked")
+  public T remove(int index) {
+    checkIndex(index);
+    T removed = (T) items[index];
+
+    System.arraycopy(items, index + 1, items, index, logicalSize - index - 1);
+    logicalSize--;
+    items[logicalSize] = null;
+
+    //halve the array once it is a quarter full, so it can't flip between sizes
+    if (logicalSize < items.length / 4 && items.length > MIN_CAPACITY) {
+      resize(Math.max(items.length / 2, MIN_CAPACITY));
+    }
+    return removed;
+  }
+
+  private void resize(int newSize) {
+    Object[] resized = new Object[newSize];
+
+    //copy old contents to new array
+    System.arraycopy(items, 0, resized, 0, logicalSize);
+    items = resized;
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= logicalSize) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+  }
+}
\ No newline at end of file
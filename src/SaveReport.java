@@ -0,0 +1,38 @@
+/*
+  Describes what SongDatabase.saveToFile actually wrote
+ */
+public class SaveReport {
+  public enum Mode {
+    SKIPPED,
+    APPENDED,
+    REWRITTEN
+  }
+
+  private final Mode mode;
+  private final String filePath;
+  private final int songsWritten;
+  private final long bytesWritten;
+
+  public SaveReport(Mode mode, String filePath, int songsWritten, long bytesWritten) {
+    this.mode = mode;
+    this.filePath = filePath;
+    this.songsWritten = songsWritten;
+    this.bytesWritten = bytesWritten;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public String getFilePath() {
+    return filePath;
+  }
+
+  public int getSongsWritten() {
+    return songsWritten;
+  }
+
+  public long getBytesWritten() {
+    return bytesWritten;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,212 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Playlist filled automatically with every song that matches a rule
+  Matching songs are added in the order they arrived, for as long as they fit
+  the playlist's time and size limits. The rest wait, and when a member goes or
+  shrinks the waiting songs are offered in the order they arrived and added to
+  the end. Each edit offers at most MAX_REFUSED_OFFERS songs that don't fit, so
+  upkeep costs the same however many songs match
+ */
+public class SmartPlaylist {
+  //waiting songs that can be turned down by a single edit before it gives up
+  static final int MAX_REFUSED_OFFERS = 32;
+
+  private final SongRule rule;
+
+  //matching songs that didn't fit, in the order they arrived
+  private final OrderStatisticTree<Song> waiting;
+
+  //where each waiting song is in the tree, so removing one doesn't need to scan
+  //keyed by exact copy, like the database tells songs apart
+  private final Map<ExactSongKey, List<OrderStatisticTree.Node<Song>>> positions;
+
+  //the matching songs that fit, kept for good so listeners on it stay attached
+  private final Playlist playlist;
+
+  public SmartPlaylist(SongRule rule) {
+    this(rule, Playlist.DEFAULT_MAX_TIME, Playlist.DEFAULT_MAX_SIZE);
+  }
+
+  public SmartPlaylist(SongRule rule, int maxTime, int maxSize) {
+    this.rule = rule;
+    this.waiting = new OrderStatisticTree<Song>();
+    this.positions = new HashMap<ExactSongKey, List<OrderStatisticTree.Node<Song>>>();
+    this.playlist = new Playlist(maxTime, maxSize);
+  }
+
+  public SongRule getRule() {
+    return rule;
+  }
+
+  /*
+    The current songs, this should not be edited directly
+   */
+  public Playlist getPlaylist() {
+    return playlist;
+  }
+
+  /*
+    Number of songs that match the rule, whether or not they fit
+   */
+  public int getTotalMatches() {
+    return playlist.getTotalSongs() + waiting.size();
+  }
+
+  /*
+    Fills the playlist from every song in the database, in database order
+   */
+  void evaluate(SongDatabase database) {
+    for (int i = 0; i < database.getTotalSongs(); i++) {
+      Song song = database.getSong(i);
+      if (rule.matches(song)) {
+        offer(song);
+      }
+    }
+  }
+
+  void songAdded(Song song) {
+    if (rule.matches(song)) {
+      offer(song);
+    }
+  }
+
+  void songRemoved(Song song) {
+    //a waiting copy goes first, it leaves the playlist as it is
+    OrderStatisticTree.Node<Song> node = waitingNode(song);
+    if (node != null) {
+      removeWaiting(node);
+      return;
+    }
+
+    int index = playlist.indexOf(song);
+    if (index >= 0) {
+      playlist.removeSong(index);
+      refill();
+    }
+  }
+
+  void songReplaced(Song song, Song replacement) {
+    boolean matches = rule.matches(replacement);
+
+    OrderStatisticTree.Node<Song> node = waitingNode(song);
+    if (node != null) {
+      removePosition(node);
+      if (!matches) {
+        waiting.remove(node);
+        return;
+      }
+      //keeps its place in the queue, and may fit now it is smaller
+      node.setValue(replacement);
+      nodesOf(replacement).add(node);
+      if (fits(replacement, null)) {
+        removeWaiting(node);
+        playlist.addSong(replacement);
+      }
+      return;
+    }
+
+    int index = playlist.indexOf(song);
+    if (index < 0) {
+      if (matches) {
+        offer(replacement);
+      }
+      return;
+    }
+
+    if (matches && fits(replacement, song)) {
+      playlist.setSong(index, replacement);
+      //a smaller copy leaves room for waiting songs
+      if (replacement.getDuration() < song.getDuration() || replacement.getFileSize() < song.getFileSize()) {
+        refill();
+      }
+      return;
+    }
+
+    playlist.removeSong(index);
+    if (matches) {
+      //it was in the playlist, so it is the first offered back
+      nodesOf(replacement).add(waiting.insert(0, replacement));
+    }
+    refill();
+  }
+
+  /*
+    Adds the song if it fits, otherwise it waits behind the others
+   */
+  private void offer(Song song) {
+    if (playlist.addSong(song) != Playlist.PlaylistActionState.NO_ERROR) {
+      nodesOf(song).add(waiting.add(song));
+    }
+  }
+
+  /*
+    Offers the waiting songs in order, until MAX_REFUSED_OFFERS of them don't fit
+   */
+  private void refill() {
+    int refused = 0;
+    int i = 0;
+    while (i < waiting.size() && refused < MAX_REFUSED_OFFERS) {
+      OrderStatisticTree.Node<Song> node = waiting.nodeAt(i);
+      Song song = node.getValue();
+      if (fits(song, null)) {
+        removeWaiting(node);
+        playlist.addSong(song);
+      } else {
+        refused++;
+        i++;
+      }
+    }
+  }
+
+  /*
+    Whether the song fits, in place of the given member when there is one
+   */
+  private boolean fits(Song song, Song replacing) {
+    int time = playlist.getTotalTime() + song.getDuration();
+    int size = playlist.getTotalSize() + song.getFileSize();
+    if (replacing != null) {
+      time -= replacing.getDuration();
+      size -= replacing.getFileSize();
+    }
+    return time <= playlist.getMaxTime() && size <= playlist.getMaxSize();
+  }
+
+  private void removeWaiting(OrderStatisticTree.Node<Song> node) {
+    removePosition(node);
+    waiting.remove(node);
+  }
+
+  /*
+    First node holding the given song, or null if it isn't waiting
+   */
+  private OrderStatisticTree.Node<Song> waitingNode(Song song) {
+    List<OrderStatisticTree.Node<Song>> nodes = positions.get(new ExactSongKey(song));
+    return nodes == null ? null : nodes.get(0);
+  }
+
+  private void removePosition(OrderStatisticTree.Node<Song> node) {
+    ExactSongKey key = new ExactSongKey(node.getValue());
+    List<OrderStatisticTree.Node<Song>> nodes = positions.get(key);
+    nodes.remove(node);
+    if (nodes.isEmpty()) {
+      positions.remove(key);
+    }
+  }
+
+  /*
+    Nodes holding the given song, created if the song isn't waiting yet
+   */
+  private List<OrderStatisticTree.Node<Song>> nodesOf(Song song) {
+    ExactSongKey key = new ExactSongKey(song);
+    List<OrderStatisticTree.Node<Song>> nodes = positions.get(key);
+    if (nodes == null) {
+      nodes = new ArrayList<OrderStatisticTree.Node<Song>>(1);
+      positions.put(key, nodes);
+    }
+    return nodes;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,151 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Keeps smart playlists up to date as the database changes
+  Playlists are indexed by the artists their rules name, so a change
+  only re-evaluates the playlists that could possibly include the song
+
+  Changes arrive on whichever thread writes to the database, under its write lock,
+  so the playlists and their songs are guarded by the database's lock too. Hold the
+  read lock while reading a smart playlist's songs
+ */
+public class SmartPlaylistManager implements SongDatabaseListener {
+  private final SongDatabase database;
+  private final List<SmartPlaylist> playlists;
+
+  //playlists limited to particular artists, by artist key
+  private final Map<String, List<SmartPlaylist>> byArtist;
+
+  //playlists that accept any artist, these see every change
+  private final List<SmartPlaylist> anyArtist;
+
+  public SmartPlaylistManager(SongDatabase database) {
+    this.database = database;
+    this.playlists = new ArrayList<SmartPlaylist>();
+    this.byArtist = new HashMap<String, List<SmartPlaylist>>();
+    this.anyArtist = new ArrayList<SmartPlaylist>();
+    database.writeLock().lock();
+    try {
+      database.addListener(this);
+    } finally {
+      database.writeLock().unlock();
+    }
+  }
+
+  /*
+    Adds a smart playlist and fills it from the database
+    Filled and registered under the write lock, so no song added meanwhile is missed
+   */
+  public SmartPlaylist add(SmartPlaylist smart) {
+    database.writeLock().lock();
+    try {
+      smart.evaluate(database);
+      playlists.add(smart);
+
+      if (smart.getRule().getArtistKeys().isEmpty()) {
+        anyArtist.add(smart);
+      } else {
+        for (String artistKey : smart.getRule().getArtistKeys()) {
+          List<SmartPlaylist> list = byArtist.get(artistKey);
+          if (list == null) {
+            list = new ArrayList<SmartPlaylist>();
+            byArtist.put(artistKey, list);
+          }
+          list.add(smart);
+        }
+      }
+      return smart;
+    } finally {
+      database.writeLock().unlock();
+    }
+  }
+
+  public void remove(SmartPlaylist smart) {
+    database.writeLock().lock();
+    try {
+      if (!playlists.remove(smart)) return;
+      anyArtist.remove(smart);
+      for (String artistKey : smart.getRule().getArtistKeys()) {
+        List<SmartPlaylist> list = byArtist.get(artistKey);
+        list.remove(smart);
+        if (list.isEmpty()) {
+          byArtist.remove(artistKey);
+        }
+      }
+    } finally {
+      database.writeLock().unlock();
+    }
+  }
+
+  public int size() {
+    database.readLock().lock();
+    try {
+      return playlists.size();
+    } finally {
+      database.readLock().unlock();
+    }
+  }
+
+  public SmartPlaylist get(int index) {
+    database.readLock().lock();
+    try {
+      return playlists.get(index);
+    } finally {
+      database.readLock().unlock();
+    }
+  }
+
+  public void songAdded(int index, Song song) {
+    for (SmartPlaylist smart : affectedBy(song)) {
+      smart.songAdded(song);
+    }
+  }
+
+  public void songRemoved(int index, Song song) {
+    for (SmartPlaylist smart : affectedBy(song)) {
+      smart.songRemoved(song);
+    }
+  }
+
+  public void songReplaced(int index, Song song, Song replacement) {
+    List<SmartPlaylist> affected = affectedBy(song);
+
+    //a new artist can bring the song into other playlists
+    if (!song.getArtistKey().equals(replacement.getArtistKey())) {
+      List<SmartPlaylist> newArtist = byArtist.get(replacement.getArtistKey());
+      if (newArtist != null) {
+        affected = new ArrayList<SmartPlaylist>(affected);
+        for (SmartPlaylist smart : newArtist) {
+          //rules naming both artists only need telling once
+          if (!smart.getRule().getArtistKeys().contains(song.getArtistKey())) {
+            affected.add(smart);
+          }
+        }
+      }
+    }
+
+    for (SmartPlaylist smart : affected) {
+      smart.songReplaced(song, replacement);
+    }
+  }
+
+  /*
+    Playlists whose rule could match the given song
+   */
+  private List<SmartPlaylist> affectedBy(Song song) {
+    List<SmartPlaylist> forArtist = byArtist.get(song.getArtistKey());
+    if (forArtist == null) {
+      return anyArtist;
+    }
+    if (anyArtist.isEmpty()) {
+      return forArtist;
+    }
+
+    List<SmartPlaylist> affected = new ArrayList<SmartPlaylist>(forArtist);
+    affected.addAll(anyArtist);
+    return affected;
+  }
+}
\ No newline at end of file
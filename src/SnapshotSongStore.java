@@ -0,0 +1,404 @@
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/*
+  Song storage memory mapped from a binary snapshot file, so a large catalogue
+  is usable as soon as the file is mapped, without parsing anything
+  The snapshot also holds the songs' order under each query sort, so the first
+  queries can walk a prebuilt order instead of sorting
+
+  File layout, big endian:
+    magic
+    strings: length prefixed UTF-8, none crossing a STRING_WINDOW boundary
+    records: name offset, artist offset, file size, duration (24 bytes, like OffHeapSongStore)
+    orders: for each sort, every record number in sorted order
+    order table: number of sorts, then each sort's name and offset
+    footer: records offset, order table offset, song count, version, magic
+
+  The snapshot itself is never changed. The first edit copies the song order into
+  an array, and songs added or edited after that are kept in memory
+ */
+public class SnapshotSongStore implements SongStore {
+  public static final String EXTENSION = ".snapshot";
+
+  private static final long MAGIC = 0x534f4e47534e4150L;
+  private static final int VERSION = 1;
+  private static final int FOOTER_SIZE = 32;
+
+  private static final int NAME_OFFSET = 0;
+  private static final int ARTIST_OFFSET = 8;
+  private static final int FILE_SIZE_OFFSET = 16;
+  private static final int DURATION_OFFSET = 20;
+  private static final int RECORD_SIZE = 24;
+  private static final int MAX_RECORDS = Integer.MAX_VALUE / RECORD_SIZE;
+
+  //strings are mapped in windows this big, a mapping can't be over 2GB
+  private static final int STRING_WINDOW = 1 << 30;
+  private static final int MAX_SHARED_ARTISTS = 1 << 16;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private final File file;
+  private final MappedByteBuffer records;
+  private final MappedByteBuffer[] strings;
+  private final int recordCount;
+
+  //record numbers in sorted order, by sort name
+  private final Map<String, IntBuffer> orders;
+
+  //null until the first edit, then each song's record number, or -1 - its slot in held
+  private long[] refs;
+  private int logicalSize;
+  private final List<Song> held;
+
+  private SnapshotSongStore(File file, MappedByteBuffer records, MappedByteBuffer[] strings, int recordCount,
+                            Map<String, IntBuffer> orders) {
+    this.file = file;
+    this.records = records;
+    this.strings = strings;
+    this.recordCount = recordCount;
+    this.orders = orders;
+    this.refs = null;
+    this.logicalSize = recordCount;
+    this.held = new ArrayList<Song>();
+  }
+
+  /*
+    Maps a snapshot written by write
+   */
+  public static SnapshotSongStore open(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      FileChannel channel = raf.getChannel();
+      long length = channel.size();
+      if (length < 8 + FOOTER_SIZE) {
+        throw new IOException("Given file is not a song snapshot.");
+      }
+
+      ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+      channel.read(footer, length - FOOTER_SIZE);
+      footer.flip();
+      long recordsOffset = footer.getLong();
+      long tableOffset = footer.getLong();
+      int count = footer.getInt();
+      int version = footer.getInt();
+      if (footer.getLong() != MAGIC) {
+        throw new IOException("Given file is not a song snapshot.");
+      }
+      if (version != VERSION) {
+        throw new IOException("Unsupported snapshot version " + version);
+      }
+      if (recordsOffset < 8 || tableOffset < recordsOffset + (long) count * RECORD_SIZE || tableOffset > length - FOOTER_SIZE) {
+        throw new IOException("Snapshot is damaged.");
+      }
+
+      //mappings stay valid after the channel is closed
+      MappedByteBuffer recordMap = channel.map(FileChannel.MapMode.READ_ONLY, recordsOffset, (long) count * RECORD_SIZE);
+      MappedByteBuffer[] stringMaps = new MappedByteBuffer[(int) ((recordsOffset + STRING_WINDOW - 1) / STRING_WINDOW)];
+      for (int i = 0; i < stringMaps.length; i++) {
+        long start = (long) i * STRING_WINDOW;
+        stringMaps[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(STRING_WINDOW, recordsOffset - start));
+      }
+
+      //the order table is tiny, so read it rather than map it
+      ByteBuffer table = ByteBuffer.allocate((int) (length - FOOTER_SIZE - tableOffset));
+      channel.read(table, tableOffset);
+      table.flip();
+      Map<String, IntBuffer> orders = new HashMap<String, IntBuffer>();
+      int orderCount = table.getInt();
+      for (int i = 0; i < orderCount; i++) {
+        byte[] name = new byte[table.getShort()];
+        table.get(name);
+        long offset = table.getLong();
+        orders.put(new String(name, UTF_8), channel.map(FileChannel.MapMode.READ_ONLY, offset, (long) count * 4).asIntBuffer());
+      }
+      return new SnapshotSongStore(file, recordMap, stringMaps, count, orders);
+    } finally {
+      raf.close();
+    }
+  }
+
+  /*
+    Writes the songs in the given store as a snapshot, replacing the file atomically
+    Each comparator's order is saved under its name, ties keep store order like a stable sort
+    Returns the number of bytes written
+   */
+  public static long write(final SongStore songs, File target, final Map<String, Comparator<Song>> sorts) throws IOException {
+    if (songs.size() > MAX_RECORDS) {
+      throw new IOException("Too many songs for a snapshot: " + songs.size());
+    }
+
+    return AtomicFile.replace(target, new AtomicFile.Content() {
+      public void writeTo(OutputStream stream) throws IOException {
+        StringSection section = new StringSection(new DataOutputStream(stream));
+        final Song[] all = new Song[songs.size()];
+
+        //strings are streamed out first, records wait in memory until we know where they go
+        ByteBuffer recordBytes = ByteBuffer.allocate(songs.size() * RECORD_SIZE);
+        Map<String, Long> sharedArtists = new HashMap<String, Long>();
+        for (int i = 0; i < all.length; i++) {
+          Song song = songs.get(i);
+          all[i] = song;
+          recordBytes.putLong(section.write(song.getName()));
+
+          Long artist = sharedArtists.get(song.getArtist());
+          if (artist == null) {
+            artist = section.write(song.getArtist());
+            if (sharedArtists.size() < MAX_SHARED_ARTISTS) {
+              sharedArtists.put(song.getArtist(), artist);
+            }
+          }
+          recordBytes.putLong(artist);
+          recordBytes.putInt(song.getFileSize());
+          recordBytes.putInt(song.getDuration());
+        }
+
+        DataOutputStream out = section.out;
+        long recordsOffset = section.position;
+        out.write(recordBytes.array());
+        long position = recordsOffset + recordBytes.capacity();
+
+        Map<String, Long> orderOffsets = new HashMap<String, Long>();
+        for (Map.Entry<String, Comparator<Song>> sort : sorts.entrySet()) {
+          final Comparator<Song> comparator = sort.getValue();
+          Integer[] order = new Integer[all.length];
+          for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+          }
+          //Arrays.sort is stable for objects, so ties stay in store order
+          Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer r1, Integer r2) {
+              return comparator.compare(all[r1], all[r2]);
+            }
+          });
+
+          orderOffsets.put(sort.getKey(), position);
+          ByteBuffer orderBytes = ByteBuffer.allocate(order.length * 4);
+          for (Integer record : order) {
+            orderBytes.putInt(record);
+          }
+          out.write(orderBytes.array());
+          position += orderBytes.capacity();
+        }
+
+        long tableOffset = position;
+        out.writeInt(orderOffsets.size());
+        for (Map.Entry<String, Long> order : orderOffsets.entrySet()) {
+          byte[] name = order.getKey().getBytes(UTF_8);
+          out.writeShort(name.length);
+          out.write(name);
+          out.writeLong(order.getValue());
+        }
+
+        out.writeLong(recordsOffset);
+        out.writeLong(tableOffset);
+        out.writeInt(all.length);
+        out.writeInt(VERSION);
+        out.writeLong(MAGIC);
+        out.flush();
+      }
+    });
+  }
+
+  /*
+    The magic number and strings part of a snapshot being written
+    Keeps its own count of bytes, as DataOutputStream's stops at 2GB
+   */
+  private static class StringSection {
+    final DataOutputStream out;
+    long position;
+
+    StringSection(DataOutputStream out) throws IOException {
+      this.out = out;
+      out.writeLong(MAGIC);
+      position = 8;
+    }
+
+    /*
+      Writes a length prefixed string and returns its offset in the file
+     */
+    long write(String value) throws IOException {
+      byte[] bytes = value.getBytes(UTF_8);
+      int length = bytes.length + 4;
+      if (length > STRING_WINDOW) {
+        throw new IOException("String too long for a snapshot: " + value.length() + " characters");
+      }
+
+      //strings never cross a window, so each can be read from a single mapping
+      long used = position % STRING_WINDOW;
+      if (used + length > STRING_WINDOW) {
+        for (long i = used; i < STRING_WINDOW; i++) {
+          out.write(0);
+        }
+        position += STRING_WINDOW - used;
+      }
+
+      long offset = position;
+      out.writeInt(bytes.length);
+      out.write(bytes);
+      position += length;
+      return offset;
+    }
+  }
+
+  public int size() {
+    return logicalSize;
+  }
+
+  public Song get(int index) {
+    long ref = ref(index);
+    if (ref < 0) {
+      return held.get((int) (-1 - ref));
+    }
+
+    int offset = (int) ref * RECORD_SIZE;
+    return new Song(readString(records.getLong(offset + NAME_OFFSET)),
+        readString(records.getLong(offset + ARTIST_OFFSET)),
+        records.getInt(offset + FILE_SIZE_OFFSET),
+        records.getInt(offset + DURATION_OFFSET));
+  }
+
+  public int getDuration(int index) {
+    long ref = ref(index);
+    if (ref < 0) {
+      return held.get((int) (-1 - ref)).getDuration();
+    }
+    return records.getInt((int) ref * RECORD_SIZE + DURATION_OFFSET);
+  }
+
+  public void add(Song song) {
+    editable();
+    if (logicalSize == refs.length) {
+      refs = Arrays.copyOf(refs, Math.max(16, refs.length * 2));
+    }
+    refs[logicalSize++] = hold(song);
+  }
+
+  public void insert(int index, Song song) {
+    if (index != logicalSize) {
+      checkIndex(index);
+    }
+    editable();
+    if (logicalSize == refs.length) {
+      refs = Arrays.copyOf(refs, Math.max(16, refs.length * 2));
+    }
+    System.arraycopy(refs, index, refs, index + 1, logicalSize - index);
+    refs[index] = hold(song);
+    logicalSize++;
+  }
+
+  public void set(int index, Song song) {
+    checkIndex(index);
+    editable();
+    release(refs[index]);
+    refs[index] = hold(song);
+  }
+
+  public void remove(int index) {
+    checkIndex(index);
+    editable();
+    release(refs[index]);
+    System.arraycopy(refs, index + 1, refs, index, logicalSize - index - 1);
+    logicalSize--;
+  }
+
+  /*
+    Number of songs in the snapshot file itself, whatever has been edited since
+    Their names and artists can be read by record number without creating Song objects
+   */
+  public int getSnapshotSize() {
+    return recordCount;
+  }
+
+  public String getSnapshotName(int record) {
+    return readString(records.getLong(record * RECORD_SIZE + NAME_OFFSET));
+  }
+
+  public String getSnapshotArtist(int record) {
+    return readString(records.getLong(record * RECORD_SIZE + ARTIST_OFFSET));
+  }
+
+  /*
+    Songs shorter than the given duration, in the saved order with the given name
+    Stops after limit songs, or returns them all if limit is negative
+    Returns null if there is no such order or the songs have changed since the snapshot
+   */
+  public Song[] shorterThanInOrder(String sort, int duration, int limit) {
+    IntBuffer order = orders.get(sort);
+    if (order == null || refs != null) {
+      return null;
+    }
+
+    List<Song> matched = new ArrayList<Song>(limit < 0 ? 16 : limit);
+    for (int i = 0; i < recordCount && (limit < 0 || matched.size() < limit); i++) {
+      int record = order.get(i);
+      if (records.getInt(record * RECORD_SIZE + DURATION_OFFSET) < duration) {
+        matched.add(get(record));
+      }
+    }
+    return matched.toArray(new Song[matched.size()]);
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  private long ref(int index) {
+    checkIndex(index);
+    return refs == null ? index : refs[index];
+  }
+
+  /*
+    Copies the song order out of the snapshot so it can be changed
+   */
+  private void editable() {
+    if (refs != null) return;
+
+    refs = new long[Math.max(16, recordCount + recordCount / 8)];
+    for (int i = 0; i < recordCount; i++) {
+      refs[i] = i;
+    }
+  }
+
+  private long hold(Song song) {
+    held.add(song);
+    return -held.size();
+  }
+
+  private void release(long ref) {
+    if (ref < 0) {
+      held.set((int) (-1 - ref), null);
+    }
+  }
+
+  private void checkIndex(int index) {
+    if (index < 0 || index >= logicalSize) {
+      throw new ArrayIndexOutOfBoundsException(index);
+    }
+  }
+
+  private String readString(long offset) {
+    ByteBuffer window = strings[(int) (offset / STRING_WINDOW)];
+    int position = (int) (offset % STRING_WINDOW);
+
+    byte[] bytes = new byte[window.getInt(position)];
+    ByteBuffer source = window.duplicate();
+    source.position(position + 4);
+    source.get(bytes);
+    return new String(bytes, UTF_8);
+  }
+}
\ No newline at end of file
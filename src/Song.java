@@ -1,58 +1,84 @@
-public class Song {
+/*
+  Immutable song value
+  Edits are made by creating a changed copy with the with* methods,
+  so a song can be shared between databases, playlists and threads safely
+ */
+public final class Song {
   //private fields
-  private String name;
-  private String artist;
-  private int fileSize;
-  private int duration;
+  private final String name;
+  private final String artist;
+  private final int fileSize;
+  private final int duration;
 
-  public static int numberOfSongs = 0;
+  //case folded name and artist, used for case insensitive comparisons
+  private final String nameKey;
+  private final String artistKey;
+
+  //equal songs have equal keys, so the hash can be worked out once
+  private final int hash;
 
   //constructors
-  public Song() {
-    numberOfSongs++;
+  public Song(String name, String artist, int fileSize, int duration) {
+    this(name, artist, fileSize, duration, null);
   }
 
-  public Song(String name, String artist, int fileSize, int duration) {
-    this();
+  /*
+    Shares the name and artist strings through the given pool, which may be null
+   */
+  public Song(String name, String artist, int fileSize, int duration, StringPool pool) {
+    if (pool != null) {
+      StringPool.Entry nameEntry = pool.intern(name);
+      StringPool.Entry artistEntry = pool.intern(artist);
+      this.name = nameEntry.getValue();
+      this.nameKey = nameEntry.getKey();
+      this.artist = artistEntry.getValue();
+      this.artistKey = artistEntry.getKey();
+    } else {
+      this.name = name;
+      this.nameKey = StringPool.fold(name);
+      this.artist = artist;
+      this.artistKey = StringPool.fold(artist);
+    }
+    this.fileSize = fileSize;
+    this.duration = duration;
+    this.hash = 31 * artistKey.hashCode() + nameKey.hashCode();
+  }
 
-    setName(name);
-    setArtist(artist);
-    setFileSize(fileSize);
-    setDuration(duration);
+  //copy with a different name
+  public Song withName(String value, StringPool pool) {
+    return new Song(value, artist, fileSize, duration, pool);
   }
 
-  //name getter/setter
-  public void setName(String value) {
-    name = value;
+  //copy with a different artist
+  public Song withArtist(String value, StringPool pool) {
+    return new Song(name, value, fileSize, duration, pool);
   }
 
+  //name getter
   public String getName() {
     return name;
   }
 
-  //artist getter/setter
-  public void setArtist(String value) {
-    artist = value;
-  }
-
+  //artist getter
   public String getArtist() {
     return artist;
   }
 
-  //filesize getter/setter
-  public void setFileSize(int value) {
-    fileSize = value;
+  //case folded keys
+  public String getNameKey() {
+    return nameKey;
   }
 
-  public int getFileSize() {
-    return fileSize;
+  public String getArtistKey() {
+    return artistKey;
   }
 
-  //duration getter/setter
-  public void setDuration(int value) {
-    duration = value;
+  //filesize getter
+  public int getFileSize() {
+    return fileSize;
   }
 
+  //duration getter
   public int getDuration() {
     return duration;
   }
@@ -60,8 +86,28 @@ public class Song {
   /*
     Songs are considered equal if song name and artist name matches (case insensitive)
    */
-  public boolean equals(Song s) {
-    return s.artist.compareToIgnoreCase(this.artist) + s.name.compareToIgnoreCase(this.name) == 0;
+  @Override
+  public boolean equals(Object o) {
+    if (this == o) return true;
+    if (!(o instanceof Song)) return false;
+
+    Song s = (Song) o;
+    return s.hash == this.hash && s.artistKey.equals(this.artistKey) && s.nameKey.equals(this.nameKey);
+  }
+
+  /*
+    Whether every field matches exactly, unlike equals which ignores case, file size and duration
+    Stores that read songs back from a file return a new copy each time, so this is how to tell
+    whether a song is still the one read earlier
+   */
+  public boolean isSameAs(Song other) {
+    return other != null && fileSize == other.fileSize && duration == other.duration
+        && name.equals(other.name) && artist.equals(other.artist);
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
   }
 
   @Override
@@ -1,86 +1,298 @@
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 import java.util.Comparator;
-import java.util.Scanner;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.GZIPOutputStream;
 
 public class SongDatabase {
-  private static final int SIZE_INCREMENT = 4;
+  private static final int DEFAULT_PARALLEL_THRESHOLD = 50000;
+  private static final int NO_LIMIT = -1;
 
-  private Song[] allSongs;
-  private int logicalSize;
+  //storage engine holding the songs
+  private final SongStore songs;
+  private int parallelThreshold;
+
+  //shares repeated names and artists between songs
+  private final StringPool stringPool;
+
+  //exact name and artist of every song, for duplicate checks
+  //databases opened from a snapshot build it in the background, see keyIndex()
+  private volatile SongKeyIndex keyIndex;
+  private volatile FutureTask<SongKeyIndex> pendingKeyIndex;
+
+  //recent duration query results
+  private QueryCache queryCache;
+
+  //queries being worked out right now, so concurrent readers missing the cache share one result
+  private final ConcurrentHashMap<String, FutureTask<Song[]>> runningQueries;
+
+  //change tracking since the last save or load
+  //songs from firstDirtyIndex onwards differ from what is in savedPath
+  private int modCount;
+  private int savedModCount;
+  private int savedSize;
+  private int firstDirtyIndex;
+  private String savedPath;
+  private long savedLength;
+  private long savedLastModified;
+  //a file whose last line has no line break needs one before anything is appended to it
+  private boolean savedEndsWithLineBreak;
+
+  //created on the first background save
+  private BackgroundSaver backgroundSaver;
+
+  //told about every add, remove and edit
+  private final List<SongDatabaseListener> listeners;
+
+  //created the first time statistics are asked for, then kept up to date
+  private volatile CatalogueStats stats;
+
+  //any number of readers at once, or a single writer
+  private final ReentrantReadWriteLock lock;
+
+  //saves only read the songs, but two saves to the same file must not overlap
+  private final Object saveLock;
+
+  //saves are numbered when their songs are read, so a queued background save
+  //can tell a later one has already landed, guarded by saveLock
+  private final AtomicLong saveGenerations;
+  private long landedGeneration;
 
   /*
     Empty constructor
+    Songs are kept in the engine named by the songdb.store system property, see SongStores
   */
   public SongDatabase() {
-    allSongs = new Song[SIZE_INCREMENT];
-    logicalSize = 0;
+    this(SongStores.createConfigured());
   }
 
   /*
-    Add a song to database
+    Keeps songs in the given storage engine, which should be empty
   */
-  public void addSong(Song song) {
-    //we need to expand the array ie. there are no spots left
-    if (logicalSize >= allSongs.length) {
-      //get original size so we know where to put new song
-      int origSize = allSongs.length;
+  public SongDatabase(SongStore store) {
+    songs = store;
+    parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+    stringPool = new StringPool();
+    keyIndex = new SongKeyIndex(store);
+    queryCache = new QueryCache();
+    runningQueries = new ConcurrentHashMap<String, FutureTask<Song[]>>();
+    modCount = 0;
+    savedModCount = 0;
+    savedSize = 0;
+    firstDirtyIndex = 0;
+    //copied on change, so a listener can be added while a writer is telling the others
+    listeners = new CopyOnWriteArrayList<SongDatabaseListener>();
+    lock = new ReentrantReadWriteLock();
+    saveLock = new Object();
+    saveGenerations = new AtomicLong();
+  }
 
-      //expand the array
-      allSongs = resizeArray(true, allSongs);
-      allSongs[origSize] = song;
-    }
-    //we have spots left. find the first empty spot and fill it
-    else {
-      int index = indexOfFirstEmpty();
-      allSongs[index] = song;
+  /*
+    Lets go of anything the store holds open, like the file a lazy store reads songs from
+    The songs can't be read after this
+  */
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      if (songs instanceof Closeable) {
+        ((Closeable) songs).close();
+      }
+    } finally {
+      lock.writeLock().unlock();
     }
+  }
 
-    logicalSize++;
+  /*
+    Opens a snapshot written by saveSnapshot
+    The songs can be used straight away, the duplicate check index is built in the background
+    and anything that needs it, like adding or loading songs, waits for it to finish
+  */
+  public static SongDatabase openSnapshot(File file) throws IOException {
+    final SnapshotSongStore store = SnapshotSongStore.open(file);
+    SongDatabase database = new SongDatabase(store);
+
+    FutureTask<SongKeyIndex> build = new FutureTask<SongKeyIndex>(new Callable<SongKeyIndex>() {
+      public SongKeyIndex call() {
+        //nothing can change the store until this is done, every edit waits for the index first
+        SongKeyIndex keys = new SongKeyIndex(store, store.getSnapshotSize());
+        for (int i = 0; i < store.getSnapshotSize(); i++) {
+          keys.add(store.getSnapshotName(i), store.getSnapshotArtist(i), i);
+        }
+        return keys;
+      }
+    });
+    database.pendingKeyIndex = build;
+
+    Thread builder = new Thread(build, "song-key-index");
+    builder.setDaemon(true);
+    builder.start();
+    return database;
   }
 
   /*
-   * Returns the first empty index in the songs array
-   */
-  private int indexOfFirstEmpty() {
-    //reverse loop because there will only be at most 4 empty slots at the end of the array
-    //this has a maximum of O(4) complexity
-    //a forward loop would have O(n + 1) complexity
-    for (int i = allSongs.length - 1; i >= 0; i--) {
-      if (allSongs[i] != null) {
-        return i + 1;
+    The duplicate check index, waiting for it if it is still being built
+    Every edit must get this before touching the store
+  */
+  private SongKeyIndex keyIndex() {
+    FutureTask<SongKeyIndex> pending = pendingKeyIndex;
+    if (pending != null) {
+      try {
+        keyIndex = pending.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for the song index", e);
+      } catch (ExecutionException e) {
+        throw new IllegalStateException("Couldn't build the song index", e.getCause());
       }
+      pendingKeyIndex = null;
     }
+    return keyIndex;
+  }
+
+  /*
+    Locks for callers that need several operations to see the same database
+    Every public method already takes the lock it needs, and both are reentrant
+   */
+  public Lock readLock() {
+    return lock.readLock();
+  }
+
+  public Lock writeLock() {
+    return lock.writeLock();
+  }
 
-    return 0;
+  public void addListener(SongDatabaseListener listener) {
+    listeners.add(listener);
   }
 
-  private Song[] resizeArray(boolean expanding, Song[] arr) {
-    if (expanding) {
-      //increase size by set increment
-      int newSize = arr.length + SIZE_INCREMENT;
+  public void removeListener(SongDatabaseListener listener) {
+    listeners.remove(listener);
+  }
 
-      //create new expanded array
-      Song[] expandedArray = new Song[newSize];
+  /*
+    Queries over at least this many songs are scanned and sorted in parallel
+   */
+  public void setParallelThreshold(int value) {
+    parallelThreshold = value;
+  }
 
-      //copy old contents to new array
-      System.arraycopy(arr, 0, expandedArray, 0, arr.length);
+  public int getParallelThreshold() {
+    return parallelThreshold;
+  }
+
+  /*
+    Cache used for duration queries
+    Replace it to change its capacity or memory bound
+   */
+  public void setQueryCache(QueryCache cache) {
+    queryCache = cache;
+  }
 
-      return expandedArray;
-    } else {
-      //we are making the array smaller
-      int halfSize = arr.length / 2;
-      int newSize = halfSize > SIZE_INCREMENT ? halfSize : SIZE_INCREMENT;
+  public QueryCache getQueryCache() {
+    return queryCache;
+  }
 
-      //create new contracted array
-      Song[] smallArray = new Song[newSize];
+  /*
+    Pool that songs in this database should share their strings through
+   */
+  public StringPool getStringPool() {
+    return stringPool;
+  }
 
-      //copy old contents to new array
-      System.arraycopy(arr, 0, smallArray, 0, smallArray.length);
+  /*
+    Add a song to database
+  */
+  public void addSong(Song song) {
+    lock.writeLock().lock();
+    try {
+      SongKeyIndex keys = keyIndex();
+      songs.add(song);
+      keys.add(song.getName(), song.getArtist(), songs.size() - 1);
+      markDirty(songs.size() - 1);
+
+      for (SongDatabaseListener listener : listeners) {
+        listener.songAdded(songs.size() - 1, song);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+    Puts a song at the given index, later songs move down a place
+    Like addSong, it doesn't check for duplicates
+  */
+  public void insertSong(int index, Song song) {
+    lock.writeLock().lock();
+    try {
+      SongKeyIndex keys = keyIndex();
+      songs.insert(index, song);
+      //nothing moves when the song goes on the end
+      if (index < songs.size() - 1) {
+        keys.shift(index, 1);
+      }
+      keys.add(song.getName(), song.getArtist(), index);
+      markDirty(index);
+
+      for (SongDatabaseListener listener : listeners) {
+        listener.songAdded(index, song);
+      }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+    Adds the song unless one with the same name and artist is already in the database
+    Returns whether it was added
+  */
+  public boolean addSongIfAbsent(Song song) {
+    lock.writeLock().lock();
+    try {
+      if (contains(song.getName(), song.getArtist())) {
+        return false;
+      }
+      addSong(song);
+      return true;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
 
-      return smallArray;
+  /*
+    Adds each song that isn't in the database yet, in order, under one write lock
+    Returns how many were added
+  */
+  public int addSongsIfAbsent(List<Song> newSongs) {
+    lock.writeLock().lock();
+    try {
+      int added = 0;
+      for (Song song : newSongs) {
+        if (addSongIfAbsent(song)) {
+          added++;
+        }
+      }
+      return added;
+    } finally {
+      lock.writeLock().unlock();
     }
   }
 
@@ -88,123 +300,534 @@ public class SongDatabase {
     Mutator Methods
   */
   public Song getSong(int num) {
-    return allSongs[num];
+    lock.readLock().lock();
+    try {
+      return songs.get(num);
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /*
    * Removes a song from the database
    */
   public void removeSong(int index) {
-    //set song to null
-    allSongs[index] = null;
-
-    //update logicalSize
-    logicalSize--;
+    lock.writeLock().lock();
+    try {
+      SongKeyIndex keys = keyIndex();
+      Song removed = songs.get(index);
+      keys.remove(removed.getName(), removed.getArtist(), index);
+      songs.remove(index);
+      if (index < songs.size()) {
+        keys.shift(index + 1, -1);
+      }
 
-    //update numberOfSongs
-    Song.numberOfSongs--;
+      //every song after the removed one has moved up a place
+      markDirty(index);
 
-    //move null index item to the end
-    for (int i = index; i < allSongs.length; i++) {
-      if (allSongs.length == i + 1 || allSongs[i + 1] == null) {
-        break;
+      for (SongDatabaseListener listener : listeners) {
+        listener.songRemoved(index, removed);
       }
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Renames the song at the given index
+   * Songs can't change, so it is replaced with a renamed copy which is returned
+   */
+  public Song setSongName(int index, String name) {
+    lock.writeLock().lock();
+    try {
+      return replaceSong(index, getSong(index).withName(name, stringPool));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Changes the artist of the song at the given index
+   * Songs can't change, so it is replaced with a copy which is returned
+   */
+  public Song setSongArtist(int index, String artist) {
+    lock.writeLock().lock();
+    try {
+      return replaceSong(index, getSong(index).withArtist(artist, stringPool));
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
 
-      allSongs[i] = allSongs[i + 1];
-      allSongs[i + 1] = null;
+  /*
+   * Puts the given song in place of the one at the given index, returning the one replaced
+   */
+  public Song setSong(int index, Song song) {
+    lock.writeLock().lock();
+    try {
+      Song old = songs.get(index);
+      replaceSong(index, song);
+      return old;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+   * Puts an edited copy of a song in its place
+   * Callers must hold the write lock
+   */
+  private Song replaceSong(int index, Song edited) {
+    SongKeyIndex keys = keyIndex();
+    Song old = songs.get(index);
+    keys.remove(old.getName(), old.getArtist(), index);
+    songs.set(index, edited);
+    keys.add(edited.getName(), edited.getArtist(), index);
+    markDirty(index);
+
+    for (SongDatabaseListener listener : listeners) {
+      listener.songReplaced(index, old, edited);
     }
+    return edited;
+  }
 
-    if (logicalSize < (allSongs.length / 2)) {
-      //resize the array
-      allSongs = resizeArray(false, allSongs);
+  /*
+   * Records that the songs from the given index onwards have changed
+   */
+  private synchronized void markDirty(int index) {
+    modCount++;
+    if (index < firstDirtyIndex) {
+      firstDirtyIndex = index;
     }
   }
 
+  /*
+   * Counter that is bumped by every change to the database
+   */
+  public synchronized int getModificationCount() {
+    return modCount;
+  }
+
+  /*
+   * Whether the database has changed since it was last saved or loaded
+   */
+  public synchronized boolean isModified() {
+    return modCount != savedModCount;
+  }
+
+  /*
+   * Remembers that the database now matches the given file
+   */
+  private synchronized void markSaved(File file) {
+    markSaved(file, modCount, songs.size(), true);
+  }
+
+  /*
+   * Remembers that the given file holds the database as it was at the given modification count
+   */
+  private synchronized void markSaved(File file, int modCount, int size, boolean endsWithLineBreak) {
+    savedEndsWithLineBreak = endsWithLineBreak;
+    savedModCount = modCount;
+    savedSize = size;
+    //if it has changed since, we no longer know which songs are dirty
+    firstDirtyIndex = modCount == this.modCount ? size : 0;
+    savedPath = file.getAbsolutePath();
+    savedLength = file.length();
+    savedLastModified = file.lastModified();
+  }
+
+  /*
+   * Checks that the given file is the one we last saved or loaded, and nobody else has touched it
+   */
+  private synchronized boolean isSavedFile(File file) {
+    return file.getAbsolutePath().equals(savedPath)
+        && file.length() == savedLength
+        && file.lastModified() == savedLastModified;
+  }
+
   /*
    * Gets the total amount of songs in the database
    */
   public int getTotalSongs() {
-    return logicalSize;
+    lock.readLock().lock();
+    try {
+      return songs.size();
+    } finally {
+      lock.readLock().unlock();
+    }
   }
 
   /*
     Load songs into array from given file
   */
   public int loadSongs(File dataFile) throws IOException, ClassNotFoundException {
-    Scanner fileScanner = new Scanner(dataFile);
+    lock.writeLock().lock();
+    try {
+      //checks the header and handles compressed files
+      SongFileReader songReader = new SongFileReader(dataFile);
+
+      boolean wasEmpty = songs.size() == 0 && !isModified();
+      int count;
+      try {
+        count = loadSongs(songReader);
+      } finally {
+        songReader.close();
+      }
 
-    //confirm that we have a songdb file
-    boolean isSongDatabase = fileScanner.nextLine().equals("SongDatabase File");
-    if (!isSongDatabase) {
-      throw new IOException("Given file is not a SongDatabase file.");
+      //a fresh database loaded in full is the same as the file, so there is nothing to save yet
+      if (wasEmpty && count == songReader.getRecordsRead()) {
+        markSaved(dataFile, modCount, songs.size(), songReader.endsWithLineBreak());
+      }
+      return count;
+    } finally {
+      lock.writeLock().unlock();
     }
+  }
+
+  /*
+    Loads the songs from every record the reader has left, skipping ones already in the database
+    The reader is left open, so a tailing reader's record end says where to carry on from
+    Returns the number of songs added
+  */
+  public int loadSongs(SongFileReader songReader) throws IOException {
+    lock.writeLock().lock();
+    try {
+      //a lazy store only needs to know where each record is in the file
+      LazySongStore lazy = null;
+      if (songs instanceof LazySongStore && !songReader.isCompressed() && ((LazySongStore) songs).attach(songReader.getFile())) {
+        lazy = (LazySongStore) songs;
+      }
 
-    int count = 0;
-    while (fileScanner.hasNextLine()) {
-      if (fileScanner.nextLine().startsWith("Song")) {
-        String songName = fileScanner.nextLine();
-        String artistName = fileScanner.nextLine();
+      int count = 0;
+      while (songReader.nextRecord()) {
+        String songName = songReader.getName();
+        String artistName = songReader.getArtist();
 
         if (contains(songName, artistName)) {
           continue;
         }
 
-        String fileSizeStr = fileScanner.nextLine();
-        int fileSize = Integer.parseInt(fileSizeStr.substring(0, fileSizeStr.indexOf('k')));
-        int duration = Integer.parseInt(fileScanner.nextLine());
-
-        Song newSong = new Song(songName, artistName, fileSize, duration);
-        this.addSong(newSong);
+        if (lazy != null) {
+          addRecord(lazy, songReader);
+        } else {
+          Song newSong = new Song(songName, artistName, songReader.getFileSize(), songReader.getDuration(), stringPool);
+          this.addSong(newSong);
+        }
         count++;
       }
+      return count;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+    Adds the reader's current record to a lazy store without keeping a Song for it
+    Callers must hold the write lock
+  */
+  private void addRecord(LazySongStore lazy, SongFileReader songReader) {
+    SongKeyIndex keys = keyIndex();
+    lazy.addRecord(songReader.getRecordOffset(), songReader.getDuration());
+    keys.add(songReader.getName(), songReader.getArtist(), songs.size() - 1);
+    markDirty(songs.size() - 1);
+
+    if (!listeners.isEmpty()) {
+      Song song = new Song(songReader.getName(), songReader.getArtist(), songReader.getFileSize(), songReader.getDuration(), stringPool);
+      for (SongDatabaseListener listener : listeners) {
+        listener.songAdded(songs.size() - 1, song);
+      }
+    }
+  }
+
+  /*
+    Writes every song to a binary snapshot that openSnapshot can map almost instantly
+    Returns the number of bytes written
+  */
+  public long saveSnapshot(File file) throws IOException {
+    lock.readLock().lock();
+    try {
+      Map<String, Comparator<Song>> sorts = new LinkedHashMap<String, Comparator<Song>>();
+      sorts.put("name", nameComparator());
+      sorts.put("artist", artistComparator());
+      sorts.put("fileSize", fileSizeComparator());
+      sorts.put("duration", durationComparator());
+      return SnapshotSongStore.write(songs, file, sorts);
+    } finally {
+      lock.readLock().unlock();
     }
-    fileScanner.close();
-    return count;
   }
 
   /*
     Save database song objects to file
+    Nothing is written if the file is already up to date,
+    and new songs are appended if they are the only change
+    Otherwise the file is replaced atomically, so a crash can never leave it half written
+    Paths ending in .gz are saved compressed
+  */
+  public SaveReport saveToFile(String filePath) throws IOException {
+    lock.readLock().lock();
+    try {
+      synchronized (saveLock) {
+        long generation = saveGenerations.incrementAndGet();
+        SaveReport report = writeToFile(filePath);
+        landedGeneration = generation;
+        return report;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  private SaveReport writeToFile(String filePath) throws IOException {
+    boolean compressed = isCompressedPath(filePath);
+    filePath = withExtension(filePath);
+
+    File file = new File(filePath);
+    if (isSavedFile(file)) {
+      if (!isModified()) {
+        return new SaveReport(SaveReport.Mode.SKIPPED, filePath, 0, 0);
+      }
+
+      //only new songs on the end, the rest of the file is still correct
+      if (firstDirtyIndex >= savedSize) {
+        int written = songs.size() - savedSize;
+        long bytes = AtomicFile.append(file, songsContent(savedSize, songs.size(), false, !savedEndsWithLineBreak, compressed));
+        markSaved(file);
+        return new SaveReport(SaveReport.Mode.APPENDED, filePath, written, bytes);
+      }
+    }
+
+    long bytes = AtomicFile.replace(file, songsContent(0, songs.size(), true, false, compressed));
+    markSaved(file);
+    return new SaveReport(SaveReport.Mode.REWRITTEN, filePath, songs.size(), bytes);
+  }
+
+  /*
+    Saves the whole database to file without waiting for the disk
+    The songs are encoded straight away, then written and synced on a background thread
+    If a save started later has reached the file by then, this one is skipped instead
   */
-  public boolean saveToFile(String filePath) throws IOException {
+  public Future<SaveReport> saveToFileInBackground(String filePath) throws IOException {
+    lock.readLock().lock();
+    try {
+      boolean compressed = isCompressedPath(filePath);
+      filePath = withExtension(filePath);
+
+      final String path = filePath;
+      final File file = new File(filePath);
+      if (isSavedFile(file) && !isModified()) {
+        FutureTask<SaveReport> skipped = new FutureTask<SaveReport>(new Callable<SaveReport>() {
+          public SaveReport call() {
+            return new SaveReport(SaveReport.Mode.SKIPPED, path, 0, 0);
+          }
+        });
+        skipped.run();
+        return skipped;
+      }
+
+      final long generation = saveGenerations.incrementAndGet();
+      final int snapshotModCount = getModificationCount();
+      final int snapshotSize = songs.size();
+      return backgroundSaver().save(songsContent(0, songs.size(), true, false, compressed), new BackgroundSaver.Write() {
+        public SaveReport write(AtomicFile.Content content) throws IOException {
+          synchronized (saveLock) {
+            //a save started later has already landed, writing this one would roll the file back
+            if (generation < landedGeneration) {
+              return new SaveReport(SaveReport.Mode.SKIPPED, path, 0, 0);
+            }
+            long bytes = AtomicFile.replace(file, content);
+            markSaved(file, snapshotModCount, snapshotSize, true);
+            landedGeneration = generation;
+            return new SaveReport(SaveReport.Mode.REWRITTEN, path, snapshotSize, bytes);
+          }
+        }
+      });
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /*
+    Statistics about the songs, worked out in one pass the first time and kept up to date after,
+    so later calls cost nothing
+   */
+  public CatalogueStats getStats() {
+    CatalogueStats current = stats;
+    if (current != null) {
+      return current;
+    }
+
+    //the write lock, not this object's monitor, which writers take while holding it
+    lock.writeLock().lock();
+    try {
+      if (stats == null) {
+        stats = CatalogueStats.attach(this);
+      }
+      return stats;
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /*
+    Background saves can be started by several readers at once, so create the saver only once
+   */
+  private synchronized BackgroundSaver backgroundSaver() {
+    if (backgroundSaver == null) {
+      backgroundSaver = new BackgroundSaver();
+    }
+    return backgroundSaver;
+  }
+
+  /*
+    Whether the given path asks for a compressed file
+   */
+  static boolean isCompressedPath(String filePath) {
+    return filePath.endsWith(".gz");
+  }
+
+  /*
+    Makes sure the file path has the right extension, .txt or .txt.gz when compressed
+   */
+  static String withExtension(String filePath) {
+    boolean compressed = isCompressedPath(filePath);
+    if (compressed)
+      filePath = filePath.substring(0, filePath.length() - ".gz".length());
+
     //does file path have right extension
     if (!filePath.endsWith(".txt"))
       filePath += ".txt";
 
-    PrintWriter out = new PrintWriter(filePath);
+    return compressed ? filePath + ".gz" : filePath;
+  }
+
+  /*
+    File content for the songs in the given index range, optionally with the file header,
+    or with a line break to end a last line that was saved without one
+    Compressed content is a complete gzip member, so appended members still read as one stream
+   */
+  private AtomicFile.Content songsContent(final int from, final int to, final boolean header, final boolean lineBreak,
+      final boolean compressed) {
+    return new AtomicFile.Content() {
+      public void writeTo(OutputStream out) throws IOException {
+        GZIPOutputStream gzip = null;
+        if (compressed) {
+          gzip = new GZIPOutputStream(out, 1 << 16);
+          out = gzip;
+        }
+
+        //same charset the loader reads with
+        Writer writer = new OutputStreamWriter(out, Charset.defaultCharset());
+        if (header) {
+          writer.write(SongFileReader.HEADER + System.lineSeparator());
+        }
+        if (lineBreak) {
+          writer.write('\n');
+        }
+        writeSongs(writer, from, to);
+        writer.flush();
+
+        if (gzip != null) {
+          gzip.finish();
+        }
+      }
+    };
+  }
+
+  /*
+    Writes the songs in the given index range in database file format
+   */
+  private void writeSongs(Writer out, int from, int to) throws IOException {
+    for (int i = from; i < to; i++) {
+      Song song = songs.get(i);
+      String songString = String.format("Song %d\n%s\n%s\n%skB\n%d\n", i + 1, song.getName(), song.getArtist(), song.getFileSize(), song.getDuration());
+      out.write(songString);
+    }
+  }
+
+  /*
+    Runs a duration query through the query cache
+    Any change to the database since the result was cached makes it a miss
+    Readers that miss on the same query at the same time wait for one of them to work it out
+   */
+  private Song[] cachedSongsLessThan(final String sortKey, final int duration, final int limit, final Comparator<Song> comparator) {
+    final String query = sortKey + "<" + duration + "#" + limit;
+    lock.readLock().lock();
     try {
-      out.println("SongDatabase File");
-      for (int i = 0; i < logicalSize; i++) {
-        Song song = allSongs[i];
-        String songString = String.format("Song %d\n%s\n%s\n%skB\n%d\n", i + 1, song.getName(), song.getArtist(), song.getFileSize(), song.getDuration());
-        out.print(songString);
+      //writers are locked out, so the modification count can't change until we're done
+      final int modCount = getModificationCount();
+
+      Song[] result = queryCache.get(query, modCount);
+      if (result != null) {
+        return result;
       }
+
+      FutureTask<Song[]> task = new FutureTask<Song[]>(new Callable<Song[]>() {
+        public Song[] call() {
+          Song[] computed = null;
+          //a snapshot that hasn't been edited already knows the order
+          if (songs instanceof SnapshotSongStore) {
+            computed = ((SnapshotSongStore) songs).shorterThanInOrder(sortKey, duration, limit);
+          }
+          if (computed == null) {
+            computed = limit == NO_LIMIT ? songsLessThan(duration, comparator) : songsLessThan(duration, limit, comparator);
+          }
+          queryCache.put(query, modCount, computed);
+          return computed;
+        }
+      });
+
+      FutureTask<Song[]> running = runningQueries.putIfAbsent(query, task);
+      if (running == null) {
+        try {
+          task.run();
+        } finally {
+          runningQueries.remove(query, task);
+        }
+        return task.get();
+      }
+
+      //someone else is already working it out, wait for theirs and take a copy
+      return running.get().clone();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a query", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
     } finally {
-      out.close();
+      lock.readLock().unlock();
     }
-
-    return true;
   }
 
+
   /*
     Returns all songs in database that are shorter than the given duration.
     They will be sorted alphabetically
    */
   private Song[] songsLessThan(int duration, Comparator<Song> comparator) {
-    if (logicalSize == 0) return new Song[0];
+    if (songs.size() == 0) return new Song[0];
+
+    //large catalogues are split across cores
+    if (songs.size() >= parallelThreshold) {
+      Song[] matched = ParallelSongs.shorterThan(songs, duration);
+      ParallelSongs.sort(matched, comparator);
+      return matched;
+    }
 
     //filter songs by duration
-    Song[] matched = new Song[4];
+    //there can never be more matches than songs, so size the array once and trim it after
+    Song[] matched = new Song[songs.size()];
     int matchedLogicalSize = 0;
-    for (int i = 0; i < logicalSize; i++) {
-      Song song = allSongs[i];
-      if (song.getDuration() < duration) {
-        if (matched.length == matchedLogicalSize) {
-          matched = resizeArray(true, matched);
-        }
-        matched[matchedLogicalSize] = song;
+    for (int i = 0; i < songs.size(); i++) {
+      if (songs.getDuration(i) < duration) {
+        matched[matchedLogicalSize] = songs.get(i);
         matchedLogicalSize++;
       }
     }
+    matched = Arrays.copyOf(matched, matchedLogicalSize);
 
     /*
      * Sort it
@@ -214,6 +837,61 @@ public class SongDatabase {
     return matched;
   }
 
+  /*
+    Returns at most limit songs in the database that are shorter than the given duration.
+    Only the first limit songs in comparator order are kept, using a bounded heap
+    so we never hold or sort more than limit songs at a time
+   */
+  private Song[] songsLessThan(int duration, int limit, final Comparator<Song> comparator) {
+    if (limit <= 0 || songs.size() == 0) return new Song[0];
+
+    //max-heap so the worst kept song is always at the head
+    //ties are broken on index, giving the same order as the stable full sort
+    Comparator<RankedSong> worstFirst = new Comparator<RankedSong>() {
+      public int compare(RankedSong r1, RankedSong r2) {
+        int result = comparator.compare(r2.song, r1.song);
+        return result != 0 ? result : r2.index - r1.index;
+      }
+    };
+    PriorityQueue<RankedSong> heap = new PriorityQueue<RankedSong>(Math.min(limit, songs.size()) + 1, worstFirst);
+
+    for (int i = 0; i < songs.size(); i++) {
+      if (songs.getDuration(i) >= duration) continue;
+
+      Song song = songs.get(i);
+      if (heap.size() < limit) {
+        heap.add(new RankedSong(song, i));
+      }
+      //only replace the head if the new song sorts before it
+      //later indexes lose ties, so equal songs never replace the head
+      else if (comparator.compare(song, heap.peek().song) < 0) {
+        heap.poll();
+        heap.add(new RankedSong(song, i));
+      }
+    }
+
+    //drain the heap from the back so the result is in ascending order
+    Song[] matched = new Song[heap.size()];
+    for (int i = matched.length - 1; i >= 0; i--) {
+      matched[i] = heap.poll().song;
+    }
+
+    return matched;
+  }
+
+  /*
+    A song and its position in the database, used by the top-K queries
+   */
+  private static class RankedSong {
+    final Song song;
+    final int index;
+
+    RankedSong(Song song, int index) {
+      this.song = song;
+      this.index = index;
+    }
+  }
+
   private Comparator<Song> artistComparator() {
     return new Comparator<Song>() {
       public int compare(Song s1, Song s2) {
@@ -223,7 +901,7 @@ public class SongDatabase {
           return 1;
         }
 
-        return s1.getArtist().compareToIgnoreCase(s2.getArtist());
+        return s1.getArtistKey().compareTo(s2.getArtistKey());
       }
     };
   }
@@ -237,7 +915,7 @@ public class SongDatabase {
           return 1;
         }
 
-        return s1.getName().compareToIgnoreCase(s2.getName());
+        return s1.getNameKey().compareTo(s2.getNameKey());
       }
     };
   }
@@ -277,31 +955,50 @@ public class SongDatabase {
   }
 
   /*
-    Checks if given song is in the database
+    Checks if given song is in the database, by exact name and artist
    */
   public boolean contains(String name, String artist) {
-    for (int i = 0; i < logicalSize; i++) {
-      Song song = allSongs[i];
-      if (song.getName().equals(name) && song.getArtist().equals(artist)) {
-        return true;
-      }
+    lock.readLock().lock();
+    try {
+      return keyIndex().contains(name, artist);
+    } finally {
+      lock.readLock().unlock();
     }
-    return false;
   }
 
   public Song[] songsLessThanDurationByName(int duration) {
-    return songsLessThan(duration, nameComparator());
+    return cachedSongsLessThan("name", duration, NO_LIMIT, nameComparator());
   }
 
   public Song[] songsLessThanDurationByArtist(int duration) {
-    return songsLessThan(duration, artistComparator());
+    return cachedSongsLessThan("artist", duration, NO_LIMIT, artistComparator());
   }
 
   public Song[] songsLessThanDurationByFileSize(int duration) {
-    return songsLessThan(duration, fileSizeComparator());
+    return cachedSongsLessThan("fileSize", duration, NO_LIMIT, fileSizeComparator());
   }
 
   public Song[] songsLessThanDurationByDuration(int duration) {
-    return songsLessThan(duration, durationComparator());
+    return cachedSongsLessThan("duration", duration, NO_LIMIT, durationComparator());
+  }
+
+  /*
+    Top-K variants of the duration queries
+    Return at most limit songs, ordered the same way as the full queries
+   */
+  public Song[] songsLessThanDurationByName(int duration, int limit) {
+    return cachedSongsLessThan("name", duration, limit, nameComparator());
+  }
+
+  public Song[] songsLessThanDurationByArtist(int duration, int limit) {
+    return cachedSongsLessThan("artist", duration, limit, artistComparator());
+  }
+
+  public Song[] songsLessThanDurationByFileSize(int duration, int limit) {
+    return cachedSongsLessThan("fileSize", duration, limit, fileSizeComparator());
+  }
+
+  public Song[] songsLessThanDurationByDuration(int duration, int limit) {
+    return cachedSongsLessThan("duration", duration, limit, durationComparator());
   }
 }
\ No newline at end of file
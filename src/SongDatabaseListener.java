@@ -0,0 +1,10 @@
+/*
+  Told about every change made to a SongDatabase, straight after it happens
+ */
+public interface SongDatabaseListener {
+  void songAdded(int index, Song song);
+
+  void songRemoved(int index, Song song);
+
+  void songReplaced(int index, Song song, Song replacement);
+}
\ No newline at end of file
@@ -0,0 +1,261 @@
+import java.io.BufferedInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+/*
+  Streams song records out of a SongDatabase file one at a time
+  Compressed files are detected by their magic bytes and decompressed on the fly
+  Lines are split on the raw bytes so the reader knows where each record starts in the file
+  A file that is still being appended to can be tailed from where the last read ended
+
+  A last record with lines missing, eg. from a crash while appending, is ignored. A
+  last line without a line break is taken as complete though, since hand written
+  files like the sample database end that way: a number cut short in its last line,
+  "65" for "652", can't be told from a whole one and is loaded as it is. Files this
+  program writes end every line, and tailing only takes records whose last line ended
+ */
+public class SongFileReader {
+  public static final String HEADER = "SongDatabase File";
+
+  private static final int BUFFER_SIZE = 1 << 16;
+
+  private final File file;
+  private final InputStream in;
+  private final boolean compressed;
+
+  //when tailing, a record only counts once its last line has been ended
+  private final boolean tailing;
+  private boolean lineEnded;
+  private boolean endsWithLineBreak;
+  private final Charset charset;
+
+  //bytes read from the stream but not used yet
+  private final byte[] buffer;
+  private int bufferPosition;
+  private int bufferLimit;
+
+  //current line, grown when a line doesn't fit
+  private byte[] line;
+
+  //position in the uncompressed content of the next unread byte
+  private long position;
+  private long recordOffset;
+  private long recordEnd;
+  private int recordsRead;
+
+  //fields of the current record
+  private String name;
+  private String artist;
+  private int fileSize;
+  private int duration;
+
+  public SongFileReader(File dataFile) throws IOException {
+    this(dataFile, 0, false);
+  }
+
+  private SongFileReader(File dataFile, long offset, boolean tailing) throws IOException {
+    FileInputStream fileStream = new FileInputStream(dataFile);
+    InputStream stream = fileStream;
+    try {
+      compressed = isCompressed(fileStream);
+      if (compressed && offset > 0) {
+        throw new IOException("Compressed files can only be read from the start.");
+      }
+      fileStream.getChannel().position(offset);
+      stream = new BufferedInputStream(fileStream, BUFFER_SIZE);
+      if (compressed) {
+        stream = new GZIPInputStream(stream, BUFFER_SIZE);
+      }
+      file = dataFile;
+      in = stream;
+      this.tailing = tailing;
+      //same charset the database writes with
+      charset = Charset.defaultCharset();
+      buffer = new byte[BUFFER_SIZE];
+      line = new byte[256];
+      position = offset;
+      recordOffset = -1;
+
+      //confirm that we have a songdb file
+      if (offset == 0 && !HEADER.equals(readLine())) {
+        throw new IOException("Given file is not a SongDatabase file.");
+      }
+      recordEnd = position;
+    } catch (IOException e) {
+      stream.close();
+      throw e;
+    }
+  }
+
+  /*
+    Reader for the records after the given offset of a file that may still be growing,
+    usually the record end of an earlier reader
+    An offset of 0 reads from the start, header included
+   */
+  public static SongFileReader tail(File dataFile, long offset) throws IOException {
+    return new SongFileReader(dataFile, offset, true);
+  }
+
+  /*
+    Reads the start of the file for the gzip magic bytes
+   */
+  private static boolean isCompressed(FileInputStream in) throws IOException {
+    int first = in.read();
+    int second = in.read();
+    return first == 0x1f && second == 0x8b;
+  }
+
+  /*
+    Moves on to the next song record
+    Returns false once there are no complete records left
+   */
+  public boolean nextRecord() throws IOException {
+    try {
+      String line;
+      long offset;
+      do {
+        offset = position;
+        line = readLine();
+        if (line == null) return false;
+      } while (!line.startsWith("Song"));
+
+      String songName = readLine();
+      String artistName = readLine();
+      String fileSizeStr = readLine();
+      String durationStr = readLine();
+
+      //the last record was cut short, eg. by a crash while appending to the file
+      //a duration missing its line break is still taken, see the class comment
+      if (durationStr == null) return false;
+
+      //or is still being written
+      if (tailing && !lineEnded) return false;
+
+      recordOffset = offset;
+      recordEnd = position;
+      recordsRead++;
+      name = songName;
+      artist = artistName;
+      fileSize = Integer.parseInt(fileSizeStr.substring(0, fileSizeStr.indexOf('k')));
+      duration = Integer.parseInt(durationStr);
+      return true;
+    } catch (EOFException e) {
+      //a compressed block was cut short in the same way
+      return false;
+    }
+  }
+
+  /*
+    Reads the next line without its line ending, or null at the end of the stream
+   */
+  private String readLine() throws IOException {
+    int length = 0;
+    boolean any = false;
+    lineEnded = false;
+    while (true) {
+      if (bufferPosition == bufferLimit) {
+        bufferLimit = in.read(buffer, 0, buffer.length);
+        bufferPosition = 0;
+        if (bufferLimit <= 0) {
+          bufferLimit = 0;
+          break;
+        }
+      }
+      any = true;
+
+      //copy up to the end of the line or the end of the buffer
+      int end = bufferPosition;
+      while (end < bufferLimit && buffer[end] != '\n') {
+        end++;
+      }
+      int count = end - bufferPosition;
+      if (length + count > line.length) {
+        line = Arrays.copyOf(line, Math.max(line.length * 2, length + count));
+      }
+      System.arraycopy(buffer, bufferPosition, line, length, count);
+      length += count;
+      position += count;
+      bufferPosition = end;
+
+      if (end < bufferLimit) {
+        //skip the newline itself
+        bufferPosition++;
+        position++;
+        lineEnded = true;
+        break;
+      }
+    }
+
+    if (!any) return null;
+    endsWithLineBreak = lineEnded;
+    if (length > 0 && line[length - 1] == '\r') {
+      length--;
+    }
+    return new String(line, 0, length, charset);
+  }
+
+  /*
+    Whether the last line read so far was ended, so content appended after it starts on a new line
+   */
+  public boolean endsWithLineBreak() {
+    return endsWithLineBreak;
+  }
+
+  /*
+    Whether the file is compressed, in which case record offsets can't be used to seek
+   */
+  public boolean isCompressed() {
+    return compressed;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  /*
+    Where the current record starts in the uncompressed content, counted in bytes
+   */
+  public long getRecordOffset() {
+    return recordOffset;
+  }
+
+  /*
+    Where the last complete record ends, so a later tail can carry on from there
+   */
+  public long getRecordEnd() {
+    return recordEnd;
+  }
+
+  /*
+    Number of complete records read so far
+   */
+  public int getRecordsRead() {
+    return recordsRead;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public String getArtist() {
+    return artist;
+  }
+
+  public int getFileSize() {
+    return fileSize;
+  }
+
+  public int getDuration() {
+    return duration;
+  }
+
+  public void close() throws IOException {
+    in.close();
+  }
+}
\ No newline at end of file
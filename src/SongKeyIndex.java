@@ -0,0 +1,224 @@
+import java.util.Arrays;
+
+/*
+  Counts songs by exact name and artist, so the database can check for duplicates without a scan
+  Each key is stored as a 128 bit fingerprint in flat arrays rather than as strings,
+  which keeps millions of songs cheap to index, and works the same whichever store
+  holds the songs
+
+  Each slot also remembers where one song with its key is in the store, and a fingerprint
+  hit is confirmed against that song's name and artist, so the answers are exact. Keys
+  that share a fingerprint, even ones crafted to, get slots of their own. The database
+  tells the index when songs move, see shift
+ */
+public class SongKeyIndex {
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final long SEED_HIGH = 0x9E3779B97F4A7C15L;
+  private static final long SEED_LOW = 0xC2B2AE3D27D4EB4FL;
+
+  //the songs the keys belong to, read to confirm a fingerprint hit
+  private final SongStore songs;
+
+  //open addressing with linear probing, a count of 0 marks an empty slot
+  private long[] high;
+  private long[] low;
+  private int[] counts;
+  private int used;
+
+  //where one song with the slot's key is in the store, -1 for an empty slot
+  private int[] songIndexes;
+
+  public SongKeyIndex(SongStore songs) {
+    this(songs, 0);
+  }
+
+  /*
+    Sized up front for the given number of keys
+   */
+  public SongKeyIndex(SongStore songs, int expectedKeys) {
+    this.songs = songs;
+    int capacity = INITIAL_CAPACITY;
+    while (capacity < expectedKeys * 2L) {
+      capacity *= 2;
+    }
+    allocate(capacity);
+  }
+
+  private void allocate(int capacity) {
+    high = new long[capacity];
+    low = new long[capacity];
+    counts = new int[capacity];
+    songIndexes = new int[capacity];
+    Arrays.fill(songIndexes, -1);
+    used = 0;
+  }
+
+  public boolean contains(String name, String artist) {
+    long h = fingerprint(name, artist, SEED_HIGH);
+    long l = fingerprint(name, artist, SEED_LOW);
+    return counts[find(h, l, name, artist)] > 0;
+  }
+
+  /*
+    Counts a song that is now at the given index of the store
+   */
+  public void add(String name, String artist, int index) {
+    //keep at most half full so probes stay short
+    if ((used + 1) * 2 > counts.length) {
+      grow();
+    }
+
+    long h = fingerprint(name, artist, SEED_HIGH);
+    long l = fingerprint(name, artist, SEED_LOW);
+    int slot = find(h, l, name, artist);
+    if (counts[slot] == 0) {
+      high[slot] = h;
+      low[slot] = l;
+      songIndexes[slot] = index;
+      used++;
+    }
+    counts[slot]++;
+  }
+
+  /*
+    Stops counting the song at the given index, called while it is still in the store
+   */
+  public void remove(String name, String artist, int index) {
+    long h = fingerprint(name, artist, SEED_HIGH);
+    long l = fingerprint(name, artist, SEED_LOW);
+    int slot = find(h, l, name, artist);
+    if (counts[slot] == 0) return;
+
+    counts[slot]--;
+    if (counts[slot] == 0) {
+      used--;
+      closeGap(slot);
+    } else if (songIndexes[slot] == index) {
+      songIndexes[slot] = otherCopy(name, artist, index);
+    }
+  }
+
+  /*
+    Songs from the given index on have moved by the given number of places,
+    after a song was put in or taken out of the middle of the store
+   */
+  public void shift(int from, int places) {
+    //one branch free pass over a single array, so it vectorises
+    //empty slots hold -1, which is never at or after from
+    int[] indexes = songIndexes;
+    for (int slot = 0; slot < indexes.length; slot++) {
+      int index = indexes[slot];
+      //all ones when index >= from, otherwise zero
+      int moved = (from - 1 - index) >> 31;
+      indexes[slot] = index + (places & moved);
+    }
+  }
+
+  /*
+    Slot holding the key, or the empty slot where it would go
+    Slots with the same fingerprint but a different key are probed past
+   */
+  private int find(long h, long l, String name, String artist) {
+    int mask = counts.length - 1;
+    int slot = (int) l & mask;
+    while (counts[slot] != 0 && (high[slot] != h || low[slot] != l || !isKeyAt(songIndexes[slot], name, artist))) {
+      slot = (slot + 1) & mask;
+    }
+    return slot;
+  }
+
+  private boolean isKeyAt(int index, String name, String artist) {
+    Song song = songs.get(index);
+    return song.getName().equals(name) && song.getArtist().equals(artist);
+  }
+
+  /*
+    Another song with the key, when the one a slot pointed to is being removed
+    Only exact duplicates get here, so the scan is rare
+   */
+  private int otherCopy(String name, String artist, int removed) {
+    for (int i = 0; i < songs.size(); i++) {
+      if (i != removed && isKeyAt(i, name, artist)) {
+        return i;
+      }
+    }
+    throw new IllegalStateException("Song key index is out of step with the store");
+  }
+
+  /*
+    Shifts later entries back into an emptied slot so no probe sequence is broken
+   */
+  private void closeGap(int gap) {
+    int mask = counts.length - 1;
+    int slot = (gap + 1) & mask;
+    while (counts[slot] != 0) {
+      int home = (int) low[slot] & mask;
+      //move the entry if the gap lies between its home slot and where it is now
+      boolean movable = gap <= slot ? (home <= gap || home > slot) : (home <= gap && home > slot);
+      if (movable) {
+        high[gap] = high[slot];
+        low[gap] = low[slot];
+        counts[gap] = counts[slot];
+        songIndexes[gap] = songIndexes[slot];
+        counts[slot] = 0;
+        gap = slot;
+      }
+      slot = (slot + 1) & mask;
+    }
+    songIndexes[gap] = -1;
+  }
+
+  private void grow() {
+    long[] oldHigh = high;
+    long[] oldLow = low;
+    int[] oldCounts = counts;
+    int[] oldSongIndexes = songIndexes;
+    allocate(oldCounts.length * 2);
+
+    //every key is already known to be different, so each goes in the first free slot
+    int mask = counts.length - 1;
+    for (int i = 0; i < oldCounts.length; i++) {
+      if (oldCounts[i] == 0) continue;
+
+      int slot = (int) oldLow[i] & mask;
+      while (counts[slot] != 0) {
+        slot = (slot + 1) & mask;
+      }
+      high[slot] = oldHigh[i];
+      low[slot] = oldLow[i];
+      counts[slot] = oldCounts[i];
+      songIndexes[slot] = oldSongIndexes[i];
+      used++;
+    }
+  }
+
+  /*
+    64 bit hash of the name and artist, different seeds give independent halves
+   */
+  private static long fingerprint(String name, String artist, long seed) {
+    long hash = seed;
+    for (int i = 0; i < name.length(); i++) {
+      hash = (hash ^ name.charAt(i)) * seed;
+      hash ^= hash >>> 29;
+    }
+    //the length keeps "ab" + "c" apart from "a" + "bc"
+    hash = (hash ^ name.length()) * seed;
+    for (int i = 0; i < artist.length(); i++) {
+      hash = (hash ^ artist.charAt(i)) * seed;
+      hash ^= hash >>> 29;
+    }
+    return mix(hash ^ artist.length());
+  }
+
+  /*
+    Final avalanche step from MurmurHash3
+   */
+  private static long mix(long hash) {
+    hash ^= hash >>> 33;
+    hash *= 0xFF51AFD7ED558CCDL;
+    hash ^= hash >>> 33;
+    hash *= 0xC4CEB9FE1A85EC53L;
+    hash ^= hash >>> 33;
+    return hash;
+  }
+}
\ No newline at end of file
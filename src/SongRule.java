@@ -0,0 +1,57 @@
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/*
+  Rule deciding which songs belong in a smart playlist
+  eg. artist in {U2, Elis & Tom} and duration < 400
+ */
+public class SongRule {
+  public static final int ANY_DURATION = 0;
+
+  //case folded artist names, empty means any artist
+  private final Set<String> artistKeys;
+  private final String description;
+
+  //songs must be shorter than this, ANY_DURATION for no limit
+  private final int durationCeiling;
+
+  public SongRule(String[] artists, int durationCeiling) {
+    Set<String> keys = new HashSet<String>();
+    StringBuilder names = new StringBuilder();
+    for (String artist : artists) {
+      String trimmed = artist.trim();
+      if (trimmed.length() == 0) continue;
+
+      if (keys.add(StringPool.fold(trimmed))) {
+        if (names.length() > 0) names.append(", ");
+        names.append(trimmed);
+      }
+    }
+    this.artistKeys = Collections.unmodifiableSet(keys);
+    this.durationCeiling = durationCeiling;
+
+    String artistPart = keys.isEmpty() ? "any artist" : "artist in {" + names + "}";
+    this.description = durationCeiling == ANY_DURATION ? artistPart : artistPart + " and duration < " + durationCeiling;
+  }
+
+  public boolean matches(Song song) {
+    if (durationCeiling != ANY_DURATION && song.getDuration() >= durationCeiling) {
+      return false;
+    }
+    return artistKeys.isEmpty() || artistKeys.contains(song.getArtistKey());
+  }
+
+  /*
+    Artists the rule is limited to, as case folded keys
+    Empty if the rule accepts any artist
+   */
+  public Set<String> getArtistKeys() {
+    return artistKeys;
+  }
+
+  @Override
+  public String toString() {
+    return description;
+  }
+}
\ No newline at end of file
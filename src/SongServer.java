@@ -0,0 +1,759 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+  HTTP service over a database and its playlists, for other processes on the same machine
+  Only listens on the loopback address. Requests and responses are JSON, request
+  parameters come from the query string or a form encoded body
+
+    GET    /songs?offset=0&limit=100       page of songs
+    GET    /songs/{number}                 one song, numbered from 1
+    POST   /songs                          name, artist, duration, fileSize
+    PUT    /songs/{number}                 name and/or artist
+    DELETE /songs/{number}
+    GET    /search?q=text&limit=100        songs whose name or artist contains the text
+    GET    /query?duration=300&order=name&limit=10
+    GET    /playlists
+    POST   /playlists                      optional maxTime, maxSize
+    GET    /playlists/{number}
+    DELETE /playlists/{number}
+    POST   /playlists/{number}/songs       song={database number}, optional position
+    DELETE /playlists/{number}/songs/{position}
+    GET    /changes?batch=1024             every change from now on, see streamChanges
+
+  Requests are handled concurrently. Reads share the database's read lock, so they
+  only wait for writers. Playlists are guarded by their list, always taken after the database lock
+  A read only server, eg. over a ReplicationFollower's database, turns away anything but GET
+ */
+public class SongServer {
+  public static final int DEFAULT_PORT = 8080;
+  public static final int DEFAULT_THREADS = 64;
+
+  //change streams hold a handler thread each, so they may only take up half of them
+  public static final int MAX_CHANGE_STREAMS = DEFAULT_THREADS / 2;
+
+  //changes a /changes client can be behind before it overruns
+  private static final int CHANGE_STREAM_CAPACITY = 1 << 12;
+
+  //an idle change stream is written to this often, so a client that has gone away is noticed
+  private static final long KEEP_ALIVE_MILLIS = 2000;
+
+  private static final int DEFAULT_PAGE_SIZE = 100;
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+  private static final byte[] KEEP_ALIVE = "{\"type\":\"keepalive\"}\n".getBytes(UTF_8);
+
+  static {
+    //responses are small, so without this each one can sit behind a delayed ack for 40ms
+    if (System.getProperty("sun.net.httpserver.nodelay") == null) {
+      System.setProperty("sun.net.httpserver.nodelay", "true");
+    }
+  }
+
+  private final SongDatabase database;
+  private final List<Playlist> playlists;
+  private final HttpServer server;
+  private final ExecutorService executor;
+
+  //changes to the database and playlists, for /changes
+  private final ChangeStream changes;
+  private final AtomicInteger changeStreams;
+  private final SongDatabaseListener playlistUpkeep;
+
+  //when set, only GET requests are served
+  private volatile boolean readOnly;
+
+  /*
+    Serves the given database and playlists on the given port, 0 picks a free one
+    The playlists list is shared, so changes made through the server are seen by the caller
+   */
+  public SongServer(SongDatabase database, List<Playlist> playlists, int port) throws IOException {
+    this.database = database;
+    this.playlists = playlists;
+    this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    this.executor = createExecutor();
+    this.changes = new ChangeStream(database);
+    this.changeStreams = new AtomicInteger();
+    synchronized (playlists) {
+      for (Playlist playlist : playlists) {
+        changes.watch(playlist);
+      }
+    }
+
+    server.createContext("/", new Router());
+    server.setExecutor(executor);
+
+    //keep playlists in step with the database, this runs under the database's write lock
+    playlistUpkeep = new SongDatabaseListener() {
+      public void songAdded(int index, Song song) {
+      }
+
+      public void songRemoved(int index, Song song) {
+        synchronized (SongServer.this.playlists) {
+          for (Playlist playlist : SongServer.this.playlists) {
+            int position;
+            while ((position = playlist.indexOf(song)) >= 0) {
+              playlist.removeSong(position);
+            }
+          }
+        }
+      }
+
+      public void songReplaced(int index, Song song, Song replacement) {
+        synchronized (SongServer.this.playlists) {
+          for (Playlist playlist : SongServer.this.playlists) {
+            playlist.replaceSong(song, replacement);
+          }
+        }
+      }
+    };
+    database.addListener(playlistUpkeep);
+  }
+
+  /*
+    One virtual thread per request when the runtime has them, otherwise a fixed pool
+    The lookup is reflective so the code still builds for older runtimes
+   */
+  private static ExecutorService createExecutor() {
+    try {
+      return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(DEFAULT_THREADS);
+    }
+  }
+
+  public void start() {
+    server.start();
+  }
+
+  /*
+    Stops accepting requests, giving running ones up to a second to finish
+   */
+  public void stop() {
+    //change streams never finish on their own
+    try {
+      changes.close();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    server.stop(1);
+    executor.shutdown();
+    //a stopped server shouldn't be kept alive by the database or slow down its edits
+    database.removeListener(playlistUpkeep);
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  public void setReadOnly(boolean readOnly) {
+    this.readOnly = readOnly;
+  }
+
+  public boolean isReadOnly() {
+    return readOnly;
+  }
+
+  /*
+    Thrown by handlers to send an error status
+   */
+  private static class HttpError extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    final int status;
+
+    HttpError(int status, String message) {
+      super(message);
+      this.status = status;
+    }
+  }
+
+  private class Router implements HttpHandler {
+    public void handle(HttpExchange exchange) throws IOException {
+      int status = 200;
+      String body;
+      try {
+        String method = exchange.getRequestMethod();
+        String[] path = splitPath(exchange.getRequestURI().getPath());
+        Map<String, String> params = parseParams(exchange);
+
+        if (readOnly && !method.equals("GET")) {
+          throw new HttpError(405, "This is a read only replica");
+        }
+
+        if (path.length == 0) {
+          throw new HttpError(404, "Not found");
+        } else if (path[0].equals("changes") && path.length == 1) {
+          expectMethod(method, "GET");
+          streamChanges(exchange, params);
+          return;
+        } else if (path[0].equals("songs")) {
+          if (method.equals("POST") && path.length == 1) status = 201;
+          body = songs(method, path, params);
+        } else if (path[0].equals("search") && path.length == 1) {
+          expectMethod(method, "GET");
+          body = search(params);
+        } else if (path[0].equals("query") && path.length == 1) {
+          expectMethod(method, "GET");
+          body = query(params);
+        } else if (path[0].equals("playlists")) {
+          if (method.equals("POST")) status = 201;
+          body = playlists(method, path, params);
+        } else {
+          throw new HttpError(404, "Not found");
+        }
+      } catch (HttpError e) {
+        status = e.status;
+        body = error(e.getMessage());
+      } catch (IllegalArgumentException e) {
+        status = 400;
+        body = error(e.getMessage());
+      } catch (RuntimeException e) {
+        status = 500;
+        body = error("Internal error");
+      }
+
+      byte[] bytes = body.getBytes(UTF_8);
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+      exchange.sendResponseHeaders(status, bytes.length);
+      OutputStream out = exchange.getResponseBody();
+      try {
+        out.write(bytes);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private String songs(String method, String[] path, Map<String, String> params) {
+    if (path.length == 1 && method.equals("GET")) {
+      int offset = intParam(params, "offset", 0);
+      int limit = intParam(params, "limit", DEFAULT_PAGE_SIZE);
+      StringBuilder json = new StringBuilder("[");
+      database.readLock().lock();
+      try {
+        int end = (int) Math.min((long) offset + limit, database.getTotalSongs());
+        for (int i = offset; i < end; i++) {
+          if (i > offset) json.append(',');
+          appendSong(json, i + 1, database.getSong(i));
+        }
+      } finally {
+        database.readLock().unlock();
+      }
+      return json.append(']').toString();
+    }
+
+    if (path.length == 1 && method.equals("POST")) {
+      Song song = new Song(textParam(params, "name"), textParam(params, "artist"),
+          positive(intParam(params, "fileSize", 0), "fileSize"), positive(intParam(params, "duration", 0), "duration"),
+          database.getStringPool());
+
+      database.writeLock().lock();
+      try {
+        if (!database.addSongIfAbsent(song)) {
+          throw new HttpError(409, "Song is already in the database");
+        }
+        return appendSong(new StringBuilder(), database.getTotalSongs(), song).toString();
+      } finally {
+        database.writeLock().unlock();
+      }
+    }
+
+    if (path.length != 2) {
+      throw new HttpError(404, "Not found");
+    }
+
+    int index = number(path[1]) - 1;
+    if (method.equals("GET")) {
+      database.readLock().lock();
+      try {
+        return appendSong(new StringBuilder(), index + 1, songAt(index)).toString();
+      } finally {
+        database.readLock().unlock();
+      }
+    } else if (method.equals("PUT")) {
+      //checked up front, so a bad artist doesn't leave the name already changed
+      String name = params.containsKey("name") ? textParam(params, "name") : null;
+      String artist = params.containsKey("artist") ? textParam(params, "artist") : null;
+
+      database.writeLock().lock();
+      try {
+        Song song = songAt(index);
+        if (name != null) {
+          song = database.setSongName(index, name);
+        }
+        if (artist != null) {
+          song = database.setSongArtist(index, artist);
+        }
+        return appendSong(new StringBuilder(), index + 1, song).toString();
+      } finally {
+        database.writeLock().unlock();
+      }
+    } else if (method.equals("DELETE")) {
+      database.writeLock().lock();
+      try {
+        Song song = songAt(index);
+        database.removeSong(index);
+        return appendSong(new StringBuilder(), index + 1, song).toString();
+      } finally {
+        database.writeLock().unlock();
+      }
+    }
+    throw new HttpError(405, "Method not allowed");
+  }
+
+  /*
+    Case insensitive search of names and artists
+   */
+  private String search(Map<String, String> params) {
+    String text = StringPool.fold(requiredParam(params, "q"));
+    int limit = intParam(params, "limit", DEFAULT_PAGE_SIZE);
+
+    StringBuilder json = new StringBuilder("[");
+    int found = 0;
+    database.readLock().lock();
+    try {
+      for (int i = 0; i < database.getTotalSongs() && found < limit; i++) {
+        Song song = database.getSong(i);
+        if (song.getNameKey().contains(text) || song.getArtistKey().contains(text)) {
+          if (found > 0) json.append(',');
+          appendSong(json, i + 1, song);
+          found++;
+        }
+      }
+    } finally {
+      database.readLock().unlock();
+    }
+    return json.append(']').toString();
+  }
+
+  /*
+    Duration query, the same as the List Songs By Duration menu
+   */
+  private String query(Map<String, String> params) {
+    int duration = positive(intParam(params, "duration", 0), "duration");
+    int limit = intParam(params, "limit", 0);
+    String order = params.containsKey("order") ? params.get("order") : "name";
+
+    Song[] songs;
+    if (order.equals("name")) {
+      songs = limit > 0 ? database.songsLessThanDurationByName(duration, limit) : database.songsLessThanDurationByName(duration);
+    } else if (order.equals("artist")) {
+      songs = limit > 0 ? database.songsLessThanDurationByArtist(duration, limit) : database.songsLessThanDurationByArtist(duration);
+    } else if (order.equals("size")) {
+      songs = limit > 0 ? database.songsLessThanDurationByFileSize(duration, limit) : database.songsLessThanDurationByFileSize(duration);
+    } else if (order.equals("duration")) {
+      songs = limit > 0 ? database.songsLessThanDurationByDuration(duration, limit) : database.songsLessThanDurationByDuration(duration);
+    } else {
+      throw new IllegalArgumentException("Unknown order: " + order);
+    }
+
+    StringBuilder json = new StringBuilder("[");
+    for (int i = 0; i < songs.length; i++) {
+      if (i > 0) json.append(',');
+      appendSong(json, i + 1, songs[i]);
+    }
+    return json.append(']').toString();
+  }
+
+  private String playlists(String method, String[] path, Map<String, String> params) {
+    //database first, then playlists, the same order the listener takes them in
+    boolean writing = !method.equals("GET");
+    if (writing) {
+      database.writeLock().lock();
+    } else {
+      database.readLock().lock();
+    }
+    try {
+      synchronized (playlists) {
+        return playlistsLocked(method, path, params);
+      }
+    } finally {
+      if (writing) {
+        database.writeLock().unlock();
+      } else {
+        database.readLock().unlock();
+      }
+    }
+  }
+
+  private String playlistsLocked(String method, String[] path, Map<String, String> params) {
+    if (path.length == 1) {
+      if (method.equals("GET")) {
+        StringBuilder json = new StringBuilder("[");
+        for (int i = 0; i < playlists.size(); i++) {
+          if (i > 0) json.append(',');
+          appendPlaylistSummary(json, i + 1, playlists.get(i));
+        }
+        return json.append(']').toString();
+      } else if (method.equals("POST")) {
+        Playlist playlist = new Playlist(intParam(params, "maxTime", Playlist.DEFAULT_MAX_TIME),
+            intParam(params, "maxSize", Playlist.DEFAULT_MAX_SIZE));
+        playlists.add(playlist);
+        changes.watch(playlist);
+        return appendPlaylistSummary(new StringBuilder(), playlists.size(), playlist).toString();
+      }
+      throw new HttpError(405, "Method not allowed");
+    }
+
+    int number = number(path[1]);
+    if (number > playlists.size()) {
+      throw new HttpError(404, "No such playlist");
+    }
+    Playlist playlist = playlists.get(number - 1);
+
+    if (path.length == 2) {
+      if (method.equals("GET")) {
+        return appendPlaylist(new StringBuilder(), number, playlist).toString();
+      } else if (method.equals("DELETE")) {
+        playlists.remove(number - 1);
+        changes.unwatch(playlist);
+        return appendPlaylistSummary(new StringBuilder(), number, playlist).toString();
+      }
+      throw new HttpError(405, "Method not allowed");
+    }
+
+    if (!path[2].equals("songs") || path.length > 4) {
+      throw new HttpError(404, "Not found");
+    }
+
+    if (path.length == 3 && method.equals("POST")) {
+      Song song = songAt(number(requiredParam(params, "song")) - 1);
+      int position = intParam(params, "position", playlist.getTotalSongs() + 1) - 1;
+      if (position < 0 || position > playlist.getTotalSongs()) {
+        throw new IllegalArgumentException("Position out of range");
+      }
+
+      Playlist.PlaylistActionState result = playlist.insertSong(position, song);
+      if (result != Playlist.PlaylistActionState.NO_ERROR) {
+        throw new HttpError(409, result == Playlist.PlaylistActionState.ERROR_MAX_TIME_REACHED
+            ? "Playlist is too long for this song" : "Playlist is too big for this song");
+      }
+      return appendPlaylist(new StringBuilder(), number, playlist).toString();
+    }
+
+    if (path.length == 4 && method.equals("DELETE")) {
+      int position = number(path[3]) - 1;
+      if (position >= playlist.getTotalSongs()) {
+        throw new HttpError(404, "No such position");
+      }
+      playlist.removeSong(position);
+      return appendPlaylist(new StringBuilder(), number, playlist).toString();
+    }
+    throw new HttpError(405, "Method not allowed");
+  }
+
+  /*
+    Sends every change from now on, one JSON object per line, until the client goes away
+    Changes are written in batches of up to the batch parameter. A client that reads too
+    slowly to keep up gets an overrun line and the stream ends; it should read the songs
+    and playlists again and start a new stream
+    A keepalive line is sent when there have been no changes for a while, which is how a
+    client that has gone away is noticed. Only MAX_CHANGE_STREAMS can be open at once
+   */
+  private void streamChanges(HttpExchange exchange, Map<String, String> params) throws IOException {
+    int batchSize = positive(intParam(params, "batch", ChangeStream.DEFAULT_BATCH_SIZE), "batch");
+    if (changeStreams.incrementAndGet() > MAX_CHANGE_STREAMS) {
+      changeStreams.decrementAndGet();
+      throw new HttpError(503, "Too many change streams open, try again later");
+    }
+    try {
+      streamChanges(exchange, batchSize);
+    } finally {
+      changeStreams.decrementAndGet();
+    }
+  }
+
+  private void streamChanges(HttpExchange exchange, int batchSize) throws IOException {
+    exchange.getResponseHeaders().set("Content-Type", "application/x-ndjson; charset=utf-8");
+    exchange.sendResponseHeaders(200, 0);
+    final OutputStream out = exchange.getResponseBody();
+    final long[] missed = {-1};
+
+    ChangeStream.Subscription subscription = changes.subscribe(new ChangeSubscriber() {
+      public void changes(ChangeEvent[] events, int count) throws IOException {
+        StringBuilder lines = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+          appendChange(lines, events[i]).append('\n');
+        }
+        synchronized (out) {
+          out.write(lines.toString().getBytes(UTF_8));
+          out.flush();
+        }
+      }
+
+      public void overrun(long lost) throws IOException {
+        //writing to a slow client here would hold the database lock, so end the stream and say why after
+        missed[0] = lost;
+        throw new IOException("Client fell behind");
+      }
+    }, CHANGE_STREAM_CAPACITY, batchSize);
+
+    try {
+      while (!subscription.awaitClose(KEEP_ALIVE_MILLIS)) {
+        //throws once the client has gone, which ends the subscription below
+        synchronized (out) {
+          out.write(KEEP_ALIVE);
+          out.flush();
+        }
+      }
+      if (missed[0] >= 0) {
+        out.write(("{\"type\":\"overrun\",\"missed\":" + missed[0] + "}\n").getBytes(UTF_8));
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      try {
+        subscription.close();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      out.close();
+    }
+  }
+
+  private Song songAt(int index) {
+    if (index < 0 || index >= database.getTotalSongs()) {
+      throw new HttpError(404, "No such song");
+    }
+    return database.getSong(index);
+  }
+
+  private static StringBuilder appendSong(StringBuilder json, int number, Song song) {
+    json.append("{\"number\":").append(number);
+    json.append(",\"name\":");
+    appendString(json, song.getName());
+    json.append(",\"artist\":");
+    appendString(json, song.getArtist());
+    json.append(",\"duration\":").append(song.getDuration());
+    json.append(",\"fileSize\":").append(song.getFileSize());
+    return json.append('}');
+  }
+
+  private static StringBuilder appendPlaylistSummary(StringBuilder json, int number, Playlist playlist) {
+    json.append("{\"number\":").append(number);
+    json.append(",\"songs\":").append(playlist.getTotalSongs());
+    json.append(",\"totalTime\":").append(playlist.getTotalTime());
+    json.append(",\"totalSize\":").append(playlist.getTotalSize());
+    json.append(",\"maxTime\":").append(playlist.getMaxTime());
+    json.append(",\"maxSize\":").append(playlist.getMaxSize());
+    return json.append('}');
+  }
+
+  private static StringBuilder appendPlaylist(StringBuilder json, int number, Playlist playlist) {
+    appendPlaylistSummary(json, number, playlist);
+    json.setLength(json.length() - 1);
+    json.append(",\"tracks\":[");
+    for (int i = 0; i < playlist.getTotalSongs(); i++) {
+      if (i > 0) json.append(',');
+      appendSong(json, i + 1, playlist.getSong(i));
+    }
+    return json.append("]}");
+  }
+
+  /*
+    One change as a JSON object, songs and positions numbered from 1 like the rest of the API
+    Playlists are numbered by their id in the stream, which doesn't change when others are removed
+   */
+  private static StringBuilder appendChange(StringBuilder json, ChangeEvent event) {
+    json.append("{\"seq\":").append(event.getSequence());
+    json.append(",\"type\":\"").append(event.getType().getLabel()).append('"');
+    if (event.getPlaylistId() >= 0) {
+      json.append(",\"playlist\":").append(event.getPlaylistId());
+    }
+
+    switch (event.getType()) {
+      case PLAYLIST_ADDED:
+        json.append(",\"maxTime\":").append(event.getPlaylist().getMaxTime());
+        json.append(",\"maxSize\":").append(event.getPlaylist().getMaxSize());
+        appendTracks(json, event.getSongs());
+        break;
+      case PLAYLIST_REORDERED:
+        appendTracks(json, event.getSongs());
+        break;
+      case PLAYLIST_REMOVED:
+        break;
+      case PLAYLIST_SONG_MOVED:
+        json.append(",\"from\":").append(event.getIndex() + 1);
+        json.append(",\"to\":").append(event.getToIndex() + 1);
+        break;
+      default:
+        json.append(",\"song\":");
+        appendSong(json, event.getIndex() + 1, event.getSong());
+        if (event.getReplacement() != null) {
+          json.append(",\"replacement\":");
+          appendSong(json, event.getIndex() + 1, event.getReplacement());
+        }
+    }
+    return json.append('}');
+  }
+
+  private static void appendTracks(StringBuilder json, Song[] songs) {
+    json.append(",\"tracks\":[");
+    for (int i = 0; i < songs.length; i++) {
+      if (i > 0) json.append(',');
+      appendSong(json, i + 1, songs[i]);
+    }
+    json.append(']');
+  }
+
+  private static String error(String message) {
+    StringBuilder json = new StringBuilder("{\"error\":");
+    appendString(json, message == null ? "" : message);
+    return json.append('}').toString();
+  }
+
+  /*
+    Appends a JSON string literal, escaping quotes, backslashes and control characters
+   */
+  static void appendString(StringBuilder json, String value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      switch (c) {
+        case '"':
+          json.append("\\\"");
+          break;
+        case '\\':
+          json.append("\\\\");
+          break;
+        case '\n':
+          json.append("\\n");
+          break;
+        case '\r':
+          json.append("\\r");
+          break;
+        case '\t':
+          json.append("\\t");
+          break;
+        default:
+          if (c < 0x20) {
+            json.append(String.format("\\u%04x", (int) c));
+          } else {
+            json.append(c);
+          }
+      }
+    }
+    json.append('"');
+  }
+
+  private static void expectMethod(String method, String expected) {
+    if (!method.equals(expected)) {
+      throw new HttpError(405, "Method not allowed");
+    }
+  }
+
+  private static String[] splitPath(String path) {
+    String trimmed = path.replaceAll("^/+|/+$", "");
+    return trimmed.length() == 0 ? new String[0] : trimmed.split("/+");
+  }
+
+  /*
+    Parameters from the query string and, for form posts, the body
+   */
+  private static Map<String, String> parseParams(HttpExchange exchange) throws IOException {
+    Map<String, String> params = new HashMap<String, String>();
+    parseForm(exchange.getRequestURI().getRawQuery(), params);
+
+    InputStream in = exchange.getRequestBody();
+    try {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) != -1) {
+        body.write(buffer, 0, read);
+      }
+      if (body.size() > 0) {
+        parseForm(new String(body.toByteArray(), UTF_8), params);
+      }
+    } finally {
+      in.close();
+    }
+    return params;
+  }
+
+  private static void parseForm(String form, Map<String, String> params) throws UnsupportedEncodingException {
+    if (form == null || form.length() == 0) return;
+
+    for (String pair : form.split("&")) {
+      int equals = pair.indexOf('=');
+      String name = equals < 0 ? pair : pair.substring(0, equals);
+      String value = equals < 0 ? "" : pair.substring(equals + 1);
+      params.put(URLDecoder.decode(name, "UTF-8"), URLDecoder.decode(value, "UTF-8"));
+    }
+  }
+
+  private static String requiredParam(Map<String, String> params, String name) {
+    String value = params.get(name);
+    if (value == null || value.length() == 0) {
+      throw new IllegalArgumentException("Missing parameter: " + name);
+    }
+    return value;
+  }
+
+  /*
+    A name or artist, which the database file keeps one per line, so line breaks and
+    other control characters would split the record or inject new ones
+   */
+  private static String textParam(Map<String, String> params, String name) {
+    String value = requiredParam(params, name);
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (Character.isISOControl(c) || c == '\u2028' || c == '\u2029') {
+        throw new IllegalArgumentException("Control characters aren't allowed in " + name);
+      }
+    }
+    return value;
+  }
+
+  private static int intParam(Map<String, String> params, String name, int defaultValue) {
+    String value = params.get(name);
+    if (value == null) {
+      return defaultValue;
+    }
+    try {
+      int parsed = Integer.parseInt(value);
+      if (parsed < 0) {
+        throw new IllegalArgumentException(name + " can't be negative");
+      }
+      return parsed;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Not a number: " + name);
+    }
+  }
+
+  private static int positive(int value, String name) {
+    if (value <= 0) {
+      throw new IllegalArgumentException(name + " must be greater than zero");
+    }
+    return value;
+  }
+
+  private static int number(String segment) {
+    try {
+      int value = Integer.parseInt(segment);
+      if (value > 0) {
+        return value;
+      }
+    } catch (NumberFormatException e) {
+      //fall through to not found
+    }
+    throw new HttpError(404, "Not found");
+  }
+}
\ No newline at end of file
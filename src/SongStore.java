@@ -0,0 +1,28 @@
+/*
+  Storage engine behind a SongDatabase
+  Songs are kept in insertion order and addressed by index; removing a song
+  moves every later song up a place. Engines must allow concurrent reads
+ */
+public interface SongStore {
+  int size();
+
+  Song get(int index);
+
+  /*
+    Duration of the song at the given index
+    Engines that don't keep Song objects should answer this without creating one
+   */
+  int getDuration(int index);
+
+  void add(Song song);
+
+  /*
+    Puts a song at the given index, moving it and every later song down a place
+    The index may be size(), which is the same as add
+   */
+  void insert(int index, Song song);
+
+  void set(int index, Song song);
+
+  void remove(int index);
+}
\ No newline at end of file
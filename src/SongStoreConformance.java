@@ -0,0 +1,353 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/*
+  Checks that every storage engine behaves the same, then times the operations the
+  database relies on, so engines can be compared on equal terms
+
+  Each engine starts with the same songs, put there the way it is used: added one by
+  one for the array and off-heap engines, loaded from a database file for the lazy
+  engine and mapped from a snapshot for the snapshot engine. Every check compares the
+  engine with a plain list that was given the same edits. Exits with status 1 if any
+  engine fails a check
+
+  Usage: java SongStoreConformance [songs] [edits]
+ */
+public class SongStoreConformance {
+  private static final int DEFAULT_SONGS = 100000;
+  private static final int DEFAULT_EDITS = 5000;
+  private static final int READERS = 4;
+  private static final long SEED = 42;
+
+  /*
+    Creates an engine already holding the given songs
+   */
+  private interface Engine {
+    String getName();
+
+    SongStore create(List<Song> songs, File dir) throws IOException;
+  }
+
+  /*
+    Check failures for one engine, only the first few messages are kept
+   */
+  private static class Failures {
+    private static final int KEPT = 5;
+
+    final List<String> messages = new ArrayList<String>();
+    int count;
+
+    synchronized void fail(String check, String message) {
+      count++;
+      if (messages.size() < KEPT) {
+        messages.add(check + ": " + message);
+      }
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    int songCount = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_SONGS;
+    int edits = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_EDITS;
+
+    List<Song> songs = songs(songCount, new Random(SEED));
+    File dir = Files.createTempDirectory("conformance").toFile();
+    System.out.println(String.format("%d songs, %d edits, %d concurrent readers", songCount, edits, READERS));
+    System.out.println(String.format("%-9s %10s %10s %10s %10s %10s  %s", "engine", "fill ms", "scan ms", "random ms",
+        "durations", "edits ms", "checks"));
+
+    boolean passed = true;
+    try {
+      for (Engine engine : engines()) {
+        try {
+          passed &= run(engine, songs, edits, dir);
+        } catch (RuntimeException e) {
+          System.out.println(String.format("%-9s failed: %s", engine.getName(), e));
+          passed = false;
+        }
+      }
+    } finally {
+      deleteAll(dir);
+    }
+    System.exit(passed ? 0 : 1);
+  }
+
+  private static List<Engine> engines() {
+    List<Engine> engines = new ArrayList<Engine>();
+    engines.add(new Engine() {
+      public String getName() {
+        return SongStores.ARRAY;
+      }
+
+      public SongStore create(List<Song> songs, File dir) {
+        return filled(SongStores.create(SongStores.ARRAY), songs);
+      }
+    });
+    engines.add(new Engine() {
+      public String getName() {
+        return SongStores.OFF_HEAP;
+      }
+
+      public SongStore create(List<Song> songs, File dir) {
+        return filled(SongStores.create(SongStores.OFF_HEAP), songs);
+      }
+    });
+    engines.add(new Engine() {
+      public String getName() {
+        return SongStores.LAZY;
+      }
+
+      public SongStore create(List<Song> songs, File dir) throws IOException {
+        SongDatabase written = new SongDatabase(filled(new ArraySongStore(), songs));
+        File file = new File(dir, "songs.txt");
+        written.saveToFile(file.getPath());
+
+        LazySongStore lazy = new LazySongStore();
+        try {
+          new SongDatabase(lazy).loadSongs(file);
+        } catch (ClassNotFoundException e) {
+          throw new IOException(e);
+        }
+        return lazy;
+      }
+    });
+    engines.add(new Engine() {
+      public String getName() {
+        return "snapshot";
+      }
+
+      public SongStore create(List<Song> songs, File dir) throws IOException {
+        File file = new File(dir, "songs" + SnapshotSongStore.EXTENSION);
+        SnapshotSongStore.write(filled(new ArraySongStore(), songs), file, Collections.<String, Comparator<Song>>emptyMap());
+        return SnapshotSongStore.open(file);
+      }
+    });
+    return engines;
+  }
+
+  /*
+    Runs every check and timing on one engine, returning whether it passed
+   */
+  private static boolean run(Engine engine, List<Song> songs, int edits, File dir) throws Exception {
+    Failures failures = new Failures();
+    List<Song> model = new ArrayList<Song>(songs);
+
+    long start = System.nanoTime();
+    SongStore store = engine.create(songs, dir);
+    long fill = System.nanoTime() - start;
+    try {
+      checkContents("fill", store, model, failures);
+
+      start = System.nanoTime();
+      long checksum = 0;
+      for (int i = 0; i < store.size(); i++) {
+        checksum += store.get(i).getFileSize();
+      }
+      long scan = System.nanoTime() - start;
+
+      Random random = new Random(SEED);
+      start = System.nanoTime();
+      for (int i = 0; i < store.size(); i++) {
+        checksum += store.get(random.nextInt(store.size())).getFileSize();
+      }
+      long randomReads = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      for (int i = 0; i < store.size(); i++) {
+        checksum += store.getDuration(i);
+      }
+      long durations = System.nanoTime() - start;
+
+      checkConcurrentReads(store, model, failures);
+      checkBounds(store, model, failures);
+
+      start = System.nanoTime();
+      edit(store, model, edits, new Random(SEED), failures);
+      long editTime = System.nanoTime() - start;
+      checkContents("edits", store, model, failures);
+      checkConcurrentReads(store, model, failures);
+
+      System.out.println(String.format("%-9s %10.1f %10.1f %10.1f %10.1f %10.1f  %s%s", engine.getName(), fill / 1e6,
+          scan / 1e6, randomReads / 1e6, durations / 1e6, editTime / 1e6,
+          failures.count == 0 ? "passed" : failures.count + " failed",
+          checksum == 0 ? " (empty)" : ""));
+      for (String message : failures.messages) {
+        System.out.println("          " + message);
+      }
+      return failures.count == 0;
+    } finally {
+      if (store instanceof Closeable) {
+        ((Closeable) store).close();
+      }
+    }
+  }
+
+  /*
+    Same size, and the same song and duration at every index
+   */
+  private static void checkContents(String check, SongStore store, List<Song> model, Failures failures) {
+    if (store.size() != model.size()) {
+      failures.fail(check, "size " + store.size() + ", expected " + model.size());
+      return;
+    }
+    for (int i = 0; i < model.size(); i++) {
+      Song song = store.get(i);
+      if (!song.isSameAs(model.get(i))) {
+        failures.fail(check, "song " + i + " is " + song + ", expected " + model.get(i));
+      }
+      if (store.getDuration(i) != model.get(i).getDuration()) {
+        failures.fail(check, "duration " + i + " is " + store.getDuration(i) + ", expected " + model.get(i).getDuration());
+      }
+    }
+  }
+
+  /*
+    Every reader sees every song while the others read, which SongStore requires
+   */
+  private static void checkConcurrentReads(final SongStore store, final List<Song> model, final Failures failures)
+      throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(READERS);
+    try {
+      List<Future<Void>> readers = new ArrayList<Future<Void>>();
+      for (int r = 0; r < READERS; r++) {
+        final int first = r * model.size() / READERS;
+        readers.add(pool.submit(new Callable<Void>() {
+          public Void call() {
+            //each reader starts somewhere else, so they meet in every part of the store
+            for (int n = 0; n < model.size(); n++) {
+              int i = (first + n) % model.size();
+              if (!store.get(i).isSameAs(model.get(i)) || store.getDuration(i) != model.get(i).getDuration()) {
+                failures.fail("concurrent reads", "song " + i + " read as " + store.get(i));
+              }
+            }
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> reader : readers) {
+        reader.get();
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /*
+    Indexes outside the store are refused, and inserting at the end is the same as adding
+   */
+  private static void checkBounds(final SongStore store, List<Song> model, Failures failures) {
+    final int size = store.size();
+    final Song song = new Song("Bounds", "Check", 1, 1);
+    Runnable[] attempts = {
+      new Runnable() { public void run() { store.get(-1); } },
+      new Runnable() { public void run() { store.get(size); } },
+      new Runnable() { public void run() { store.getDuration(size); } },
+      new Runnable() { public void run() { store.set(size, song); } },
+      new Runnable() { public void run() { store.remove(size); } },
+      new Runnable() { public void run() { store.insert(size + 1, song); } }
+    };
+    String[] calls = {"get(-1)", "get(size)", "getDuration(size)", "set(size)", "remove(size)", "insert(size + 1)"};
+    for (int i = 0; i < attempts.length; i++) {
+      try {
+        attempts[i].run();
+        failures.fail("bounds", calls[i] + " didn't throw");
+      } catch (IndexOutOfBoundsException e) {
+        //expected
+      } catch (RuntimeException e) {
+        failures.fail("bounds", calls[i] + " threw " + e);
+      }
+    }
+
+    store.insert(size, song);
+    model.add(song);
+    if (store.size() != size + 1 || !store.get(size).isSameAs(song)) {
+      failures.fail("bounds", "insert(size) didn't add to the end");
+    }
+    store.remove(size);
+    model.remove(size);
+    checkContents("bounds", store, model, failures);
+  }
+
+  /*
+    Random adds, inserts, replacements and removals, made to the store and the model alike
+   */
+  private static void edit(SongStore store, List<Song> model, int edits, Random random, Failures failures) {
+    for (int e = 0; e < edits; e++) {
+      Song song = song(model.size() + e, random, "edit");
+      int kind = random.nextInt(4);
+      if (kind == 0 || model.isEmpty()) {
+        store.add(song);
+        model.add(song);
+      } else if (kind == 1) {
+        int index = random.nextInt(model.size() + 1);
+        store.insert(index, song);
+        model.add(index, song);
+      } else if (kind == 2) {
+        int index = random.nextInt(model.size());
+        store.set(index, song);
+        model.set(index, song);
+      } else {
+        int index = random.nextInt(model.size());
+        store.remove(index);
+        model.remove(index);
+      }
+
+      if (!model.isEmpty()) {
+        int index = random.nextInt(model.size());
+        if (!store.get(index).isSameAs(model.get(index))) {
+          failures.fail("edits", "after edit " + e + ", song " + index + " is " + store.get(index) + ", expected " + model.get(index));
+        }
+      }
+    }
+  }
+
+  private static SongStore filled(SongStore store, List<Song> songs) {
+    for (Song song : songs) {
+      store.add(song);
+    }
+    return store;
+  }
+
+  private static List<Song> songs(int count, Random random) {
+    List<Song> songs = new ArrayList<Song>(count);
+    for (int i = 0; i < count; i++) {
+      songs.add(song(i, random, "Song"));
+    }
+    return songs;
+  }
+
+  /*
+    Names are unique, so loading a file keeps every song. Some are in other scripts when the
+    default charset, which database files are written in, can hold them
+   */
+  private static Song song(int number, Random random, String prefix) {
+    String name = prefix + " " + number;
+    String accented = name + " caf\u00e9 \u65e5\u672c";
+    if (random.nextInt(10) == 0 && Charset.defaultCharset().newEncoder().canEncode(accented)) {
+      name = accented;
+    }
+    String artist = "Artist " + random.nextInt(1000);
+    return new Song(name, artist, 1 + random.nextInt(20000), 1 + random.nextInt(600));
+  }
+
+  private static void deleteAll(File file) {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children) {
+        deleteAll(child);
+      }
+    }
+    file.delete();
+  }
+}
\ No newline at end of file
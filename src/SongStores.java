@@ -0,0 +1,28 @@
+/*
+  Creates storage engines by name
+  The engine for new databases is picked with the songdb.store system property
+ */
+public class SongStores {
+  public static final String PROPERTY = "songdb.store";
+  public static final String ARRAY = "array";
+  public static final String OFF_HEAP = "offheap";
+  public static final String LAZY = "lazy";
+
+  /*
+    Engine named by the songdb.store system property, the array engine if it isn't set
+   */
+  public static SongStore createConfigured() {
+    return create(System.getProperty(PROPERTY, ARRAY));
+  }
+
+  public static SongStore create(String engine) {
+    if (ARRAY.equalsIgnoreCase(engine)) {
+      return new ArraySongStore();
+    } else if (OFF_HEAP.equalsIgnoreCase(engine)) {
+      return new OffHeapSongStore();
+    } else if (LAZY.equalsIgnoreCase(engine)) {
+      return new LazySongStore();
+    }
+    throw new IllegalArgumentException("Unknown song store: " + engine);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,112 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+
+/*
+  Measures how long it takes before a catalogue can be queried, loading the text
+  database against opening a snapshot of it
+
+  Cold starts run in a new JVM each time, timed from process launch until the first
+  query has been answered. The operating system may still have the files cached, so
+  these are cold JVM rather than cold disk numbers. Warm starts reopen in this JVM
+
+  Usage: java StartupBenchmark <database file> [runs]
+ */
+public class StartupBenchmark {
+  private static final String CHILD_OPTION = "--child";
+  private static final int DEFAULT_RUNS = 5;
+
+  //the first query a user is likely to run
+  private static final int QUERY_DURATION = 300;
+  private static final int QUERY_LIMIT = 20;
+
+  public static void main(String[] args) throws Exception {
+    if (args.length >= 3 && args[0].equals(CHILD_OPTION)) {
+      child(args[1], new File(args[2]));
+      return;
+    }
+    if (args.length < 1) {
+      System.err.println("Usage: java StartupBenchmark <database file> [runs]");
+      System.exit(1);
+    }
+
+    File text = new File(args[0]);
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_RUNS;
+    File snapshot = File.createTempFile("startup", SnapshotSongStore.EXTENSION);
+    snapshot.deleteOnExit();
+
+    long start = System.nanoTime();
+    SongDatabase loaded = new SongDatabase();
+    loaded.loadSongs(text);
+    long loadTime = System.nanoTime() - start;
+
+    start = System.nanoTime();
+    long bytes = loaded.saveSnapshot(snapshot);
+    long writeTime = System.nanoTime() - start;
+    System.out.println(String.format("%d songs: text load %.0f ms, snapshot written in %.0f ms (%d bytes)",
+        loaded.getTotalSongs(), loadTime / 1e6, writeTime / 1e6, bytes));
+    loaded = null;
+
+    for (int run = 0; run < runs; run++) {
+      System.out.println("cold text:     " + runChild("text", text));
+      System.out.println("cold snapshot: " + runChild("snapshot", snapshot));
+    }
+
+    for (int run = 0; run < runs; run++) {
+      System.out.println("warm snapshot: " + measure("snapshot", snapshot));
+    }
+  }
+
+  /*
+    Runs a fresh JVM that opens the file and answers the first query
+   */
+  private static String runChild(String mode, File file) throws IOException, InterruptedException {
+    String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+    ProcessBuilder builder = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"),
+        StartupBenchmark.class.getName(), CHILD_OPTION, mode, file.getPath());
+    builder.redirectErrorStream(true);
+
+    long start = System.nanoTime();
+    Process process = builder.start();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+    String result = reader.readLine();
+    process.waitFor();
+    long total = System.nanoTime() - start;
+    reader.close();
+
+    return String.format("%s, process wall clock %.0f ms", result, total / 1e6);
+  }
+
+  private static void child(String mode, File file) throws Exception {
+    String result = measure(mode, file);
+    long uptime = ManagementFactory.getRuntimeMXBean().getUptime();
+    System.out.println(String.format("%s, %d ms since JVM start", result, uptime));
+  }
+
+  /*
+    Opens the file and times the first query, plus the background index for snapshots
+   */
+  private static String measure(String mode, File file) throws Exception {
+    long start = System.nanoTime();
+    SongDatabase database;
+    if (mode.equals("snapshot")) {
+      database = SongDatabase.openSnapshot(file);
+    } else {
+      database = new SongDatabase();
+      database.loadSongs(file);
+    }
+    long opened = System.nanoTime();
+
+    database.songsLessThanDurationByDuration(QUERY_DURATION, QUERY_LIMIT);
+    long queried = System.nanoTime();
+
+    //waits for the background index if it is still building
+    database.contains("", "");
+    long indexed = System.nanoTime();
+
+    return String.format("open %.1f ms, first query %.1f ms, ready to query after %.1f ms, indexed after %.1f ms",
+        (opened - start) / 1e6, (queried - opened) / 1e6, (queried - start) / 1e6, (indexed - start) / 1e6);
+  }
+}
\ No newline at end of file
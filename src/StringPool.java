@@ -0,0 +1,92 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+  Bounded pool of canonical strings, so repeated artists and names share one copy
+  Each pooled string also carries its case folded key, so case insensitive
+  comparisons don't have to fold the string again every time
+ */
+public class StringPool {
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+
+  /*
+    A pooled string and its case folded key
+   */
+  public static class Entry {
+    private final String value;
+    private final String key;
+
+    Entry(String value, String key) {
+      this.value = value;
+      this.key = key;
+    }
+
+    public String getValue() {
+      return value;
+    }
+
+    public String getKey() {
+      return key;
+    }
+  }
+
+  private final LinkedHashMap<String, Entry> entries;
+
+  public StringPool() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  /*
+    Once full, the least recently used string is dropped from the pool
+    Songs that already share it keep their copy, only future lookups miss
+   */
+  public StringPool(final int capacity) {
+    entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, StringPool.Entry> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  /*
+    Returns the pooled copy of the given string, adding it if it isn't pooled yet
+   */
+  public synchronized Entry intern(String value) {
+    Entry entry = entries.get(value);
+    if (entry == null) {
+      String key = fold(value);
+      //the key is often the value itself, in which case share that too
+      entry = new Entry(value, key.equals(value) ? value : intern(key).getValue());
+      entries.put(value, entry);
+    }
+    return entry;
+  }
+
+  /*
+    Number of strings currently pooled
+   */
+  public synchronized int size() {
+    return entries.size();
+  }
+
+  /*
+    Folds case the same way String.compareToIgnoreCase does, so comparing
+    two folded keys with compareTo gives the same order
+   */
+  public static String fold(String value) {
+    char[] folded = null;
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      char f = Character.toLowerCase(Character.toUpperCase(c));
+      if (c != f) {
+        //only copy once we know the string actually changes
+        if (folded == null) {
+          folded = value.toCharArray();
+        }
+        folded[i] = f;
+      }
+    }
+    return folded == null ? value : new String(folded);
+  }
+}
\ No newline at end of file